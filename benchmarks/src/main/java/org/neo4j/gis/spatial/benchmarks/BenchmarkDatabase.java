@@ -0,0 +1,188 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.neo4j.gis.spatial.EditableLayer;
+import org.neo4j.gis.spatial.SpatialDatabaseService;
+import org.neo4j.gis.spatial.SpatialIndexWriter;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+
+/**
+ * An embedded database in a temporary directory, with helpers to fill it
+ * with reproducible random data. All coordinates are in the range [0,
+ * EXTENT).
+ */
+public class BenchmarkDatabase {
+
+	// Constructor
+	
+	public BenchmarkDatabase() throws IOException {
+		directory = File.createTempFile("neo4j-spatial-benchmark", "");
+		if (!directory.delete() || !directory.mkdirs()) {
+			throw new IOException("Could not create database directory " + directory);
+		}
+		database = new EmbeddedGraphDatabase(directory.getPath());
+		spatialService = new SpatialDatabaseService(database);
+	}
+
+	
+	// Public methods
+	
+	public GraphDatabaseService getDatabase() {
+		return database;
+	}
+	
+	public SpatialDatabaseService getSpatialService() {
+		return spatialService;
+	}
+	
+	/**
+	 * Create nodes with a random "bbox" property, the format read by the
+	 * DefaultLayer encoder, without adding them to any index.
+	 */
+	public List<Node> createBBoxNodes(int count, double size, Random random) {
+		List<Node> result = new ArrayList<Node>(count);
+		Transaction tx = database.beginTx();
+		try {
+			for (int i = 0; i < count; i++) {
+				if (i > 0 && i % COMMIT_INTERVAL == 0) {
+					tx.success();
+					tx.finish();
+					tx = database.beginTx();
+				}
+				double x = random.nextDouble() * (EXTENT - size);
+				double y = random.nextDouble() * (EXTENT - size);
+				Node node = database.createNode();
+				node.setProperty("bbox", new double[] { x, x + size, y, y + size });
+				result.add(node);
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		return result;
+	}
+	
+	/**
+	 * Add the nodes to the index one at a time, as an application adding
+	 * geometries as they arrive would, rather than with a bulk load.
+	 */
+	public void addAll(SpatialIndexWriter index, List<Node> nodes) {
+		Transaction tx = database.beginTx();
+		try {
+			for (int i = 0; i < nodes.size(); i++) {
+				if (i > 0 && i % COMMIT_INTERVAL == 0) {
+					tx.success();
+					tx.finish();
+					tx = database.beginTx();
+				}
+				index.add(nodes.get(i));
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+	
+	/**
+	 * Add random points to the layer, one at a time.
+	 */
+	public void addPoints(EditableLayer layer, int count, Random random) {
+		GeometryFactory factory = layer.getGeometryFactory();
+		Transaction tx = database.beginTx();
+		try {
+			for (int i = 0; i < count; i++) {
+				if (i > 0 && i % COMMIT_INTERVAL == 0) {
+					tx.success();
+					tx.finish();
+					tx = database.beginTx();
+				}
+				layer.add(factory.createPoint(randomCoordinate(random)));
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+	
+	/**
+	 * @return a closed ring of random vertices around a random centre, as a
+	 *         polygon, or as a line string if polygon is false
+	 */
+	public static Geometry createShape(GeometryFactory factory, int vertices, double radius, boolean polygon, Random random) {
+		Coordinate centre = new Coordinate(radius + random.nextDouble() * (EXTENT - 2 * radius), radius + random.nextDouble()
+				* (EXTENT - 2 * radius));
+		Coordinate[] coordinates = new Coordinate[vertices + 1];
+		for (int i = 0; i < vertices; i++) {
+			double angle = 2 * Math.PI * i / vertices;
+			double r = radius * (0.5 + random.nextDouble() / 2);
+			coordinates[i] = new Coordinate(centre.x + r * Math.cos(angle), centre.y + r * Math.sin(angle));
+		}
+		coordinates[vertices] = coordinates[0];
+		return polygon ? factory.createPolygon(factory.createLinearRing(coordinates), null) : factory.createLineString(coordinates);
+	}
+	
+	public static Coordinate randomCoordinate(Random random) {
+		return new Coordinate(random.nextDouble() * EXTENT, random.nextDouble() * EXTENT);
+	}
+	
+	public void shutdown() {
+		database.shutdown();
+		delete(directory);
+	}
+
+	
+	// Private methods
+	
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	
+	// Attributes
+	
+	public static final double EXTENT = 100.0;
+	
+	private static final int COMMIT_INTERVAL = 10000;
+	
+	private File directory;
+	private GraphDatabaseService database;
+	private SpatialDatabaseService spatialService;
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.gis.spatial.GeometryEncoder;
+import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.SpatialDatabaseService;
+import org.neo4j.gis.spatial.osm.OSMGeometryEncoder;
+import org.neo4j.gis.spatial.osm.OSMLayer;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+
+/**
+ * Encode and decode cost of the GeometryEncoders. The point encoder stores
+ * points, the others line strings of LINE_VERTICES vertices, which the OSM
+ * encoder stores as a way with one node per vertex.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class GeometryEncoderBenchmark {
+
+	// Public methods
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		database = new BenchmarkDatabase();
+		SpatialDatabaseService spatialService = database.getSpatialService();
+		Layer layer;
+		if ("WKB".equals(encoding) || "WKT".equals(encoding)) {
+			layer = spatialService.getOrCreateEditableLayer(encoding, encoding);
+		} else if ("SimplePoint".equals(encoding)) {
+			layer = spatialService.getOrCreatePointLayer(encoding, "x", "y");
+		} else if ("OSM".equals(encoding)) {
+			layer = spatialService.getOrCreateLayer(encoding, OSMGeometryEncoder.class, OSMLayer.class);
+		} else {
+			throw new IllegalArgumentException("Unknown encoding: " + encoding);
+		}
+		encoder = layer.getGeometryEncoder();
+		
+		Random random = new Random(0);
+		GeometryFactory factory = layer.getGeometryFactory();
+		geometries = new ArrayList<Geometry>(GEOMETRY_COUNT);
+		for (int i = 0; i < GEOMETRY_COUNT; i++) {
+			if ("SimplePoint".equals(encoding)) {
+				geometries.add(factory.createPoint(BenchmarkDatabase.randomCoordinate(random)));
+			} else {
+				geometries.add(BenchmarkDatabase.createShape(factory, LINE_VERTICES, 1.0, false, random));
+			}
+		}
+		
+		GraphDatabaseService db = database.getDatabase();
+		encodedNodes = new ArrayList<Node>(GEOMETRY_COUNT);
+		Transaction tx = db.beginTx();
+		try {
+			for (Geometry geometry : geometries) {
+				Node node = db.createNode();
+				encoder.encodeGeometry(geometry, node);
+				encodedNodes.add(node);
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		database.shutdown();
+	}
+	
+	/**
+	 * Encode every geometry onto a new node. The transaction is rolled back,
+	 * so the database does not grow between invocations. The node creation
+	 * is included, and is the same for all encoders.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(GEOMETRY_COUNT)
+	public void encode() {
+		GraphDatabaseService db = database.getDatabase();
+		Transaction tx = db.beginTx();
+		try {
+			for (Geometry geometry : geometries) {
+				encoder.encodeGeometry(geometry, db.createNode());
+			}
+		} finally {
+			tx.finish();
+		}
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(GEOMETRY_COUNT)
+	public void decode(Blackhole blackhole) {
+		for (Node node : encodedNodes) {
+			blackhole.consume(encoder.decodeGeometry(node));
+		}
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(GEOMETRY_COUNT)
+	public void decodeEnvelope(Blackhole blackhole) {
+		for (Node node : encodedNodes) {
+			blackhole.consume(encoder.decodeEnvelope(node));
+		}
+	}
+
+	
+	// Attributes
+	
+	@Param({ "WKB", "WKT", "SimplePoint", "OSM" })
+	public String encoding;
+	
+	private static final int GEOMETRY_COUNT = 1000;
+	private static final int LINE_VERTICES = 16;
+	
+	private BenchmarkDatabase database;
+	private GeometryEncoder encoder;
+	private List<Geometry> geometries;
+	private List<Node> encodedNodes;
+}
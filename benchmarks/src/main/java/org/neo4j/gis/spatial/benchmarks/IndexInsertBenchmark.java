@@ -0,0 +1,139 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.gis.spatial.RTreeIndex;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Insert throughput of RTreeIndex, one geometry at a time and with a bulk
+ * load. Run with the gc profiler (the default of BenchmarkRunner) to see the
+ * bytes allocated per insert in gc.alloc.rate.norm, which covers the bounding
+ * box math of chooseSubTree, the leaf update and the splits.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class IndexInsertBenchmark {
+
+	// Public methods
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		database = new BenchmarkDatabase();
+		Random random = new Random(treeSize);
+		index = (RTreeIndex) database.getSpatialService().getOrCreateDefaultLayer("insert").getIndex();
+		database.addAll(index, database.createBBoxNodes(treeSize, GEOMETRY_SIZE, random));
+		newNodes = database.createBBoxNodes(INSERTS_PER_INVOCATION, GEOMETRY_SIZE, random);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		database.shutdown();
+	}
+	
+	/**
+	 * Insert into a tree of treeSize geometries. The transaction is rolled
+	 * back, so every invocation starts from the same tree.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(INSERTS_PER_INVOCATION)
+	public void add() {
+		Transaction tx = database.getDatabase().beginTx();
+		try {
+			for (Node node : newNodes) {
+				index.add(node);
+			}
+		} finally {
+			tx.finish();
+		}
+	}
+	
+	/**
+	 * Bulk load treeSize geometries into an empty layer.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 2)
+	@Measurement(iterations = 5)
+	public void addAll(BulkLoadState state) {
+		state.index.addAll(state.nodes);
+	}
+
+	
+	// Public classes
+	
+	/**
+	 * A new empty layer, and treeSize unindexed geometries, for every bulk
+	 * load.
+	 */
+	@State(Scope.Thread)
+	public static class BulkLoadState {
+		
+		@Setup(Level.Invocation)
+		public void setUp(IndexInsertBenchmark benchmark) {
+			index = (RTreeIndex) benchmark.database.getSpatialService().getOrCreateDefaultLayer("bulk" + layerCount++).getIndex();
+			nodes = benchmark.database.createBBoxNodes(benchmark.treeSize, GEOMETRY_SIZE, random);
+		}
+		
+		private Random random = new Random(0);
+		private int layerCount;
+		private RTreeIndex index;
+		private List<Node> nodes;
+	}
+
+	
+	// Attributes
+	
+	@Param({ "1000", "100000" })
+	public int treeSize;
+	
+	private static final int INSERTS_PER_INVOCATION = 100;
+	private static final double GEOMETRY_SIZE = 0.1;
+	
+	private BenchmarkDatabase database;
+	private RTreeIndex index;
+	private List<Node> newNodes;
+}
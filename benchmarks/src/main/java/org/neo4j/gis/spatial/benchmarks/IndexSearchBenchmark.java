@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.benchmarks;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.gis.spatial.EditableLayer;
+import org.neo4j.gis.spatial.RTreeIndex;
+import org.neo4j.gis.spatial.query.SearchIntersect;
+import org.neo4j.gis.spatial.query.SearchIntersectWindow;
+import org.neo4j.gis.spatial.query.SearchWithinDistance;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+
+/**
+ * Search latency of RTreeIndex on a layer of random points. Every invocation
+ * searches at a new place, from a fixed seed, so runs are comparable. Each
+ * benchmark returns the number of results, which also keeps the JIT from
+ * discarding the search.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class IndexSearchBenchmark {
+
+	// Public methods
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		database = new BenchmarkDatabase();
+		layer = database.getSpatialService().getOrCreateEditableLayer("search");
+		database.addPoints(layer, layerSize, new Random(layerSize));
+		index = (RTreeIndex) layer.getIndex();
+		factory = layer.getGeometryFactory();
+		random = new Random(0);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		database.shutdown();
+	}
+	
+	@Benchmark
+	public int window() {
+		SearchIntersectWindow search = new SearchIntersectWindow(nextWindow());
+		index.executeSearch(search);
+		return search.getResults().size();
+	}
+	
+	@Benchmark
+	public int intersect() {
+		SearchIntersect search = new SearchIntersect(BenchmarkDatabase.createShape(factory, 8, WINDOW_SIZE / 2, true, random));
+		index.executeSearch(search);
+		return search.getResults().size();
+	}
+	
+	@Benchmark
+	public int withinDistance() {
+		SearchWithinDistance search = new SearchWithinDistance(factory.createPoint(BenchmarkDatabase.randomCoordinate(random)),
+				WINDOW_SIZE / 2);
+		index.executeSearch(search);
+		return search.getResults().size();
+	}
+	
+	@Benchmark
+	public int nearestNeighbours() {
+		return index.findNearest(BenchmarkDatabase.randomCoordinate(random), NEIGHBOURS).size();
+	}
+
+	
+	// Private methods
+	
+	private Envelope nextWindow() {
+		Coordinate corner = new Coordinate(random.nextDouble() * (BenchmarkDatabase.EXTENT - WINDOW_SIZE), random.nextDouble()
+				* (BenchmarkDatabase.EXTENT - WINDOW_SIZE));
+		return new Envelope(corner.x, corner.x + WINDOW_SIZE, corner.y, corner.y + WINDOW_SIZE);
+	}
+
+	
+	// Attributes
+	
+	@Param({ "10000", "100000" })
+	public int layerSize;
+	
+	// about a thousandth of the layer
+	private static final double WINDOW_SIZE = BenchmarkDatabase.EXTENT / 32;
+	private static final int NEIGHBOURS = 10;
+	
+	private BenchmarkDatabase database;
+	private EditableLayer layer;
+	private RTreeIndex index;
+	private GeometryFactory factory;
+	private Random random;
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.gis.spatial.NullListener;
+import org.neo4j.gis.spatial.osm.OSMImporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Time to import an OSM file into an empty database and index it. The
+ * default is the map.osm bundled with the sources, found from the benchmarks
+ * directory; another file can be given with -p osmFile=path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OSMImportBenchmark {
+
+	// Public methods
+	
+	@Setup(Level.Trial)
+	public void checkFile() {
+		if (!new File(osmFile).isFile()) {
+			throw new IllegalArgumentException("OSM file not found: " + new File(osmFile).getAbsolutePath());
+		}
+	}
+	
+	@Setup(Level.Invocation)
+	public void setUp() throws Exception {
+		database = new BenchmarkDatabase();
+	}
+	
+	@TearDown(Level.Invocation)
+	public void tearDown() {
+		database.shutdown();
+	}
+	
+	@Benchmark
+	public void importAndIndex() throws Exception {
+		OSMImporter importer = new OSMImporter("osm", new NullListener());
+		importer.importFile(database.getDatabase(), osmFile, false, COMMIT_INTERVAL);
+		importer.reIndex(database.getDatabase(), COMMIT_INTERVAL);
+	}
+
+	
+	// Attributes
+	
+	@Param({ "../map.osm" })
+	public String osmFile;
+	
+	private static final int COMMIT_INTERVAL = 5000;
+	
+	private BenchmarkDatabase database;
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.NullListener;
+import org.neo4j.gis.spatial.ShapefileImporter;
+import org.neo4j.gis.spatial.SpatialDatabaseRecord;
+import org.neo4j.gis.spatial.query.SearchAll;
+import org.neo4j.gis.spatial.query.SearchIntersect;
+import org.neo4j.gis.spatial.query.SearchWithin;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+
+
+/**
+ * Predicates of a municipality polygon against its neighbours, from the
+ * sweden_administrative test shapefile. The raw and prepared benchmarks test
+ * the same decoded candidates in memory, so they show the cost of the
+ * predicates alone, including the preparation. The search benchmarks run the
+ * SearchIntersect and SearchWithin queries, which prepare their query
+ * geometry, against the layer index.
+ * 
+ * The query is the polygon of rank queryRank when ordered by number of
+ * vertices, so rank 0 is the most complex boundary.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PreparedGeometryBenchmark {
+
+	// Public methods
+	
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		if (!new File(shpFile + ".shp").isFile()) {
+			throw new IllegalArgumentException("Shapefile not found: " + new File(shpFile + ".shp").getAbsolutePath());
+		}
+		database = new BenchmarkDatabase();
+		new ShapefileImporter(database.getDatabase(), new NullListener()).importFile(shpFile, "administrative");
+		layer = database.getSpatialService().getLayer("administrative");
+		
+		SearchAll all = new SearchAll();
+		layer.getIndex().executeSearch(all);
+		List<Geometry> polygons = new ArrayList<Geometry>();
+		for (SpatialDatabaseRecord record : all.getResults()) {
+			String type = record.getGeometry().getGeometryType();
+			if ("Polygon".equals(type) || "MultiPolygon".equals(type)) {
+				polygons.add(record.getGeometry());
+			}
+		}
+		Collections.sort(polygons, new Comparator<Geometry>() {
+			public int compare(Geometry g1, Geometry g2) {
+				return g2.getNumPoints() - g1.getNumPoints();
+			}
+		});
+		query = polygons.get(Math.min(queryRank, polygons.size() - 1));
+		
+		candidates = new ArrayList<Geometry>();
+		for (SpatialDatabaseRecord record : all.getResults()) {
+			if (record.getGeometry().getEnvelopeInternal().intersects(query.getEnvelopeInternal())) {
+				candidates.add(record.getGeometry());
+			}
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		database.shutdown();
+	}
+	
+	@Benchmark
+	public int rawIntersects() {
+		int count = 0;
+		for (Geometry candidate : candidates) {
+			if (candidate.intersects(query)) count++;
+		}
+		return count;
+	}
+	
+	@Benchmark
+	public int preparedIntersects() {
+		PreparedGeometry prepared = PreparedGeometryFactory.prepare(query);
+		int count = 0;
+		for (Geometry candidate : candidates) {
+			if (prepared.intersects(candidate)) count++;
+		}
+		return count;
+	}
+	
+	@Benchmark
+	public int rawWithin() {
+		int count = 0;
+		for (Geometry candidate : candidates) {
+			if (candidate.within(query)) count++;
+		}
+		return count;
+	}
+	
+	@Benchmark
+	public int preparedWithin() {
+		PreparedGeometry prepared = PreparedGeometryFactory.prepare(query);
+		int count = 0;
+		for (Geometry candidate : candidates) {
+			if (prepared.contains(candidate)) count++;
+		}
+		return count;
+	}
+	
+	@Benchmark
+	public int searchIntersect() {
+		SearchIntersect search = new SearchIntersect(query);
+		layer.getIndex().executeSearch(search);
+		return search.getResults().size();
+	}
+	
+	@Benchmark
+	public int searchWithin() {
+		SearchWithin search = new SearchWithin(query);
+		layer.getIndex().executeSearch(search);
+		return search.getResults().size();
+	}
+
+	
+	// Attributes
+	
+	@Param({ "target/shp/sweden_administrative" })
+	public String shpFile;
+	
+	@Param({ "0", "50" })
+	public int queryRank;
+	
+	private BenchmarkDatabase database;
+	private Layer layer;
+	private Geometry query;
+	private List<Geometry> candidates;
+}
@@ -20,6 +20,7 @@
 package org.neo4j.gis.spatial;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.neo4j.graphdb.Node;
@@ -32,7 +33,7 @@ import com.vividsolutions.jts.geom.Geometry;
 /**
  * @author Davide Savazzi
  */
-public abstract class AbstractSearch implements Search {
+public abstract class AbstractSearch implements Search, SpatialIndexCoveringVisitor {
 	
 	// Constructor
 	
@@ -51,15 +52,81 @@ public abstract class AbstractSearch implements Search {
 		return results;
 	}
 	
+	/**
+	 * @return true if onIndexReference can be called from several threads at
+	 *         once, which is needed for a parallel RTreeIndex search. This is
+	 *         false unless a search opts in, which it may only do if it keeps
+	 *         no state that changes between geometries and does not write to
+	 *         the database, for example with add(Node, Geometry, String,
+	 *         Comparable).
+	 */
+	public boolean isParallelSafe() {
+		return false;
+	}
+	
+	/**
+	 * Searches that can decide from a bounding box alone that every geometry
+	 * inside it is a result override this, the default never covers.
+	 */
+	public boolean coversIndexNode(double[] indexNodeBoundingBox) {
+		return false;
+	}
+	
+	/**
+	 * Add the geometry node as a result, without decoding it.
+	 */
+	public void onCoveredIndexReference(Node geomNode) {
+		add(geomNode);
+	}
+	
+	
+	// Parallel execution
+	
+	/**
+	 * Start collecting results from several threads. With orderedResults,
+	 * every partition collects into its own list and the lists are appended
+	 * to the results in partition order by endParallel, otherwise all threads
+	 * add to the results directly.
+	 */
+	void beginParallel(int partitionCount, boolean orderedResults) {
+		if (orderedResults) {
+			partitions = new ArrayList<List<SpatialDatabaseRecord>>(partitionCount);
+			for (int i = 0; i < partitionCount; i++) {
+				partitions.add(new ArrayList<SpatialDatabaseRecord>());
+			}
+			currentPartition = new ThreadLocal<List<SpatialDatabaseRecord>>();
+		} else {
+			sharedResults = Collections.synchronizedList(results);
+		}
+	}
+	
+	/**
+	 * Make the calling thread collect into the given partition.
+	 */
+	void setPartition(int partition) {
+		if (partitions != null) currentPartition.set(partitions.get(partition));
+	}
+	
+	void endParallel() {
+		if (partitions != null) {
+			for (List<SpatialDatabaseRecord> partition : partitions) {
+				results.addAll(partition);
+			}
+		}
+		partitions = null;
+		currentPartition = null;
+		sharedResults = null;
+	}
+	
 	
 	// Private methods
 	
 	protected void add(Node geomNode) {
-		results.add(new SpatialDatabaseRecord(layer, geomNode));
+		getSink().add(new SpatialDatabaseRecord(layer, geomNode));
 	}
 
 	protected void add(Node geomNode, Geometry geom) {
-		results.add(new SpatialDatabaseRecord(layer, geomNode, geom));
+		getSink().add(new SpatialDatabaseRecord(layer, geomNode, geom));
 	}
 	
 	protected void add(Node geomNode, Geometry geom, String property, Comparable<?> value) {
@@ -72,12 +139,39 @@ public abstract class AbstractSearch implements Search {
 			tx.finish();
 		}
 		result.setUserData(value);
-		results.add(result);
+		getSink().add(result);
 	}
 	
 	protected double[] getEnvelope(Node geomNode) {
 		return layer.getGeometryEncoder().decodeEnvelope(geomNode);	
 	}
+	
+	/**
+	 * @return the bounding box of the geometry as a JTS Envelope
+	 */
+	protected Envelope getJTSEnvelope(Node geomNode) {
+		// decodeEnvelope is in Envelope order: xmin, xmax, ymin, ymax
+		double[] bounds = getEnvelope(geomNode);
+		return new Envelope(bounds[0], bounds[1], bounds[2], bounds[3]);
+	}
+	
+	/**
+	 * @return true if the x and y range of the index node bounding box, in
+	 *         index order (xmin, ymin, xmax, ymax), intersects the envelope
+	 */
+	protected static boolean intersects(double[] indexNodeBoundingBox, Envelope envelope) {
+		return indexNodeBoundingBox[0] <= envelope.getMaxX() && indexNodeBoundingBox[2] >= envelope.getMinX()
+				&& indexNodeBoundingBox[1] <= envelope.getMaxY() && indexNodeBoundingBox[3] >= envelope.getMinY();
+	}
+	
+	/**
+	 * @return true if the envelope covers the x and y range of the index node
+	 *         bounding box, in index order (xmin, ymin, xmax, ymax)
+	 */
+	protected static boolean covers(Envelope envelope, double[] indexNodeBoundingBox) {
+		return envelope.getMinX() <= indexNodeBoundingBox[0] && indexNodeBoundingBox[2] <= envelope.getMaxX()
+				&& envelope.getMinY() <= indexNodeBoundingBox[1] && indexNodeBoundingBox[3] <= envelope.getMaxY();
+	}
 
 	protected Geometry decode(Node geomNode) {
 		return layer.getGeometryEncoder().decodeGeometry(geomNode);
@@ -87,9 +181,18 @@ public abstract class AbstractSearch implements Search {
 		this.results.clear();
 	}
 	
+	private List<SpatialDatabaseRecord> getSink() {
+		if (partitions != null) return currentPartition.get();
+		else if (sharedResults != null) return sharedResults;
+		else return results;
+	}
+	
 	// Attributes
 
 	private Layer layer;
 	
 	private List<SpatialDatabaseRecord> results;
+	private volatile List<List<SpatialDatabaseRecord>> partitions;
+	private volatile ThreadLocal<List<SpatialDatabaseRecord>> currentPartition;
+	private volatile List<SpatialDatabaseRecord> sharedResults;
 }
\ No newline at end of file
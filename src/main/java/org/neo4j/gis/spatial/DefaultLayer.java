@@ -30,6 +30,7 @@ import org.neo4j.gis.spatial.encoders.Configurable;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.ReturnableEvaluator;
 import org.neo4j.graphdb.StopEvaluator;
 import org.neo4j.graphdb.Transaction;
@@ -115,6 +116,9 @@ public class DefaultLayer implements Constants, Layer, SpatialDataset {
         Node layerNode = getLayerNode();
         if (layerNode.hasProperty(PROP_TYPE)) {
             return (Integer) layerNode.getProperty(PROP_TYPE);
+        } else if (index instanceof RTreeIndex) {
+            // the most common type, or null if the layer is empty
+            return ((RTreeIndex) index).getStatistics().getGeometryType();
         } else {
             GuessGeometryTypeSearch geomTypeSearch = new GuessGeometryTypeSearch();
             index.executeSearch(geomTypeSearch);
@@ -142,6 +146,10 @@ public class DefaultLayer implements Constants, Layer, SpatialDataset {
 			// TODO Auto-generated method stub
 			return firstFoundType == null;
 		}
+
+		public boolean isParallelSafe() {
+			return false;
+		}
     }
 
     public String[] getExtraPropertyNames() {
@@ -244,7 +252,7 @@ public class DefaultLayer implements Constants, Layer, SpatialDataset {
         this.spatialDatabase = spatialDatabase;
         this.name = name;
         this.layerNode = layerNode;
-        this.index = new RTreeIndex(spatialDatabase.getDatabase(), this);
+        this.index = makeIndex();
         
         // TODO read Precision Model and SRID from layer properties and use them to construct GeometryFactory
         this.geometryFactory = new GeometryFactory();
@@ -267,6 +275,40 @@ public class DefaultLayer implements Constants, Layer, SpatialDataset {
         this.geometryEncoder.init(this);
     }
     
+    /**
+     * Construct the index for this layer. The index type is read from the index metadata node,
+     * and layers without a recorded type use the standard RTreeIndex.
+     */
+    protected SpatialIndexWriter makeIndex() {
+        Relationship metadataRel = layerNode.getSingleRelationship(SpatialRelationshipTypes.RTREE_METADATA, Direction.OUTGOING);
+        if (metadataRel != null
+                && HilbertRTreeIndex.INDEX_TYPE_HILBERT.equals(metadataRel.getEndNode().getProperty(RTreeIndex.PROP_INDEX_TYPE, null))) {
+            return new HilbertRTreeIndex(getDatabase(), this);
+        } else {
+            return new RTreeIndex(getDatabase(), this);
+        }
+    }
+
+    /**
+     * Change the type of index used by this layer, for example to
+     * HilbertRTreeIndex.INDEX_TYPE_HILBERT. The type is saved in the index metadata node, so it is
+     * used again when the layer is next loaded. This is only possible while the index is empty.
+     */
+    public void setIndexType(String indexType) {
+        if (!index.isEmpty()) {
+            throw new SpatialDatabaseException("Cannot change the index type of non-empty layer '" + name + "'");
+        }
+        Transaction tx = getDatabase().beginTx();
+        try {
+            Node metadataNode = layerNode.getSingleRelationship(SpatialRelationshipTypes.RTREE_METADATA, Direction.OUTGOING).getEndNode();
+            metadataNode.setProperty(RTreeIndex.PROP_INDEX_TYPE, indexType);
+            this.index = makeIndex();
+            tx.success();
+        } finally {
+            tx.finish();
+        }
+    }
+
     /**
      * All layers are associated with a single node in the database. This node will have properties,
      * relationships (sub-graph) or both to describe the contents of the layer
@@ -22,6 +22,7 @@ package org.neo4j.gis.spatial;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -96,6 +97,10 @@ public class DynamicLayer extends EditableLayerImpl {
 			index.executeSearch(search);
 		}
 
+		public Iterator<SpatialDatabaseRecord> search(Search search, int limit) {
+			return index.search(search, limit);
+		}
+
 		public SpatialDatabaseRecord get(Long geomNodeId) {
 			return index.get(geomNodeId);
 		}
@@ -203,6 +208,10 @@ public class DynamicLayer extends EditableLayerImpl {
 		public void executeSearch(final Search search) {
 			index.executeSearch(new FilteredSearch(search));
 		}
+
+		public Iterator<SpatialDatabaseRecord> search(Search search, int limit) {
+			return index.search(new FilteredSearch(search), limit);
+		}
     }
 
 	/**
@@ -319,7 +328,15 @@ public class DynamicLayer extends EditableLayerImpl {
 		}
 
 		public void executeSearch(final Search search) {
-			index.executeSearch(new Search() {
+			index.executeSearch(filtered(search));
+		}
+
+		public Iterator<SpatialDatabaseRecord> search(Search search, int limit) {
+			return index.search(filtered(search), limit);
+		}
+
+		private Search filtered(final Search search) {
+			return new Search() {
 
 				public List<SpatialDatabaseRecord> getResults() {
 					return search.getResults();
@@ -339,7 +356,7 @@ public class DynamicLayer extends EditableLayerImpl {
 						search.onIndexReference(geomNode);
 					}
 				}
-			});
+			};
 		}
 
 	}
@@ -57,11 +57,17 @@ public class EditableLayerImpl extends DefaultLayer implements EditableLayer {
 	public void update(long geomNodeId, Geometry geometry) {
 		Transaction tx = getDatabase().beginTx();
 		try {
-			index.remove(geomNodeId, false);
-
 			Node geomNode = getDatabase().getNodeById(geomNodeId);
-			getGeometryEncoder().encodeGeometry(geometry, geomNode);
-			index.add(geomNode);
+			Object gtype = geomNode.getProperty(PROP_TYPE, null);
+			if (gtype == null || gtype.equals(SpatialDatabaseService.convertJtsClassToGeometryType(geometry.getClass()))) {
+				getGeometryEncoder().encodeGeometry(geometry, geomNode);
+				index.move(geomNode);
+			} else {
+				// the geometry type counts of the index change as well
+				index.remove(geomNodeId, false);
+				getGeometryEncoder().encodeGeometry(geometry, geomNode);
+				index.add(geomNode);
+			}
 			tx.success();
 		} finally {
 			tx.finish();
@@ -0,0 +1,386 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+
+
+/**
+ * An RTreeIndex that keeps its entries ordered by the Hilbert value of the
+ * centre of their bounding box. Every non-root index node stores the largest
+ * Hilbert value found in its subtree (LHV), so a new geometry descends to the
+ * first child with an LHV not smaller than its own value. Splits sort the
+ * entries by Hilbert value and cut them in half, which is deterministic and
+ * linear instead of the quadratic seed search of RTreeIndex.quadraticSplit.
+ * 
+ * The Hilbert values are calculated on a grid over a fixed extent, stored in
+ * the index metadata node. The extent can be set with setHilbertBounds while
+ * the index is empty. Otherwise it is taken from the geometries of the first
+ * bulk load with addAll(Iterable), or is -180, -90, 180, 90 if a geometry is
+ * added on its own first. Coordinates outside the extent are clamped to its
+ * border, which keeps the index correct but reduces the benefit of the
+ * ordering. After removals the LHV of an index node is only an upper bound.
+ * 
+ * Select this index for a layer with
+ * DefaultLayer.setIndexType(HilbertRTreeIndex.INDEX_TYPE_HILBERT).
+ */
+public class HilbertRTreeIndex extends RTreeIndex {
+
+	public static final String INDEX_TYPE_HILBERT = "hilbert";
+	public static final String PROP_LHV = "lhv";
+	public static final String PROP_HILBERT_BOUNDS = "hilbertBounds";
+	
+	// Constructor
+	
+	public HilbertRTreeIndex(GraphDatabaseService database, Layer layer) {
+		this(database, layer, 100, 51);
+	}
+
+	public HilbertRTreeIndex(GraphDatabaseService database, Layer layer, int maxNodeReferences, int minNodeReferences) {
+		super(database, layer, maxNodeReferences, minNodeReferences);
+		initHilbertMetadata();
+	}
+
+	
+	// Public methods
+	
+	/**
+	 * Concurrent writers are not supported, since every insert can raise the
+	 * LHV of the index nodes all the way up to the root.
+	 */
+	public synchronized void setConcurrentWriters(boolean enabled) {
+		if (enabled) {
+			throw new SpatialDatabaseException("Concurrent writers are not supported by the Hilbert R-tree index of layer '" + layer.getName() + "'");
+		}
+		super.setConcurrentWriters(false);
+	}
+	
+	/**
+	 * Set the extent of the Hilbert grid, in index order (xmin, ymin, xmax,
+	 * ymax). This is only possible while the index is empty, since the LHV
+	 * of existing index nodes depend on it.
+	 */
+	public void setHilbertBounds(double[] hilbertBounds) {
+		if (!isEmpty()) {
+			throw new SpatialDatabaseException("Cannot change the Hilbert grid of non-empty layer '" + layer.getName() + "'");
+		}
+		if (hilbertBounds.length < 4 || hilbertBounds[2] <= hilbertBounds[0] || hilbertBounds[3] <= hilbertBounds[1]) {
+			throw new SpatialDatabaseException("Invalid Hilbert grid extent for layer '" + layer.getName() + "'");
+		}
+		storeBounds(new double[] { hilbertBounds[0], hilbertBounds[1], hilbertBounds[2], hilbertBounds[3] });
+	}
+	
+	/**
+	 * @return the extent of the Hilbert grid in index order (xmin, ymin, xmax,
+	 *         ymax)
+	 */
+	public double[] getHilbertBounds() {
+		return getBounds().clone();
+	}
+	
+	/**
+	 * Calculate the Hilbert value of the centre of an index bounding box (xmin,
+	 * ymin, xmax, ymax) on the grid covering this index extent.
+	 */
+	public long getHilbertValue(double[] bbox) {
+		double[] grid = getBounds();
+		double x = (bbox[0] + bbox[2]) / 2.0;
+		double y = (bbox[1] + bbox[3]) / 2.0;
+		return hilbertValue(HILBERT_ORDER, toGrid(x, grid[0], grid[2]), toGrid(y, grid[1], grid[3]));
+	}
+	
+	/**
+	 * Convert grid coordinates to a distance along the Hilbert curve filling
+	 * a square grid of side 2^order.
+	 */
+	public static long hilbertValue(int order, long x, long y) {
+		long n = 1L << order;
+		long d = 0;
+		for (long s = n / 2; s > 0; s /= 2) {
+			long rx = (x & s) > 0 ? 1 : 0;
+			long ry = (y & s) > 0 ? 1 : 0;
+			d += s * s * ((3 * rx) ^ ry);
+			// rotate the quadrant
+			if (ry == 0) {
+				if (rx == 1) {
+					x = n - 1 - x;
+					y = n - 1 - y;
+				}
+				long t = x;
+				x = y;
+				y = t;
+			}
+		}
+		return d;
+	}
+	
+	
+	// Protected methods
+	
+	protected String getIndexType() {
+		return INDEX_TYPE_HILBERT;
+	}
+	
+	/**
+	 * Choose the child with the smallest LHV greater than or equal to the
+	 * Hilbert value of the new geometry, or the child with the largest LHV if
+	 * the new geometry comes after all of them.
+	 */
+	protected Node chooseSubTree(Node parentIndexNode, Node geomRootNode) {
+		long hilbertValue = getGeometryHilbertValue(geomRootNode);
+		
+		Node best = null;
+		long bestLhv = Long.MAX_VALUE;
+		Node last = null;
+		long lastLhv = Long.MIN_VALUE;
+		for (Relationship relation : parentIndexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+			Node indexNode = relation.getEndNode();
+			long lhv = getLhv(indexNode);
+			if (lhv >= hilbertValue && lhv < bestLhv) {
+				best = indexNode;
+				bestLhv = lhv;
+			}
+			if (lhv > lastLhv) {
+				last = indexNode;
+				lastLhv = lhv;
+			}
+		}
+		
+		if (best != null) {
+			return best;
+		} else if (last != null) {
+			return last;
+		} else {
+			// this shouldn't happen
+			throw new SpatialDatabaseException("No IndexNode found for new geometry");
+		}
+	}
+	
+	/**
+	 * Insert the geometry and raise the LHV of the index nodes on the path to
+	 * the root where needed.
+	 */
+	protected boolean insertInLeaf(Node indexNode, Node geomRootNode) {
+		if (getStoredBounds() == null) {
+			// the first geometry fixes the default extent
+			storeBounds(DEFAULT_BOUNDS);
+		}
+		boolean enlarged = super.insertInLeaf(indexNode, geomRootNode);
+		long hilbertValue = getGeometryHilbertValue(geomRootNode);
+		Node node = indexNode;
+		while (node != null && (!node.hasProperty(PROP_LHV) || getLhv(node) < hilbertValue)) {
+			node.setProperty(PROP_LHV, hilbertValue);
+			node = boundingBox.getIndexNodeParent(node);
+		}
+		return enlarged;
+	}
+
+	/**
+	 * Sort the entries of the overflowing node by Hilbert value, keep the
+	 * first half and move the second half to a new index node.
+	 */
+	protected Node splitIndexNode(Node indexNode) {
+		RelationshipType relationshipType = nodeIsLeaf(indexNode) ? SpatialRelationshipTypes.RTREE_REFERENCE : SpatialRelationshipTypes.RTREE_CHILD;
+		
+		List<HilbertEntry> entries = new ArrayList<HilbertEntry>();
+		for (Relationship relationship : indexNode.getRelationships(relationshipType, Direction.OUTGOING)) {
+			Node child = relationship.getEndNode();
+			long hilbertValue = relationshipType == SpatialRelationshipTypes.RTREE_REFERENCE ? getGeometryHilbertValue(child) : getLhv(child);
+			entries.add(new HilbertEntry(child, hilbertValue));
+			relationship.delete();
+		}
+		Collections.sort(entries, new HilbertEntryComparator());
+		
+		int half = entries.size() / 2;
+		indexNode.removeProperty(PROP_BBOX);
+		for (HilbertEntry entry : entries.subList(0, half)) {
+			boundingBox.addChild(indexNode, relationshipType, entry.node);
+		}
+		indexNode.setProperty(PROP_LHV, entries.get(half - 1).hilbertValue);
+		
+		Node newIndexNode = database.createNode();
+		for (HilbertEntry entry : entries.subList(half, entries.size())) {
+			boundingBox.addChild(newIndexNode, relationshipType, entry.node);
+		}
+		newIndexNode.setProperty(PROP_LHV, entries.get(entries.size() - 1).hilbertValue);
+		
+		return newIndexNode;
+	}
+	
+	/**
+	 * Bulk loads pack consecutive runs of entries in Hilbert order. The first
+	 * bulk load into an index without an extent sets it to the extent of its
+	 * entries.
+	 */
+	protected List<List<IndexEntry>> groupEntries(List<IndexEntry> entries) {
+		if (getStoredBounds() == null && isEmpty()) {
+			double[] extent = new double[] { Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+			for (IndexEntry entry : entries) {
+				extent[0] = Math.min(extent[0], entry.bbox[0]);
+				extent[1] = Math.min(extent[1], entry.bbox[1]);
+				extent[2] = Math.max(extent[2], entry.bbox[2]);
+				extent[3] = Math.max(extent[3], entry.bbox[3]);
+			}
+			if (extent[2] > extent[0] && extent[3] > extent[1]) {
+				storeBounds(extent);
+			} else {
+				storeBounds(DEFAULT_BOUNDS);
+			}
+		}
+		
+		List<HilbertEntry> sorted = new ArrayList<HilbertEntry>(entries.size());
+		for (IndexEntry entry : entries) {
+			sorted.add(new HilbertEntry(entry, getEntryHilbertValue(entry)));
+		}
+		Collections.sort(sorted, new HilbertEntryComparator());
+		
+		entries.clear();
+		for (HilbertEntry entry : sorted) {
+			entries.add(entry.indexEntry);
+		}
+		return partition(entries, (int) Math.ceil((double) entries.size() / maxNodeReferences));
+	}
+	
+	protected void onPackedIndexNode(Node indexNode, List<IndexEntry> group) {
+		long lhv = Long.MIN_VALUE;
+		for (IndexEntry entry : group) {
+			lhv = Math.max(lhv, getEntryHilbertValue(entry));
+		}
+		indexNode.setProperty(PROP_LHV, lhv);
+	}
+	
+	
+	// Private methods
+	
+	private void initHilbertMetadata() {
+		Node metadataNode = getMetadataNode();
+		if (!INDEX_TYPE_HILBERT.equals(metadataNode.getProperty(PROP_INDEX_TYPE, null))) {
+			Transaction tx = database.beginTx();
+			try {
+				metadataNode.setProperty(PROP_INDEX_TYPE, INDEX_TYPE_HILBERT);
+				tx.success();
+			} finally {
+				tx.finish();
+			}
+		}
+	}
+	
+	/**
+	 * @return the extent of the Hilbert grid, or null if it has not been
+	 *         fixed yet
+	 */
+	private double[] getStoredBounds() {
+		if (bounds == null) {
+			Node metadataNode = getMetadataNode();
+			if (metadataNode != null && metadataNode.hasProperty(PROP_HILBERT_BOUNDS)) {
+				bounds = (double[]) metadataNode.getProperty(PROP_HILBERT_BOUNDS);
+			}
+		}
+		return bounds;
+	}
+	
+	private double[] getBounds() {
+		double[] stored = getStoredBounds();
+		return stored == null ? DEFAULT_BOUNDS : stored;
+	}
+	
+	private void storeBounds(double[] hilbertBounds) {
+		Transaction tx = database.beginTx();
+		try {
+			getMetadataNode().setProperty(PROP_HILBERT_BOUNDS, hilbertBounds);
+			bounds = hilbertBounds;
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+	
+	private long getLhv(Node indexNode) {
+		return (Long) indexNode.getProperty(PROP_LHV, 0L);
+	}
+	
+	/**
+	 * Bulk load entries are geometry nodes on the first level, and index nodes
+	 * that already carry an LHV on the levels above.
+	 */
+	private long getEntryHilbertValue(IndexEntry entry) {
+		if (entry.node.hasProperty(PROP_LHV)) {
+			return getLhv(entry.node);
+		} else {
+			return getHilbertValue(entry.bbox);
+		}
+	}
+	
+	private long getGeometryHilbertValue(Node geomNode) {
+		return getHilbertValue(boundingBox.getGeometryNodeBoundingBox(geomNode));
+	}
+	
+	private static long toGrid(double value, double min, double max) {
+		long cells = 1L << HILBERT_ORDER;
+		if (max <= min) return 0;
+		long cell = (long) ((value - min) / (max - min) * cells);
+		return Math.max(0, Math.min(cells - 1, cell));
+	}
+	
+	
+	// Attributes
+	
+	private double[] bounds;
+	
+	private static final int HILBERT_ORDER = 16;
+	private static final double[] DEFAULT_BOUNDS = new double[] { -180.0, -90.0, 180.0, 90.0 };
+	
+	
+	// Private classes
+	
+	private static class HilbertEntry {
+		
+		HilbertEntry(Node node, long hilbertValue) {
+			this.node = node;
+			this.hilbertValue = hilbertValue;
+		}
+		
+		HilbertEntry(IndexEntry indexEntry, long hilbertValue) {
+			this(indexEntry.node, hilbertValue);
+			this.indexEntry = indexEntry;
+		}
+		
+		private Node node;
+		private IndexEntry indexEntry;
+		private long hilbertValue;
+	}
+	
+	private static class HilbertEntryComparator implements Comparator<HilbertEntry> {
+		
+		public int compare(HilbertEntry e1, HilbertEntry e2) {
+			return e1.hilbertValue < e2.hilbertValue ? -1 : (e1.hilbertValue == e2.hilbertValue ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,270 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+
+
+/**
+ * Best-first k-nearest-neighbour search over an RTreeIndex. Index nodes and
+ * geometries are kept in one priority queue, ordered by the smallest distance
+ * they can have to the query point. Index nodes are expanded into their
+ * children, geometries are first queued by the distance to their bounding box
+ * and only decoded when they reach the head of the queue. A decoded geometry
+ * at the head of the queue is closer than anything left in it, so it is
+ * returned, and the search stops as soon as k geometries have been returned.
+ * 
+ * Subclasses define the metric. Planar uses the coordinate units of the
+ * layer, Orthodromic the great-circle distance in km for layers in
+ * longitude / latitude degrees.
+ */
+public abstract class NearestNeighbourSearch {
+
+	// Constructor
+	
+	public NearestNeighbourSearch(Coordinate point) {
+		this.point = point;
+	}
+
+	
+	// Public methods
+	
+	/**
+	 * @return the k closest geometries in the index, closest first, with their
+	 *         distance to the point as user data
+	 */
+	public List<SpatialDatabaseRecord> search(RTreeIndex index, int k) {
+		List<SpatialDatabaseRecord> results = new ArrayList<SpatialDatabaseRecord>();
+		RTreeIndexInsertBuffer buffer = index.getInsertBuffer();
+		List<RTreeIndexInsertBuffer.Entry> bufferedEntries = buffer == null ? new ArrayList<RTreeIndexInsertBuffer.Entry>() : buffer.getEntries();
+		if (k <= 0 || (index.isEmpty() && bufferedEntries.isEmpty())) return results;
+		
+		Layer layer = index.layer;
+		PriorityQueue<QueueEntry> queue = new PriorityQueue<QueueEntry>(64, new QueueEntryComparator());
+		if (!index.isEmpty()) {
+			Node root = index.getIndexRoot();
+			queue.add(new QueueEntry(QueueEntry.INDEX_NODE, root, null, getDistance((double[]) root.getProperty(Constants.PROP_BBOX))));
+		}
+		for (RTreeIndexInsertBuffer.Entry bufferedEntry : bufferedEntries) {
+			Node geomNode = buffer.getNode(bufferedEntry);
+			if (geomNode != null) {
+				queue.add(new QueueEntry(QueueEntry.GEOMETRY_BBOX, geomNode, null, getDistance(bufferedEntry.getBoundingBox())));
+			}
+		}
+		
+		while (!queue.isEmpty() && results.size() < k) {
+			QueueEntry entry = queue.poll();
+			switch (entry.type) {
+			case QueueEntry.INDEX_NODE:
+				expand(index, entry.node, queue);
+				break;
+			case QueueEntry.GEOMETRY_BBOX:
+				Geometry geometry = layer.getGeometryEncoder().decodeGeometry(entry.node);
+				queue.add(new QueueEntry(QueueEntry.GEOMETRY, entry.node, geometry, getDistance(geometry)));
+				break;
+			default:
+				SpatialDatabaseRecord record = new SpatialDatabaseRecord(layer, entry.node, entry.geometry);
+				record.setUserData(entry.distance);
+				results.add(record);
+			}
+		}
+		return results;
+	}
+	
+	
+	// Protected methods
+	
+	/**
+	 * @return a lower bound of the distance from the point to anything inside
+	 *         the bounding box, which is in index order (xmin, ymin, xmax,
+	 *         ymax)
+	 */
+	protected abstract double getDistance(double[] bbox);
+	
+	/**
+	 * @return the distance from the point to the geometry, which must not be
+	 *         less than the distance returned for its bounding box
+	 */
+	protected abstract double getDistance(Geometry geometry);
+	
+	
+	// Private methods
+	
+	private void expand(RTreeIndex index, Node indexNode, PriorityQueue<QueueEntry> queue) {
+		if (indexNode.hasRelationship(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+			for (Relationship rel : indexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+				Node child = rel.getEndNode();
+				queue.add(new QueueEntry(QueueEntry.INDEX_NODE, child, null, getDistance((double[]) child.getProperty(Constants.PROP_BBOX))));
+			}
+		} else if (indexNode.hasProperty(RTreeIndex.PROP_CHILD_IDS)) {
+			long[] childIds = (long[]) indexNode.getProperty(RTreeIndex.PROP_CHILD_IDS);
+			double[] childBBoxes = (double[]) indexNode.getProperty(RTreeIndex.PROP_CHILD_BBOXES);
+			int size = childBBoxes.length / childIds.length;
+			double[] bbox = new double[size];
+			for (int i = 0; i < childIds.length; i++) {
+				System.arraycopy(childBBoxes, i * size, bbox, 0, size);
+				queue.add(new QueueEntry(QueueEntry.GEOMETRY_BBOX, index.database.getNodeById(childIds[i]), null, getDistance(bbox)));
+			}
+		} else {
+			for (Relationship rel : indexNode.getRelationships(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)) {
+				Node geomNode = rel.getEndNode();
+				queue.add(new QueueEntry(QueueEntry.GEOMETRY_BBOX, geomNode, null, getDistance(index.boundingBox.getGeometryNodeBoundingBox(geomNode))));
+			}
+		}
+	}
+	
+	
+	// Attributes
+	
+	protected Coordinate point;
+	
+	
+	// Public classes
+	
+	/**
+	 * Euclidean distance in the coordinate units of the layer.
+	 */
+	public static class Planar extends NearestNeighbourSearch {
+		
+		public Planar(Coordinate point) {
+			super(point);
+		}
+		
+		protected double getDistance(double[] bbox) {
+			double dx = Math.max(0, Math.max(bbox[0] - point.x, point.x - bbox[2]));
+			double dy = Math.max(0, Math.max(bbox[1] - point.y, point.y - bbox[3]));
+			return Math.sqrt(dx * dx + dy * dy);
+		}
+		
+		protected double getDistance(Geometry geometry) {
+			if (pointGeometry == null) pointGeometry = geometry.getFactory().createPoint(point);
+			return geometry.distance(pointGeometry);
+		}
+		
+		private Geometry pointGeometry;
+	}
+	
+	/**
+	 * Great-circle distance in km, for layers with longitude / latitude
+	 * coordinates in degrees. The distance to a geometry is the distance to
+	 * its closest vertex, which for point layers is the point itself.
+	 */
+	public static class Orthodromic extends NearestNeighbourSearch {
+		
+		public Orthodromic(Coordinate point) {
+			super(point);
+		}
+		
+		protected double getDistance(double[] bbox) {
+			double lon = point.x;
+			double lat = point.y;
+			if (lon >= bbox[0] && lon <= bbox[2]) {
+				// the closest point is on the same meridian
+				return Math.toRadians(Math.abs(lat - clamp(lat, bbox[1], bbox[3]))) * EARTH_RADIUS_IN_KM;
+			}
+			
+			// otherwise it is on the nearer of the two boundary meridians
+			double westDelta = longitudeDelta(lon, bbox[0]);
+			double eastDelta = longitudeDelta(lon, bbox[2]);
+			double edgeLon = westDelta < eastDelta ? bbox[0] : bbox[2];
+			double delta = Math.min(westDelta, eastDelta);
+			
+			// latitude of the point on the meridian closest to the query point
+			double closestLat;
+			if (delta < 90) {
+				closestLat = Math.toDegrees(Math.atan(Math.tan(Math.toRadians(lat)) / Math.cos(Math.toRadians(delta))));
+			} else {
+				closestLat = lat >= 0 ? 90 : -90;
+			}
+			return getDistance(lon, lat, edgeLon, clamp(closestLat, bbox[1], bbox[3]));
+		}
+		
+		protected double getDistance(Geometry geometry) {
+			double distance = Double.MAX_VALUE;
+			for (Coordinate coordinate : geometry.getCoordinates()) {
+				distance = Math.min(distance, getDistance(point.x, point.y, coordinate.x, coordinate.y));
+			}
+			return distance;
+		}
+		
+		/**
+		 * Haversine formula, which unlike the spherical law of cosines stays
+		 * accurate for small distances.
+		 */
+		private static double getDistance(double lon1, double lat1, double lon2, double lat2) {
+			double sinDLat = Math.sin(Math.toRadians(lat2 - lat1) / 2);
+			double sinDLon = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+			double a = sinDLat * sinDLat + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinDLon * sinDLon;
+			return 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a)) * EARTH_RADIUS_IN_KM;
+		}
+		
+		private static double longitudeDelta(double lon1, double lon2) {
+			double delta = Math.abs(lon1 - lon2) % 360;
+			return delta > 180 ? 360 - delta : delta;
+		}
+		
+		private static double clamp(double value, double min, double max) {
+			return Math.max(min, Math.min(max, value));
+		}
+		
+		private static final double EARTH_RADIUS_IN_KM = 6371;
+	}
+	
+	
+	// Private classes
+	
+	private static class QueueEntry {
+		
+		static final int INDEX_NODE = 0;
+		static final int GEOMETRY_BBOX = 1;
+		static final int GEOMETRY = 2;
+		
+		QueueEntry(int type, Node node, Geometry geometry, double distance) {
+			this.type = type;
+			this.node = node;
+			this.geometry = geometry;
+			this.distance = distance;
+		}
+		
+		private int type;
+		private Node node;
+		private Geometry geometry;
+		private double distance;
+	}
+	
+	private static class QueueEntryComparator implements Comparator<QueueEntry> {
+		
+		public int compare(QueueEntry e1, QueueEntry e2) {
+			int result = Double.compare(e1.distance, e2.distance);
+			// on equal distance return geometries before expanding anything else
+			return result != 0 ? result : e2.type - e1.type;
+		}
+	}
+}
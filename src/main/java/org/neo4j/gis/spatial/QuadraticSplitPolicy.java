@@ -0,0 +1,48 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.util.List;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.RelationshipType;
+
+
+/**
+ * The original RTreeIndex split: seeds are picked to maximise dead space and
+ * the remaining entries go to the group needing the least enlargement. This
+ * policy never reinserts.
+ */
+public class QuadraticSplitPolicy implements SplitPolicy {
+
+	public void init(RTreeIndex index) {
+		this.index = index;
+	}
+
+	public List<Node> chooseReinsertEntries(Node leafNode) {
+		return null;
+	}
+
+	public Node split(Node indexNode, RelationshipType relationshipType) {
+		return index.quadraticSplit(indexNode, relationshipType);
+	}
+
+	private RTreeIndex index;
+}
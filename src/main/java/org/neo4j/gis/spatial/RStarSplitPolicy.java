@@ -0,0 +1,233 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.neo4j.gis.spatial.generic.GenericBoundingBox;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+
+
+/**
+ * The R*-tree overflow treatment (Beckmann et al. 1990):
+ * <ul>
+ * <li>The split axis is the one where the sum of the margins of all candidate
+ * distributions is smallest.</li>
+ * <li>Along that axis, the distribution with the least overlap between the
+ * two groups is chosen, with ties going to the smallest total area.</li>
+ * <li>The first time a leaf overflows during an insert, the 30% of its entries
+ * furthest from its centre are reinserted instead of splitting it.</li>
+ * </ul>
+ * Forced reinsert is only done on leaves, because RTreeIndex always inserts
+ * at leaf level. Both groups of a split keep at least the minimum number of
+ * entries configured for the index.
+ */
+public class RStarSplitPolicy implements SplitPolicy {
+
+	public void init(RTreeIndex index) {
+		this.index = index;
+	}
+
+	public List<Node> chooseReinsertEntries(Node leafNode) {
+		double[] leafBBox = (double[]) leafNode.getProperty(Constants.PROP_BBOX);
+		double centreX = (leafBBox[0] + leafBBox[2]) / 2.0;
+		double centreY = (leafBBox[1] + leafBBox[3]) / 2.0;
+		
+		List<Entry> entries = new ArrayList<Entry>();
+		for (Relationship relationship : leafNode.getRelationships(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)) {
+			Node geomNode = relationship.getEndNode();
+			Entry entry = new Entry(geomNode, index.boundingBox.getGeometryNodeBoundingBox(geomNode));
+			double dx = (entry.bbox[0] + entry.bbox[2]) / 2.0 - centreX;
+			double dy = (entry.bbox[1] + entry.bbox[3]) / 2.0 - centreY;
+			entry.key = dx * dx + dy * dy;
+			entries.add(entry);
+		}
+		
+		int count = Math.min((int) Math.round(REINSERT_FRACTION * index.maxNodeReferences), entries.size() - index.minNodeReferences);
+		if (count <= 0) return null;
+
+		// reinsert the furthest entries, starting with the closest of them
+		Collections.sort(entries, new EntryKeyComparator());
+		List<Node> reinsert = new ArrayList<Node>(count);
+		for (Entry entry : entries.subList(entries.size() - count, entries.size())) {
+			reinsert.add(entry.node);
+		}
+		return reinsert;
+	}
+
+	public Node split(Node indexNode, RelationshipType relationshipType) {
+		List<Entry> entries = new ArrayList<Entry>();
+		for (Relationship relationship : indexNode.getRelationships(relationshipType, Direction.OUTGOING)) {
+			Node child = relationship.getEndNode();
+			double[] bbox = relationshipType == SpatialRelationshipTypes.RTREE_REFERENCE ? index.boundingBox.getGeometryNodeBoundingBox(child)
+					: (double[]) child.getProperty(Constants.PROP_BBOX);
+			entries.add(new Entry(child, bbox));
+			relationship.delete();
+		}
+		int minEntries = Math.max(1, Math.min(index.minNodeReferences, entries.size() / 2));
+		
+		// choose the split axis with the smallest margin sum
+		int splitAxis = 0;
+		double minMargin = Double.POSITIVE_INFINITY;
+		for (int axis = 0; axis < GenericBoundingBox.getDimensions(entries.get(0).bbox); axis++) {
+			double margin = 0;
+			for (int bound = 0; bound < 2; bound++) {
+				sortEntries(entries, axis, bound);
+				Distributions distributions = new Distributions(entries);
+				for (int k = minEntries; k <= entries.size() - minEntries; k++) {
+					margin += getMargin(distributions.getFirst(k)) + getMargin(distributions.getSecond(k));
+				}
+			}
+			if (margin < minMargin) {
+				minMargin = margin;
+				splitAxis = axis;
+			}
+		}
+		
+		// choose the distribution along that axis with the least overlap, then the least area
+		int bestBound = 0;
+		int bestK = minEntries;
+		double minOverlap = Double.POSITIVE_INFINITY;
+		double minArea = Double.POSITIVE_INFINITY;
+		for (int bound = 0; bound < 2; bound++) {
+			sortEntries(entries, splitAxis, bound);
+			Distributions distributions = new Distributions(entries);
+			for (int k = minEntries; k <= entries.size() - minEntries; k++) {
+				double[] first = distributions.getFirst(k);
+				double[] second = distributions.getSecond(k);
+				double overlap = GenericBoundingBox.getIntersectionArea(first, second);
+				double area = GenericBoundingBox.getArea(first) + GenericBoundingBox.getArea(second);
+				if (overlap < minOverlap || (overlap == minOverlap && area < minArea)) {
+					minOverlap = overlap;
+					minArea = area;
+					bestBound = bound;
+					bestK = k;
+				}
+			}
+		}
+		sortEntries(entries, splitAxis, bestBound);
+		
+		// reset bounding box and add new children
+		indexNode.removeProperty(Constants.PROP_BBOX);
+		for (Entry entry : entries.subList(0, bestK)) {
+			index.boundingBox.addChild(indexNode, relationshipType, entry.node);
+		}
+
+		// create new node from split
+		Node newIndexNode = index.database.createNode();
+		for (Entry entry : entries.subList(bestK, entries.size())) {
+			index.boundingBox.addChild(newIndexNode, relationshipType, entry.node);
+		}
+		return newIndexNode;
+	}
+
+	
+	// Private methods
+	
+	/**
+	 * Sort the entries on one axis (0 for x, 1 for y, then any extra
+	 * dimensions of the index) by their lower (bound 0) or upper (bound 1)
+	 * value.
+	 */
+	private static void sortEntries(List<Entry> entries, int axis, int bound) {
+		int index = bound == 0 ? GenericBoundingBox.getMinIndex(axis) : GenericBoundingBox.getMaxIndex(axis);
+		for (Entry entry : entries) {
+			entry.key = entry.bbox[index];
+		}
+		Collections.sort(entries, new EntryKeyComparator());
+	}
+
+	private static double getMargin(double[] bbox) {
+		double margin = 0;
+		for (int d = GenericBoundingBox.getDimensions(bbox) - 1; d >= 0; d--) {
+			margin += bbox[GenericBoundingBox.getMaxIndex(d)] - bbox[GenericBoundingBox.getMinIndex(d)];
+		}
+		return margin;
+	}
+
+	
+	// Attributes
+	
+	private RTreeIndex index;
+	
+	private static final double REINSERT_FRACTION = 0.3;
+
+	
+	// Private classes
+	
+	private static class Entry {
+		
+		Entry(Node node, double[] bbox) {
+			this.node = node;
+			this.bbox = bbox;
+		}
+		
+		private Node node;
+		private double[] bbox;
+		private double key;
+	}
+	
+	private static class EntryKeyComparator implements Comparator<Entry> {
+		
+		public int compare(Entry e1, Entry e2) {
+			return Double.compare(e1.key, e2.key);
+		}
+	}
+	
+	/**
+	 * Bounding boxes of the first k and the remaining entries of a sorted list,
+	 * for every k, calculated in two linear passes.
+	 */
+	private static class Distributions {
+		
+		Distributions(List<Entry> entries) {
+			int size = entries.size();
+			prefix = new double[size][];
+			suffix = new double[size][];
+			double[] bbox = null;
+			for (int i = 0; i < size; i++) {
+				bbox = RTreeIndex.expandBoundingBox(bbox, entries.get(i).bbox);
+				prefix[i] = bbox.clone();
+			}
+			bbox = null;
+			for (int i = size - 1; i >= 0; i--) {
+				bbox = RTreeIndex.expandBoundingBox(bbox, entries.get(i).bbox);
+				suffix[i] = bbox.clone();
+			}
+		}
+		
+		double[] getFirst(int k) {
+			return prefix[k - 1];
+		}
+		
+		double[] getSecond(int k) {
+			return suffix[k];
+		}
+		
+		private double[][] prefix;
+		private double[][] suffix;
+	}
+}
@@ -20,20 +20,43 @@
 package org.neo4j.gis.spatial;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.transaction.SystemException;
+
 import org.neo4j.gis.spatial.generic.GenericBoundingBox;
 import org.neo4j.gis.spatial.query.SearchAll;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Lock;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.PropertyContainer;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.graphdb.ReturnableEvaluator;
 import org.neo4j.graphdb.StopEvaluator;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.Traverser.Order;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.kernel.AbstractGraphDatabase;
+
+import com.vividsolutions.jts.geom.Coordinate;
 
 
 
@@ -46,9 +69,29 @@ import org.neo4j.graphdb.Traverser.Order;
  * 
  * @author Davide Savazzi
  */
-public class RTreeIndex implements Constants {
+public class RTreeIndex implements SpatialTreeIndex, SpatialIndexWriter, Constants {
 
-	private Layer layer;
+	public static final String PROP_INDEX_TYPE = "indexType";
+	public static final String INDEX_TYPE_RTREE = "rtree";
+	public static final String PROP_SPLIT_POLICY = "splitPolicy";
+	public static final String PROP_PACKED_LEAF_BBOXES = "packedLeafBBoxes";
+	public static final String PROP_CHILD_IDS = "childIds";
+	public static final String PROP_CHILD_BBOXES = "childBBoxes";
+	public static final String PROP_TOTAL_GEOMETRY_COUNT = "totalGeometryCount";
+	public static final String PROP_GEOMETRY_TYPE_COUNTS = "geometryTypeCounts";
+	public static final String PROP_TREE_DEPTH = "treeDepth";
+	public static final String PROP_INDEX_NODE_COUNT = "indexNodeCount";
+	public static final String PROP_HISTOGRAM_BOUNDS = "histogramBounds";
+	public static final String PROP_HISTOGRAM_SIZE = "histogramSize";
+	public static final String PROP_HISTOGRAM_CELLS = "histogramCells";
+	public static final String PROP_HISTOGRAM_GEOMETRY_COUNT = "histogramGeometryCount";
+	public static final String PROP_DIMENSION_PROPERTIES = "dimensionProperties";
+	public static final String PROP_REBUILD_CHANGED_IDS = "rebuildChangedIds";
+	public static final String PROP_PENDING_CHILD_IDS = "pendingChildIds";
+	public static final String PROP_INSERT_BUFFER_SIZE = "insertBufferSize";
+	public static final String PROP_INSERT_BUFFER_FLUSH_INTERVAL = "insertBufferFlushInterval";
+	
+	protected Layer layer;
 	// Constructor
 	
 	public RTreeIndex(GraphDatabaseService database, Layer layer) {
@@ -60,32 +103,38 @@ public class RTreeIndex implements Constants {
 		this.layer = layer;
 		this.maxNodeReferences = maxNodeReferences;
 		this.minNodeReferences = minNodeReferences;
-		this.boundingBox=new GenericBoundingBox();
+		this.boundingBox = new GenericBoundingBox(layer, minNodeReferences);
 		
 		initIndexRoot();
 		initIndexMetadata();
+		initSplitPolicy();
+		boundingBox.setMinNodeReferences(this.minNodeReferences);
 	}
 	
 	
 	
 	public Node quadraticSplit(Node indexNode, RelationshipType relationshipType) {
- 		List<Node> entries = new ArrayList<Node>();
+		// decode every bounding box once, the seed selection below compares all pairs
+ 		List<IndexEntry> entries = new ArrayList<IndexEntry>();
 		
 		Iterable<Relationship> relationships = indexNode.getRelationships(relationshipType, Direction.OUTGOING);
 		for (Relationship relationship : relationships) {
-			entries.add(relationship.getEndNode());
+			Node child = relationship.getEndNode();
+			double[] bbox = relationshipType == SpatialRelationshipTypes.RTREE_REFERENCE ? boundingBox.getGeometryNodeBoundingBox(child)
+					: (double[]) child.getProperty(PROP_BBOX);
+			entries.add(new IndexEntry(child, bbox));
 			relationship.delete();
 		}
 
 		// pick two seed entries such that the dead space is maximal
-		Node seed1 = null;
-		Node seed2 = null;
+		IndexEntry seed1 = null;
+		IndexEntry seed2 = null;
 		double worst = Double.NEGATIVE_INFINITY;
-		for (Node e : entries) {
-			double[] eEnvelope = boundingBox.getLeafNodeBoundingBox(e);
-			for (Node e1 : entries) {
-				double[] e1Envelope = boundingBox.getLeafNodeBoundingBox(e1);
-				double deadSpace = boundingBox.getArea(boundingBox.createBoundingBox(eEnvelope, e1Envelope)) - boundingBox.getArea(eEnvelope) - boundingBox.getArea(e1Envelope);
+		for (int i = 0; i < entries.size(); i++) {
+			IndexEntry e = entries.get(i);
+			for (int j = i + 1; j < entries.size(); j++) {
+				IndexEntry e1 = entries.get(j);
+				double deadSpace = GenericBoundingBox.getUnionArea(e.bbox, e1.bbox) - GenericBoundingBox.getArea(e.bbox) - GenericBoundingBox.getArea(e1.bbox);
 				if (deadSpace > worst) {
 					worst = deadSpace;
 					seed1 = e;
@@ -94,26 +143,25 @@ public class RTreeIndex implements Constants {
 			}
 		}
 		
-		List<Node> group1 = new ArrayList<Node>();
+		List<IndexEntry> group1 = new ArrayList<IndexEntry>();
 		group1.add(seed1);
-		double[] group1envelope = boundingBox.getLeafNodeBoundingBox(seed1);
+		double[] group1envelope = expandBoundingBox(null, seed1.bbox);
 		
-		List<Node> group2 = new ArrayList<Node>();
+		List<IndexEntry> group2 = new ArrayList<IndexEntry>();
 		group2.add(seed2);
-		double[] group2envelope = boundingBox.getLeafNodeBoundingBox(seed2);
+		double[] group2envelope = expandBoundingBox(null, seed2.bbox);
 		
 		entries.remove(seed1);
 		entries.remove(seed2);
 		while (entries.size() > 0) {
 			// compute the cost of inserting each entry
-			List<Node> bestGroup = null;
+			List<IndexEntry> bestGroup = null;
 			double[] bestGroupEnvelope = null;
-			Node bestEntry = null;
+			IndexEntry bestEntry = null;
 			double expansionMin = Double.POSITIVE_INFINITY;
-			for (Node e : entries) {
-				double[] nodeEnvelope = boundingBox.getLeafNodeBoundingBox(e);
-				double expansion1 = boundingBox.getArea(boundingBox.createBoundingBox(nodeEnvelope, group1envelope)) - boundingBox.getArea(group1envelope);
-				double expansion2 = boundingBox.getArea(boundingBox.createBoundingBox(nodeEnvelope, group2envelope)) - boundingBox.getArea(group2envelope);
+			for (IndexEntry e : entries) {
+				double expansion1 = GenericBoundingBox.getAreaEnlargement(group1envelope, e.bbox);
+				double expansion2 = GenericBoundingBox.getAreaEnlargement(group2envelope, e.bbox);
 						
 				if (expansion1 < expansion2 && expansion1 < expansionMin) {
 					bestGroup = group1;
@@ -127,7 +175,7 @@ public class RTreeIndex implements Constants {
 					expansionMin = expansion2;					
 				} else if (expansion1 == expansion2 && expansion1 < expansionMin) {
 					// in case of equality choose the group with the smallest area
-					if (boundingBox.getArea(group1envelope) < boundingBox.getArea(group2envelope)) {
+					if (GenericBoundingBox.getArea(group1envelope) < GenericBoundingBox.getArea(group2envelope)) {
 						bestGroup = group1;
 						bestGroupEnvelope = group1envelope; 
 					} else {
@@ -141,7 +189,7 @@ public class RTreeIndex implements Constants {
 			
 			// insert the best candidate entry in the best group
 			bestGroup.add(bestEntry);
-			boundingBox.expandToInclude(bestGroupEnvelope,boundingBox.getLeafNodeBoundingBox(bestEntry));
+			GenericBoundingBox.expandToInclude(bestGroupEnvelope, bestEntry.bbox);
 
 			entries.remove(bestEntry);
 			
@@ -162,14 +210,14 @@ public class RTreeIndex implements Constants {
 		
 		// reset bounding box and add new children
 		indexNode.removeProperty(PROP_BBOX);
-		for (Node node : group1) {
-			boundingBox.addChild(indexNode, relationshipType, node);
+		for (IndexEntry entry : group1) {
+			boundingBox.addChild(indexNode, relationshipType, entry.node);
 		}
 
 		// create new node from split
 		Node newIndexNode = database.createNode();
-		for (Node node: group2) {
-			boundingBox.addChild(newIndexNode, relationshipType, node);
+		for (IndexEntry entry : group2) {
+			boundingBox.addChild(newIndexNode, relationshipType, entry.node);
 		}
 				
 		return newIndexNode;
@@ -177,35 +225,484 @@ public class RTreeIndex implements Constants {
 	// Public methods
 	
 	public void add(Node geomNode) {
-		// initialize the search with root
-		Node parent = boundingBox.getIndexRoot();
+		RTreeIndexInsertBuffer buffer = getInsertBuffer();
+		if (buffer != null) {
+			buffer.add(geomNode, boundingBox.getGeometryNodeBoundingBox(geomNode));
+		} else {
+			addToTree(geomNode);
+		}
+	}
+	
+	/**
+	 * Keep added geometries in an in-memory buffer, and merge them into the
+	 * tree in bulk on a background thread when the buffer holds maxSize
+	 * geometries, or every flushInterval milliseconds. This suits streams of
+	 * small inserts, such as position updates, where changing the tree on
+	 * every add is the bottleneck. Searches, count() and removals take the
+	 * buffered geometries into account. Bulk loads with addAll(Iterable)
+	 * bypass the buffer. The setting is stored in the index metadata, and the
+	 * buffer is shared by every RTreeIndex instance of the layer.
+	 * 
+	 * @param maxSize
+	 *            the number of buffered geometries that triggers a flush, or
+	 *            0 to flush what is buffered and stop buffering
+	 * @param flushInterval
+	 *            the maximum time in milliseconds that geometries stay in
+	 *            the buffer, or 0 to only flush when it is full
+	 * @see RTreeIndexInsertBuffer
+	 */
+	public void setInsertBuffer(int maxSize, long flushInterval) {
+		Transaction tx = database.beginTx();
+		try {
+			Node metadata = getMetadataNode();
+			if (maxSize > 0) {
+				metadata.setProperty(PROP_INSERT_BUFFER_SIZE, maxSize);
+				metadata.setProperty(PROP_INSERT_BUFFER_FLUSH_INTERVAL, flushInterval);
+			} else {
+				metadata.removeProperty(PROP_INSERT_BUFFER_SIZE);
+				metadata.removeProperty(PROP_INSERT_BUFFER_FLUSH_INTERVAL);
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
 		
-		// choose a path down to a leaf
-		while (!nodeIsLeaf(parent)) {
-			parent = chooseSubTree(parent, geomNode);
+		if (maxSize > 0) {
+			RTreeIndexInsertBuffer.enableBuffer(this, database, maxSize, flushInterval);
+		} else {
+			RTreeIndexInsertBuffer.disableBuffer(database, layer.getLayerNode());
+		}
+	}
+	
+	/**
+	 * @return the insert buffer, or null if added geometries go straight into
+	 *         the tree
+	 */
+	public RTreeIndexInsertBuffer getInsertBuffer() {
+		if (!insertBufferLoaded) {
+			// not in the constructor, a recovered buffer may start flushing through this index at once
+			insertBufferLoaded = true;
+			initInsertBuffer();
+		}
+		return RTreeIndexInsertBuffer.getBuffer(database, layer.getLayerNode());
+	}
+	
+	/**
+	 * Merge the buffered geometries into the tree now, see
+	 * RTreeIndexInsertBuffer.flush().
+	 */
+	public void flushInsertBuffer() {
+		RTreeIndexInsertBuffer buffer = getInsertBuffer();
+		if (buffer != null) buffer.flush();
+	}
+	
+	private void addToTree(Node geomNode) {
+		recordRebuildChange(geomNode);
+		if (concurrentWriters) {
+			insertConcurrently(geomNode);
+			pendingStatistics.get().addGeometry(geomNode.getId(), getGeometryType(geomNode));
+		} else {
+			insert(geomNode);
+			updateGeometryStatistics(getGeometryType(geomNode), 1);
+		}
+	}
+	
+	/**
+	 * Change the split policy used when index nodes overflow. The policy
+	 * class is recorded in the index metadata node, so it is used again when
+	 * the layer is next loaded. Layers without a recorded policy use
+	 * QuadraticSplitPolicy.
+	 */
+	public void setSplitPolicy(Class<? extends SplitPolicy> splitPolicyClass) {
+		Transaction tx = database.beginTx();
+		try {
+			getMetadataNode().setProperty(PROP_SPLIT_POLICY, splitPolicyClass.getCanonicalName());
+			initSplitPolicy();
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+	
+	public SplitPolicy getSplitPolicy() {
+		return splitPolicy;
+	}
+	
+	/**
+	 * When enabled, every leaf index node keeps the ids of its geometry nodes
+	 * in the PROP_CHILD_IDS long[] property, and their bounding boxes in the
+	 * PROP_CHILD_BBOXES double[] property, one bounding box per child in the
+	 * same order. A leaf scan then passes each child bbox to
+	 * SpatialIndexVisitor.needsToVisit before loading the geometry node, so
+	 * children outside the search area are rejected with one property read
+	 * instead of one envelope decode each. The setting is recorded in the
+	 * index metadata node, and enabling it on an existing index fills in the
+	 * properties on all leaves.
+	 */
+	public void setPackedLeafBBoxes(boolean enabled) {
+		Transaction tx = database.beginTx();
+		try {
+			getMetadataNode().setProperty(PROP_PACKED_LEAF_BBOXES, enabled);
+			packedLeafBBoxes = enabled;
+			setPackedLeafBBoxes(boundingBox.getIndexRoot(), enabled);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+	
+	public boolean hasPackedLeafBBoxes() {
+		return packedLeafBBoxes;
+	}
+	
+	/**
+	 * Index more dimensions than x and y, such as elevation or time, so that
+	 * searches can prune the tree on them as well. Each geometry node must
+	 * have every property, holding either a number or a double[] with the
+	 * minimum and maximum. The bounding boxes of the index then hold a (min,
+	 * max) pair for every property after xmin, ymin, xmax, ymax. The setting
+	 * is recorded in the index metadata node and can only be changed while
+	 * the index is empty.
+	 * 
+	 * @see org.neo4j.gis.spatial.query.SearchIntersectBox
+	 */
+	public void setDimensionProperties(String... properties) {
+		if (!isEmpty()) {
+			throw new SpatialDatabaseException("The dimensions of layer '" + layer.getName() + "' can only be changed while its index is empty");
+		}
+		Transaction tx = database.beginTx();
+		try {
+			getMetadataNode().setProperty(PROP_DIMENSION_PROPERTIES, properties);
+			boundingBox.setDimensionProperties(properties);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+	
+	public String[] getDimensionProperties() {
+		return boundingBox.getDimensionProperties();
+	}
+	
+	/**
+	 * @return the number of dimensions of the index bounding boxes, 2 unless
+	 *         more were set with setDimensionProperties
+	 */
+	public int getDimensions() {
+		return boundingBox.getDimensions();
+	}
+	
+	/**
+	 * @return the bounding box of a geometry node in index order, including
+	 *         any extra dimensions
+	 */
+	public double[] getGeometryNodeBoundingBox(Node geomNode) {
+		return boundingBox.getGeometryNodeBoundingBox(geomNode);
+	}
+	
+	/**
+	 * Bulk load a collection of geometry nodes into the index. If the index is
+	 * empty, the tree is built bottom-up using Sort-Tile-Recursive packing:
+	 * entries are sorted into vertical slices by the x coordinate of their
+	 * centre, each slice is sorted by y, and consecutive runs are packed into
+	 * full index nodes. The same packing is then repeated on the new index
+	 * nodes until they fit under the root. This avoids the chooseSubTree,
+	 * split and bbox adjustment work done for each call to add(Node), and
+	 * produces a tree with less overlap between nodes. If the index already
+	 * contains data, the nodes are added one by one.
+	 */
+	public void addAll(Iterable<Node> geomNodes) {
+		List<IndexEntry> entries = new ArrayList<IndexEntry>();
+		for (Node geomNode : geomNodes) {
+			entries.add(new IndexEntry(geomNode, boundingBox.getGeometryNodeBoundingBox(geomNode)));
 		}
+		if (entries.isEmpty()) return;
 		
-		if (boundingBox.countChildren(parent, SpatialRelationshipTypes.RTREE_REFERENCE) == maxNodeReferences) {
-			insertInLeaf(parent, geomNode);
-			splitAndAdjustPathBoundingBox(parent);
+		if (!isEmpty()) {
+			int count = 0;
+			Transaction tx = database.beginTx();
+			try {
+				for (IndexEntry entry : entries) {
+					addToTree(entry.node);
+					if (++count % BULK_COMMIT_INTERVAL == 0) {
+						tx.success();
+						tx.finish();
+						tx = database.beginTx();
+					}
+				}
+				tx.success();
+			} finally {
+				tx.finish();
+			}
+			RTreeIndexHistogram histogram = getStoredHistogram();
+			if (histogram == null || isStale(histogram)) updateHistogram();
+			return;
+		}
+		
+		int geometryCount = entries.size();
+		int[] geometryTypeCounts = new int[GEOMETRY_TYPE_COUNT];
+		for (IndexEntry entry : entries) {
+			geometryTypeCounts[getGeometryType(entry.node)]++;
+		}
+		
+		// the remaining entries fit in the existing root node
+		int[] treeSize = packTree(entries, getIndexRoot(), null, true, null);
+		Transaction tx = database.beginTx();
+		try {
+			Node metadata = getMetadataNode();
+			metadata.setProperty(PROP_TOTAL_GEOMETRY_COUNT, geometryCount);
+			metadata.setProperty(PROP_GEOMETRY_TYPE_COUNTS, geometryTypeCounts);
+			metadata.setProperty(PROP_TREE_DEPTH, treeSize[0]);
+			metadata.setProperty(PROP_INDEX_NODE_COUNT, treeSize[1]);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		invalidateCache();
+		updateHistogram();
+	}
+	
+	/**
+	 * Rebuild the tree of a fragmented index while it stays in use. A new
+	 * tree is bulk loaded with the same packing as addAll(Iterable) next to
+	 * the live one, which searches and writers keep using, and is then
+	 * swapped in by moving the RTREE_ROOT relationship in one transaction,
+	 * which also deletes the old tree. The leaves of the new tree keep the
+	 * ids of their geometry nodes in the PROP_PENDING_CHILD_IDS property
+	 * until then, because a geometry node can only have one RTREE_REFERENCE
+	 * relationship, which stays in the old tree. While the rebuild runs,
+	 * geometries added to the tree or moved are recorded in the
+	 * PROP_REBUILD_CHANGED_IDS property of the metadata node, so writers
+	 * with concurrent writers enabled then wait on each other for that node.
+	 * The swap transaction write locks the layer node and every index node
+	 * of the old tree, deletes the old tree, links the new leaves to the
+	 * geometries that are still indexed and unchanged, and inserts the
+	 * added and moved ones again, so no changes are lost. Writers that reach
+	 * the old tree while it is being swapped out fail and should be retried.
+	 * The monitor is told about every geometry read from the old tree, and
+	 * again about all of them once the leaves of the new tree are written.
+	 */
+	public void rebuild(Listener monitor) {
+		if (isEmpty()) return;
+		
+		List<IndexEntry> entries = new ArrayList<IndexEntry>();
+		Set<Long> snapshotIds = new HashSet<Long>();
+		boolean swapped = false;
+		setRebuildInProgress(true);
+		monitor.begin(2 * count());
+		try {
+			for (Node geomNode : getTreeGeometryNodes()) {
+				entries.add(new IndexEntry(geomNode, boundingBox.getGeometryNodeBoundingBox(geomNode)));
+				snapshotIds.add(geomNode.getId());
+				monitor.worked(1);
+			}
+			
+			// build the new tree out of sight of the searches
+			List<Node> createdNodes = new ArrayList<Node>();
+			Node newRoot;
+			Transaction tx = database.beginTx();
+			try {
+				newRoot = database.createNode();
+				tx.success();
+			} finally {
+				tx.finish();
+			}
+			createdNodes.add(newRoot);
+			int[] treeSize;
+			try {
+				treeSize = packTree(entries, newRoot, createdNodes, false, monitor);
+			} catch (RuntimeException e) {
+				deleteIndexNodes(createdNodes);
+				throw e;
+			}
+			entries = null;
+			
+			swapIndexRoot(newRoot, treeSize, snapshotIds);
+			swapped = true;
+			updateHistogram();
+		} finally {
+			if (!swapped) setRebuildInProgress(false);
+			monitor.done();
+		}
+	}
+	
+	/**
+	 * Pack the entries into a tree below the specified root, committing
+	 * every BULK_COMMIT_INTERVAL relationships.
+	 * 
+	 * @param createdNodes
+	 *            collects the index nodes created, or null
+	 * @param linkReferences
+	 *            whether the leaves reference their geometry nodes, or only
+	 *            keep their ids in PROP_PENDING_CHILD_IDS
+	 * @param monitor
+	 *            told about all the entries once the leaves are written, or
+	 *            null
+	 * @return the depth of the tree and its number of index nodes
+	 */
+	private int[] packTree(List<IndexEntry> entries, Node root, List<Node> createdNodes, boolean linkReferences, Listener monitor) {
+		int geometryCount = entries.size();
+		int treeDepth = 1;
+		int indexNodeCount = 1;
+		RelationshipType relationshipType = SpatialRelationshipTypes.RTREE_REFERENCE;
+		while (entries.size() > maxNodeReferences) {
+			entries = packLevel(entries, relationshipType, createdNodes, linkReferences);
+			if (monitor != null && relationshipType == SpatialRelationshipTypes.RTREE_REFERENCE) {
+				monitor.worked(geometryCount);
+			}
+			relationshipType = SpatialRelationshipTypes.RTREE_CHILD;
+			treeDepth++;
+			indexNodeCount += entries.size();
+		}
+		
+		Transaction tx = database.beginTx();
+		try {
+			double[] rootBBox = null;
+			for (IndexEntry entry : entries) {
+				rootBBox = expandBoundingBox(rootBBox, entry.bbox);
+			}
+			linkChildren(root, entries, relationshipType, linkReferences);
+			root.setProperty(PROP_BBOX, rootBBox);
+			if (packedLeafBBoxes && relationshipType == SpatialRelationshipTypes.RTREE_REFERENCE) {
+				setLeafEntryBBoxes(root, entries);
+			}
+			onPackedIndexNode(root, entries);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		if (monitor != null && relationshipType == SpatialRelationshipTypes.RTREE_REFERENCE) {
+			monitor.worked(geometryCount);
+		}
+		return new int[] { treeDepth, indexNodeCount };
+	}
+	
+	/**
+	 * Pack one level of the tree using Sort-Tile-Recursive ordering, and return
+	 * the entries for the newly created index nodes.
+	 */
+	private List<IndexEntry> packLevel(List<IndexEntry> entries, RelationshipType relationshipType, List<Node> createdNodes, boolean linkReferences) {
+		List<List<IndexEntry>> groups = groupEntries(entries);
+		List<IndexEntry> parents = new ArrayList<IndexEntry>(groups.size());
+		Transaction tx = database.beginTx();
+		try {
+			int relationshipCount = 0;
+			for (List<IndexEntry> group : groups) {
+				Node indexNode = database.createNode();
+				if (createdNodes != null) createdNodes.add(indexNode);
+				double[] bbox = null;
+				for (IndexEntry entry : group) {
+					bbox = expandBoundingBox(bbox, entry.bbox);
+				}
+				linkChildren(indexNode, group, relationshipType, linkReferences);
+				indexNode.setProperty(PROP_BBOX, bbox);
+				if (packedLeafBBoxes && relationshipType == SpatialRelationshipTypes.RTREE_REFERENCE) {
+					setLeafEntryBBoxes(indexNode, group);
+				}
+				onPackedIndexNode(indexNode, group);
+				parents.add(new IndexEntry(indexNode, bbox));
+				
+				relationshipCount += group.size();
+				if (relationshipCount >= BULK_COMMIT_INTERVAL) {
+					relationshipCount = 0;
+					tx.success();
+					tx.finish();
+					tx = database.beginTx();
+				}
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		return parents;
+	}
+	
+	/**
+	 * Divide the entries of one level of a bulk load into the groups that
+	 * will each become one index node. The default implementation uses
+	 * Sort-Tile-Recursive ordering.
+	 */
+	protected List<List<IndexEntry>> groupEntries(List<IndexEntry> entries) {
+		int nodeCount = (int) Math.ceil((double) entries.size() / maxNodeReferences);
+		int sliceCount = (int) Math.ceil(Math.sqrt(nodeCount));
+		
+		Collections.sort(entries, new IndexEntryCentreComparator(0));
+		List<List<IndexEntry>> groups = new ArrayList<List<IndexEntry>>(nodeCount);
+		for (List<IndexEntry> slice : partition(entries, sliceCount)) {
+			Collections.sort(slice, new IndexEntryCentreComparator(1));
+			groups.addAll(partition(slice, (int) Math.ceil((double) slice.size() / maxNodeReferences)));
+		}
+		return groups;
+	}
+	
+	private void linkChildren(Node indexNode, List<IndexEntry> entries, RelationshipType relationshipType, boolean linkReferences) {
+		if (linkReferences || relationshipType != SpatialRelationshipTypes.RTREE_REFERENCE) {
+			for (IndexEntry entry : entries) {
+				indexNode.createRelationshipTo(entry.node, relationshipType);
+			}
 		} else {
-			if (insertInLeaf(parent, geomNode)) {
-				// bbox enlargement needed
-				boundingBox.adjustPathBoundingBox(parent);							
+			long[] pendingIds = new long[entries.size()];
+			for (int i = 0; i < pendingIds.length; i++) {
+				pendingIds[i] = entries.get(i).node.getId();
 			}
+			indexNode.setProperty(PROP_PENDING_CHILD_IDS, pendingIds);
+		}
+	}
+	
+	/**
+	 * Called for every index node created by a bulk load, after its children
+	 * and bounding box have been set. Index implementations that keep extra
+	 * properties on the index nodes can initialize them here.
+	 */
+	protected void onPackedIndexNode(Node indexNode, List<IndexEntry> group) {
+	}
+	
+	/**
+	 * Split the list into the given number of consecutive parts, with sizes
+	 * that differ by at most one, so that no packed node is left nearly empty.
+	 */
+	protected static List<List<IndexEntry>> partition(List<IndexEntry> entries, int parts) {
+		List<List<IndexEntry>> result = new ArrayList<List<IndexEntry>>(parts);
+		int size = entries.size() / parts;
+		int remainder = entries.size() % parts;
+		int start = 0;
+		for (int i = 0; i < parts; i++) {
+			int end = start + size + (i < remainder ? 1 : 0);
+			result.add(new ArrayList<IndexEntry>(entries.subList(start, end)));
+			start = end;
+		}
+		return result;
+	}
+	
+	static double[] expandBoundingBox(double[] bbox, double[] other) {
+		if (bbox == null) {
+			return other.clone();
 		}
-		countSaved = false;
-		totalGeometryCount ++;
+		return GenericBoundingBox.createBoundingBox(bbox, other, bbox);
 	}
 	
 	public void remove(long geomNodeId, boolean deleteGeomNode) {
 		Node geomNode = database.getNodeById(geomNodeId);
-		
+		RTreeIndexInsertBuffer buffer = getInsertBuffer();
+		if (buffer != null && buffer.remove(geomNodeId)) {
+			// not in the tree yet
+			if (deleteGeomNode) deleteNode(geomNode);
+			return;
+		}
+		removeFromTree(geomNode, deleteGeomNode);
+	}
+	
+	/**
+	 * Remove a geometry from the tree, without looking at the insert buffer.
+	 */
+	void removeFromTree(Node geomNode, boolean deleteGeomNode) {
 		// be sure geomNode is inside this RTree
 		Node indexNode = findLeafContainingGeometryNode(geomNode);
 		
 		// remove the entry 
+		int gtype = getGeometryType(geomNode);
 		geomNode.getSingleRelationship(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING).delete();
+		removeLeafEntryBBox(indexNode, geomNode.getId());
 		if (deleteGeomNode) deleteNode(geomNode);
 		
 		// reorganize the tree if needed
@@ -227,30 +724,173 @@ public class RTreeIndex implements Constants {
 				orphan.getGeomNode().getSingleRelationship(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING).delete();
 			}
 			
-			deleteRecursivelyEmptySubtree(lastParentNodeToDelete);
+			Node parentOfDeleted = boundingBox.getIndexNodeParent(lastParentNodeToDelete);
+			int deletedIndexNodes = deleteRecursivelyEmptySubtree(lastParentNodeToDelete);
+			updateIndexNodeStatistics(-deletedIndexNodes, 0);
 
 			// adjust tree
-			boundingBox.adjustParentBoundingBox(boundingBox.getIndexNodeParent(lastParentNodeToDelete), SpatialRelationshipTypes.RTREE_CHILD);
-			boundingBox.adjustPathBoundingBox(boundingBox.getIndexNodeParent(lastParentNodeToDelete));
+			boundingBox.adjustParentBoundingBox(parentOfDeleted, SpatialRelationshipTypes.RTREE_CHILD);
+			boundingBox.adjustPathBoundingBox(parentOfDeleted);
+			
+			// the cached copy does not follow subtree deletion, build it again
+			invalidateCache();
 			
-			// add orphaned geomNodes
+			// reinsert orphaned geomNodes, they are still counted in the statistics
 			for (SpatialDatabaseRecord orphan : orphanedGeometryNodes) {
-				add(orphan.getGeomNode());
+				insert(orphan.getGeomNode());
 			}			
 		} else {
 			// indexNode is root or contains more than the minimum number of geomNode references
 			boundingBox.adjustParentBoundingBox(indexNode, SpatialRelationshipTypes.RTREE_REFERENCE);
 			boundingBox.adjustPathBoundingBox(indexNode);
+			updateCachePath(indexNode);
 		}
-		countSaved = false;
-		totalGeometryCount --;
+		updateGeometryStatistics(gtype, -1);
 	}
 	
 	
 	
 
 	
+	/**
+	 * Update the index after the geometry of an indexed node has changed,
+	 * for example when a moving object reports a new position. If the new
+	 * bounding box still fits in the bounding box of its leaf, the entry
+	 * stays where it is, and the bounding boxes on the path to the root are
+	 * only recalculated where the old bounding box was on their edge.
+	 * Otherwise the entry is taken out of its leaf and inserted again below
+	 * the lowest ancestor that covers the new bounding box. Unlike remove and
+	 * add, this never collapses and reinserts a subtree: a leaf is only
+	 * deleted once it has no entries left.
+	 * <p>
+	 * The old bounding box is read from the leaf when packed leaf bounding
+	 * boxes are enabled, otherwise the path is always recalculated from the
+	 * leaf upwards, until a bounding box does not change.
+	 */
+	public void move(Node geomNode) {
+		move(geomNode, null);
+	}
+	
+	/**
+	 * Same as move(Node), with the bounding box the geometry had when it was
+	 * indexed, in index order, or null if it is not known.
+	 */
+	public void move(Node geomNode, double[] previousBBox) {
+		RTreeIndexInsertBuffer buffer = getInsertBuffer();
+		if (buffer != null && buffer.move(geomNode, boundingBox.getGeometryNodeBoundingBox(geomNode))) {
+			// not in the tree yet, buffered again with the new bounding box
+			return;
+		}
+		
+		Node leaf = findLeafContainingGeometryNode(geomNode);
+		if (previousBBox == null) previousBBox = getLeafEntryBBox(leaf, geomNode.getId());
+		recordRebuildChange(geomNode);
+		
+		double[] bbox = boundingBox.beginInsert(geomNode);
+		try {
+			double[] leafBBox = (double[]) leaf.getProperty(PROP_BBOX);
+			if (GenericBoundingBox.covers(leafBBox, bbox)) {
+				if (packedLeafBBoxes) {
+					removeLeafEntryBBox(leaf, geomNode.getId());
+					addLeafEntryBBox(leaf, geomNode.getId(), bbox);
+				}
+				if (previousBBox == null || touchesEdge(leafBBox, previousBBox)) {
+					shrinkPathBoundingBox(leaf);
+					updateCachePath(leaf);
+				}
+				return;
+			}
+			
+			// the entry leaves its node, reinsert it below the lowest ancestor that covers it
+			geomNode.getSingleRelationship(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING).delete();
+			removeLeafEntryBBox(leaf, geomNode.getId());
+			Node subtree = boundingBox.getIndexNodeParent(leaf);
+			while (subtree != null && !GenericBoundingBox.covers((double[]) subtree.getProperty(PROP_BBOX), bbox)) {
+				subtree = boundingBox.getIndexNodeParent(subtree);
+			}
+			insertWithBoundingBox(subtree == null ? boundingBox.getIndexRoot() : subtree, geomNode);
+			
+			// shrink or drop the old leaf
+			Node indexNode = leaf;
+			while (boundingBox.getIndexNodeParent(indexNode) != null
+					&& !indexNode.hasRelationship(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)
+					&& !indexNode.hasRelationship(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+				Node parent = boundingBox.getIndexNodeParent(indexNode);
+				updateIndexNodeStatistics(-deleteRecursivelyEmptySubtree(indexNode), 0);
+				indexNode = parent;
+			}
+			shrinkPathBoundingBox(indexNode);
+			invalidateCache();
+		} finally {
+			boundingBox.endInsert();
+		}
+	}
+	
+	/**
+	 * Remove many geometries at once, for example when expiring old data.
+	 * Unlike calling remove(long, boolean) for each of them, which condenses
+	 * the tree every time, the references are first unlinked in bulk,
+	 * committing every BULK_COMMIT_INTERVAL geometries, and the tree is then
+	 * condensed in one pass: leaves left with fewer than minNodeReferences
+	 * entries are dissolved and their remaining entries inserted again,
+	 * index nodes left without children are deleted, the bounding boxes of
+	 * the affected paths are recalculated, and the root is replaced by its
+	 * only child while it has just one. The monitor is told about every
+	 * geometry unlinked.
+	 */
+	public void removeAll(Iterable<Long> geomNodeIds, boolean deleteGeomNodes, Listener monitor) {
+		List<Long> ids = new ArrayList<Long>();
+		for (Long geomNodeId : geomNodeIds) {
+			ids.add(geomNodeId);
+		}
+		RTreeIndexInsertBuffer buffer = getInsertBuffer();
+		
+		// leaves that lost entries, and are known to belong to this tree
+		Set<Long> leafIds = new HashSet<Long>();
+		monitor.begin(ids.size());
+		try {
+			int[] geometryTypeDeltas = new int[GEOMETRY_TYPE_COUNT];
+			int count = 0;
+			Transaction tx = database.beginTx();
+			try {
+				for (Long geomNodeId : ids) {
+					Node geomNode = database.getNodeById(geomNodeId);
+					if (buffer == null || !buffer.remove(geomNodeId)) {
+						Relationship reference = geomNode.getSingleRelationship(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING);
+						Node leaf = reference == null ? null : reference.getStartNode();
+						if (leaf == null || !leafIds.contains(leaf.getId())) {
+							leaf = findLeafContainingGeometryNode(geomNode);
+							leafIds.add(leaf.getId());
+						}
+						reference.delete();
+						removeLeafEntryBBox(leaf, geomNodeId);
+						geometryTypeDeltas[getGeometryType(geomNode)]--;
+					}
+					if (deleteGeomNodes) deleteNode(geomNode);
+					monitor.worked(1);
+					
+					if (++count % BULK_COMMIT_INTERVAL == 0) {
+						updateGeometryStatistics(geometryTypeDeltas);
+						tx.success();
+						tx.finish();
+						tx = database.beginTx();
+					}
+				}
+				updateGeometryStatistics(geometryTypeDeltas);
+				tx.success();
+			} finally {
+				tx.finish();
+			}
+			
+			condenseTree(leafIds);
+		} finally {
+			monitor.done();
+		}
+	}
+	
 	public void removeAll(final boolean deleteGeomNodes, final Listener monitor) {
+		// the buffered geometries are removed with the tree, and the metadata node with their links
+		RTreeIndexInsertBuffer.disableBuffer(database, layer.getLayerNode());
 		Node indexRoot = boundingBox.getIndexRoot();
 		
 		monitor.begin(count());
@@ -285,16 +925,17 @@ public class RTreeIndex implements Constants {
 			Node metadataNode = metadataNodeRelationship.getEndNode();
 			metadataNodeRelationship.delete();
 			metadataNode.delete();
+			this.metadataNode = null;
 		
 			tx.success();
 		} finally {
 			tx.finish();
 		}		
-		countSaved = false;
-		totalGeometryCount = 0;
+		invalidateCache();
 	}
 	
     public void clear(final Listener monitor) {
+        RTreeIndexInsertBuffer buffer = getInsertBuffer();
         removeAll(false, new NullListener());
         Transaction tx = database.beginTx();
         try {
@@ -304,27 +945,161 @@ public class RTreeIndex implements Constants {
         } finally {
             tx.finish();
         }
+        if (buffer != null) setInsertBuffer(buffer.getMaxSize(), buffer.getFlushInterval());
     }
 	
 	public int count() {
-		saveCount();
-		return totalGeometryCount;
-	}
-
-	public boolean isEmpty() {
-		Node indexRoot = boundingBox.getIndexRoot();
-		return !indexRoot.hasProperty(PROP_BBOX);
+		Node metadata = getMetadataNode();
+		int count = metadata == null ? 0 : (Integer) metadata.getProperty(PROP_TOTAL_GEOMETRY_COUNT, 0);
+		RTreeIndexInsertBuffer buffer = getInsertBuffer();
+		return buffer == null ? count : count + buffer.size();
 	}
 	
-	public SpatialDatabaseRecord get(Long geomNodeId) {
-		Node geomNode = database.getNodeById(geomNodeId);			
-		// be sure geomNode is inside this RTree
-		findLeafContainingGeometryNode(geomNode);
+	/**
+	 * @return the statistics kept in the index metadata node, read without
+	 *         visiting the tree
+	 */
+	public RTreeIndexStatistics getStatistics() {
+		Node metadata = getMetadataNode();
+		int[] geometryTypeCounts = (int[]) metadata.getProperty(PROP_GEOMETRY_TYPE_COUNTS);
+		return new RTreeIndexStatistics(count(), geometryTypeCounts.clone(), (Integer) metadata.getProperty(PROP_TREE_DEPTH),
+				(Integer) metadata.getProperty(PROP_INDEX_NODE_COUNT), maxNodeReferences, isEmpty() ? null : getLayerBoundingBox());
+	}
 
-		return new SpatialDatabaseRecord(layer,geomNode);
+	/**
+	 * @return the density histogram kept in the index metadata node, or null
+	 *         if the index is empty. When the number of geometries has
+	 *         changed by more than a tenth, or the layer has grown outside its
+	 *         bounds, since the stored histogram was built, a histogram is
+	 *         built from the leaves of the tree in memory instead. This never
+	 *         writes to the database: the stored histogram is only replaced
+	 *         by bulk loads, rebuild() and updateHistogram().
+	 */
+	public RTreeIndexHistogram getHistogram() {
+		if (isEmpty()) return null;
+		
+		RTreeIndexHistogram histogram = getStoredHistogram();
+		if (histogram == null || isStale(histogram)) {
+			histogram = builtHistogram;
+			if (histogram == null || isStale(histogram)) {
+				histogram = buildHistogram();
+				builtHistogram = histogram;
+			}
+		}
+		return histogram;
 	}
 	
-	public List<SpatialDatabaseRecord> get(Set<Long> geomNodeIds) {
+	/**
+	 * Build the density histogram from the leaves of the tree, and store it
+	 * in the index metadata node.
+	 */
+	public void updateHistogram() {
+		if (isEmpty()) return;
+		
+		Transaction tx = database.beginTx();
+		try {
+			RTreeIndexHistogram histogram = buildHistogram();
+			Node metadata = getMetadataNode();
+			metadata.setProperty(PROP_HISTOGRAM_BOUNDS, histogram.getBounds());
+			metadata.setProperty(PROP_HISTOGRAM_SIZE, histogram.getSize());
+			metadata.setProperty(PROP_HISTOGRAM_CELLS, histogram.getCells());
+			metadata.setProperty(PROP_HISTOGRAM_GEOMETRY_COUNT, histogram.getGeometryCount());
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		builtHistogram = null;
+	}
+	
+	/**
+	 * @return the estimated number of geometries inside the bounding box, in
+	 *         index order (xmin, ymin, xmax, ymax)
+	 */
+	public double estimateCount(double[] bbox) {
+		RTreeIndexHistogram histogram = getHistogram();
+		return histogram == null ? 0 : histogram.estimateCount(bbox);
+	}
+
+	/**
+	 * Measure the shape of the tree: the fill, overlap and dead space of each
+	 * level, and the number of index nodes read by window searches at random
+	 * places in the layer. The bounding boxes of all geometries in leaves
+	 * without packed bounding boxes are decoded, so this costs about as much
+	 * as a visit of the whole index.
+	 * 
+	 * @param sampleQueries
+	 *            the number of window searches to run, each covering a tenth
+	 *            of the extent of the layer in every dimension
+	 */
+	public RTreeIndexDiagnostics getDiagnostics(int sampleQueries) {
+		RTreeIndexDiagnostics diagnostics = new RTreeIndexDiagnostics(maxNodeReferences);
+		
+		List<Node> level = new ArrayList<Node>();
+		level.add(boundingBox.getIndexRoot());
+		int depth = 0;
+		while (!level.isEmpty()) {
+			List<Node> nextLevel = new ArrayList<Node>();
+			for (Node indexNode : level) {
+				List<double[]> entryBBoxes = new ArrayList<double[]>();
+				boolean leaf = true;
+				for (Relationship rel : indexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+					leaf = false;
+					nextLevel.add(rel.getEndNode());
+					entryBBoxes.add(boundingBox.getIndexNodeBoundingBox(rel.getEndNode()));
+				}
+				if (leaf) {
+					entryBBoxes.addAll(getLeafEntryBBoxList(indexNode));
+				}
+				diagnostics.addIndexNode(depth, indexNode.hasProperty(PROP_BBOX) ? boundingBox.getIndexNodeBoundingBox(indexNode) : null,
+						entryBBoxes, leaf);
+			}
+			level = nextLevel;
+			depth++;
+		}
+		
+		if (!isEmpty()) {
+			double[] extent = getLayerBoundingBox();
+			// a fixed seed, so reports of the same tree can be compared
+			Random random = new Random(extent.length);
+			for (int i = 0; i < sampleQueries; i++) {
+				double[] window = new double[extent.length];
+				for (int d = GenericBoundingBox.getDimensions(extent) - 1; d >= 0; d--) {
+					int min = GenericBoundingBox.getMinIndex(d);
+					int max = GenericBoundingBox.getMaxIndex(d);
+					double size = (extent[max] - extent[min]) * DIAGNOSTICS_WINDOW;
+					window[min] = extent[min] + random.nextDouble() * (extent[max] - extent[min] - size);
+					window[max] = window[min] + size;
+				}
+				int[] visited = new int[2];
+				countVisitedNodes(boundingBox.getIndexRoot(), window, visited);
+				diagnostics.addSampleQuery(visited[0], visited[1]);
+			}
+		}
+		return diagnostics;
+	}
+	
+	public Node getIndexRoot() {
+		return boundingBox.getIndexRoot();
+	}
+	
+	public double[] getLayerBoundingBox() {
+		return boundingBox.getLayerBoundingBox();
+	}
+	
+	public boolean isEmpty() {
+		Node indexRoot = boundingBox.getIndexRoot();
+		return !indexRoot.hasProperty(PROP_BBOX);
+	}
+	
+	public SpatialDatabaseRecord get(Long geomNodeId) {
+		Node geomNode = database.getNodeById(geomNodeId);			
+		// be sure geomNode is inside this RTree
+		findLeafContainingGeometryNode(geomNode);
+
+		return new SpatialDatabaseRecord(layer,geomNode);
+	}
+	
+	public List<SpatialDatabaseRecord> get(Set<Long> geomNodeIds) {
 		List<SpatialDatabaseRecord> results = new ArrayList<SpatialDatabaseRecord>();
 		for (Long geomNodeId : geomNodeIds) {
 			results.add(get(geomNodeId));
@@ -333,17 +1108,179 @@ public class RTreeIndex implements Constants {
 	}
 
 	public void executeSearch(Search search) {
-		if (isEmpty()) return;
-		saveCount();
+		// take the buffered entries first, so none are missed if they are flushed during the search
+		RTreeIndexInsertBuffer buffer = getInsertBuffer();
+		List<RTreeIndexInsertBuffer.Entry> bufferedEntries = buffer == null ? null : buffer.getEntries();
+		
+		search.setLayer(layer);
+		if (isEmpty()) {
+			// only buffered geometries, if any
+		} else if (searchExecutor != null && search instanceof AbstractSearch && ((AbstractSearch) search).isParallelSafe() && !isInTransaction(database, true)) {
+			executeParallelSearch((AbstractSearch) search);
+		} else {
+			visitSubtree(search, boundingBox.getIndexRoot());
+		}
+		if (bufferedEntries != null) {
+			buffer.visit(search, bufferedEntries);
+		}
+	}
+	
+	/**
+	 * Run a batch of searches in one pass over the tree. Each index node is
+	 * read once and its bounding box passed to every search still interested
+	 * in that part of the tree, and each leaf is read once and its geometry
+	 * nodes passed to those searches only. The results end up in each search
+	 * as if it had been run on its own.
+	 */
+	public void executeSearches(List<? extends Search> searches) {
+		if (searches.isEmpty()) return;
+		RTreeIndexInsertBuffer buffer = getInsertBuffer();
+		List<RTreeIndexInsertBuffer.Entry> bufferedEntries = buffer == null ? null : buffer.getEntries();
 		
+		for (Search search : searches) {
+			search.setLayer(layer);
+		}
+		if (!isEmpty()) {
+			visitAll(searches, boundingBox.getIndexRoot());
+		}
+		if (bufferedEntries != null) {
+			for (Search search : searches) {
+				buffer.visit(search, bufferedEntries);
+			}
+		}
+	}
+	
+	/**
+	 * Make executeSearch split the tree into subtrees and search them on a
+	 * pool of threads. Results are collected in a thread-safe way by
+	 * AbstractSearch, and searches that are not AbstractSearch instances or
+	 * report isParallelSafe() false still run on the calling thread.
+	 * <p>
+	 * The search threads run outside any transaction, so a parallel search
+	 * only reads committed data and must not write. A search started while
+	 * the calling thread has an open transaction therefore also runs on the
+	 * calling thread, where it sees the uncommitted changes of that
+	 * transaction and cannot wait for its locks.
+	 * 
+	 * @param threads
+	 *            the number of search threads, or 0 to search on the calling
+	 *            thread
+	 * @param orderedResults
+	 *            keep the results in the order of a single threaded search,
+	 *            instead of the order in which they are found
+	 */
+	public synchronized void setParallelSearch(int threads, boolean orderedResults) {
+		if (searchExecutor != null) {
+			searchExecutor.shutdown();
+			searchExecutor = null;
+		}
+		if (threads > 0) {
+			searchExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "RTreeIndex search " + layer.getName());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		this.searchThreads = threads;
+		this.orderedResults = orderedResults;
+	}
+	
+	public Iterator<SpatialDatabaseRecord> search(Search search, int limit) {
 		search.setLayer(layer);
-		visit(search, boundingBox.getIndexRoot());
+		return new TreeSearchCursor(search, limit);
 	}
 	
 	public void warmUp() {
 		visit(new WarmUpVisitor(), boundingBox.getIndexRoot());
 	}
 	
+	/**
+	 * @return the k geometries closest to the point, closest first, using the
+	 *         planar distance in the coordinate units of the layer. The
+	 *         distance is set as user data on each record.
+	 */
+	public List<SpatialDatabaseRecord> findNearest(Coordinate point, int k) {
+		return new NearestNeighbourSearch.Planar(point).search(this, k);
+	}
+	
+	/**
+	 * @return the k geometries closest to the point, closest first, using the
+	 *         great-circle distance in km for layers with longitude / latitude
+	 *         coordinates. The distance is set as user data on each record.
+	 */
+	public List<SpatialDatabaseRecord> findNearestOrthodromic(Coordinate point, int k) {
+		return new NearestNeighbourSearch.Orthodromic(point).search(this, k);
+	}
+	
+	/**
+	 * Keep an in-memory copy of the non-leaf levels of this index, shared by
+	 * all RTreeIndex instances of the layer, and use it to prune searches.
+	 * 
+	 * @see RTreeIndexCache
+	 */
+	public void setCacheEnabled(boolean enabled) {
+		if (enabled && concurrentWriters) {
+			throw new SpatialDatabaseException("The index cache of layer '" + layer.getName() + "' can not be used with concurrent writers");
+		}
+		if (enabled) {
+			RTreeIndexCache.enableCache(database, layer.getLayerNode());
+		} else {
+			RTreeIndexCache.disableCache(database, layer.getLayerNode());
+		}
+	}
+	
+	/**
+	 * Allow several threads to add geometries to this layer at the same time.
+	 * add(Node) then write locks the index nodes top-down while it descends
+	 * to a leaf, enlarging their bounding boxes on the way, and releases the
+	 * locks on the ancestors as soon as the child it moves to has room for
+	 * another entry. A split therefore only keeps the subtree above the
+	 * overflowing leaf locked, up to the first ancestor that was not full,
+	 * and the root is only locked for the whole insert when it can split.
+	 * The statistics in the index metadata node are written when the
+	 * transaction commits, so count() does not include geometries added by
+	 * transactions that are still open.
+	 * <p>
+	 * Each add should run in its own transaction. Nodes that a transaction
+	 * has modified stay locked until it commits, so a transaction that adds
+	 * several geometries can fail with a DeadlockDetectedException, and
+	 * should then be retried. The split policy never reinserts entries in
+	 * this mode, and the index cache can not be enabled, since neither would
+	 * respect the locks. The setting is not recorded in the index metadata.
+	 */
+	public synchronized void setConcurrentWriters(boolean enabled) {
+		if (enabled == concurrentWriters) return;
+		if (enabled) {
+			setCacheEnabled(false);
+			statisticsHandler = new StatisticsTransactionHandler();
+			database.registerTransactionEventHandler(statisticsHandler);
+		} else {
+			database.unregisterTransactionEventHandler(statisticsHandler);
+			statisticsHandler = null;
+		}
+		concurrentWriters = enabled;
+	}
+	
+	public boolean hasConcurrentWriters() {
+		return concurrentWriters;
+	}
+	
+	public boolean isCacheEnabled() {
+		return getCache() != null;
+	}
+	
+	/**
+	 * Drop the in-memory copy of the index. It is built again on the next
+	 * search. Inside a transaction, it is dropped again when the transaction
+	 * commits.
+	 */
+	public void invalidateCache() {
+		RTreeIndexCache cache = getCache();
+		if (cache != null) cache.invalidate();
+	}
+	
 	
 	// Private methods
 	
@@ -352,7 +1289,12 @@ public class RTreeIndex implements Constants {
 	
 	
 	public void visit(SpatialIndexVisitor visitor, Node indexNode) {
-		if (!visitor.needsToVisit(boundingBox.getIndexNodeBoundingBox(indexNode))) return;
+		double[] indexNodeBoundingBox = boundingBox.getIndexNodeBoundingBox(indexNode);
+		if (!visitor.needsToVisit(indexNodeBoundingBox)) return;
+		if (covers(visitor, indexNodeBoundingBox)) {
+			visitCovered(database, (SpatialIndexCoveringVisitor) visitor, indexNode);
+			return;
+		}
 		
 		if (indexNode.hasRelationship(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
 			// Node is not a leaf
@@ -363,12 +1305,88 @@ public class RTreeIndex implements Constants {
 			}
 		} else if (indexNode.hasRelationship(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)) {
 			// Node is a leaf
-			for (Relationship rel : indexNode.getRelationships(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)) {
+			visitLeaf(database, visitor, indexNode);
+		}
+	}
+	
+	/**
+	 * Pass the geometry nodes referenced by a leaf index node to the visitor.
+	 * If the leaf has packed child bounding boxes, children whose bbox the
+	 * visitor does not need are skipped without loading them, and children
+	 * whose bbox a SpatialIndexCoveringVisitor covers are accepted as they are.
+	 */
+	static void visitLeaf(GraphDatabaseService database, SpatialIndexVisitor visitor, Node leaf) {
+		if (leaf.hasProperty(PROP_CHILD_IDS)) {
+			long[] childIds = (long[]) leaf.getProperty(PROP_CHILD_IDS);
+			double[] childBBoxes = (double[]) leaf.getProperty(PROP_CHILD_BBOXES);
+			int size = getBoundingBoxSize(childIds, childBBoxes);
+			double[] bbox = new double[size];
+			for (int i = 0; i < childIds.length; i++) {
+				System.arraycopy(childBBoxes, i * size, bbox, 0, size);
+				if (visitor.needsToVisit(bbox)) {
+					visitReference(visitor, bbox, database.getNodeById(childIds[i]));
+				}
+			}
+		} else {
+			for (Relationship rel : leaf.getRelationships(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)) {
 				visitor.onIndexReference(rel.getEndNode());
 			}
 		}
 	}
 	
+	/**
+	 * Pass a geometry node whose bounding box the visitor needs to the
+	 * visitor, as a covered reference if the visitor covers the bounding box.
+	 */
+	static void visitReference(SpatialIndexVisitor visitor, double[] bbox, Node geomNode) {
+		if (covers(visitor, bbox)) {
+			((SpatialIndexCoveringVisitor) visitor).onCoveredIndexReference(geomNode);
+		} else {
+			visitor.onIndexReference(geomNode);
+		}
+	}
+	
+	/**
+	 * @return true if the visitor is a SpatialIndexCoveringVisitor that
+	 *         accepts everything inside the bounding box
+	 */
+	static boolean covers(SpatialIndexVisitor visitor, double[] bbox) {
+		return visitor instanceof SpatialIndexCoveringVisitor && ((SpatialIndexCoveringVisitor) visitor).coversIndexNode(bbox);
+	}
+	
+	/**
+	 * Pass every geometry node below the index node to the visitor as a
+	 * covered reference, without reading or testing any bounding box.
+	 */
+	static void visitCovered(GraphDatabaseService database, SpatialIndexCoveringVisitor visitor, Node indexNode) {
+		if (indexNode.hasRelationship(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+			for (Relationship rel : indexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+				visitCovered(database, visitor, rel.getEndNode());
+			}
+		} else {
+			for (Node geomNode : getLeafGeometryNodes(database, indexNode)) {
+				visitor.onCoveredIndexReference(geomNode);
+			}
+		}
+	}
+	
+	/**
+	 * @return the geometry nodes referenced by a leaf index node, packed or not
+	 */
+	static List<Node> getLeafGeometryNodes(GraphDatabaseService database, Node leaf) {
+		List<Node> geomNodes = new ArrayList<Node>();
+		if (leaf.hasProperty(PROP_CHILD_IDS)) {
+			for (long childId : (long[]) leaf.getProperty(PROP_CHILD_IDS)) {
+				geomNodes.add(database.getNodeById(childId));
+			}
+		} else {
+			for (Relationship rel : leaf.getRelationships(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)) {
+				geomNodes.add(rel.getEndNode());
+			}
+		}
+		return geomNodes;
+	}
+	
 	private void visitInTx(SpatialIndexVisitor visitor, Long indexNodeId) {
         Node indexNode = database.getNodeById(indexNodeId);
         if(!visitor.needsToVisit(boundingBox.getIndexNodeBoundingBox(indexNode))) return;
@@ -390,9 +1408,7 @@ public class RTreeIndex implements Constants {
 			// Node is a leaf
 			Transaction tx = database.beginTx();
 			try {
-				for (Relationship rel : indexNode.getRelationships(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)) {
-					visitor.onIndexReference(rel.getEndNode());
-				}
+				visitLeaf(database, visitor, indexNode);
 			
 				tx.success();
 			} finally {
@@ -401,39 +1417,189 @@ public class RTreeIndex implements Constants {
 		}
 	}
 	
-	private Node getMetadataNode() {
+	/**
+	 * @return the index metadata node, or null after removeAll
+	 */
+	protected Node getMetadataNode() {
 		if (metadataNode == null) {
-			metadataNode = layer.getLayerNode().getSingleRelationship(SpatialRelationshipTypes.RTREE_METADATA, Direction.OUTGOING)
-					.getEndNode();
+			Relationship metadataRel = layer.getLayerNode().getSingleRelationship(SpatialRelationshipTypes.RTREE_METADATA, Direction.OUTGOING);
+			if (metadataRel != null) metadataNode = metadataRel.getEndNode();
 		}
 		return metadataNode;
 	}
 
-	public void finalize() {
-		saveCount();
+	/**
+	 * @return the GTYPE the geometry encoder stored on the geometry node, or
+	 *         GTYPE_GEOMETRY if it is missing or unknown
+	 */
+	private int getGeometryType(Node geomNode) {
+		Object gtype = geomNode.getProperty(PROP_TYPE, null);
+		if (gtype instanceof Integer && (Integer) gtype > 0 && (Integer) gtype < GEOMETRY_TYPE_COUNT) {
+			return (Integer) gtype;
+		} else {
+			return GTYPE_GEOMETRY;
+		}
 	}
-
+	
+	private void updateGeometryStatistics(int gtype, int delta) {
+		Node metadata = getMetadataNode();
+		metadata.setProperty(PROP_TOTAL_GEOMETRY_COUNT, (Integer) metadata.getProperty(PROP_TOTAL_GEOMETRY_COUNT) + delta);
+		int[] geometryTypeCounts = ((int[]) metadata.getProperty(PROP_GEOMETRY_TYPE_COUNTS)).clone();
+		geometryTypeCounts[gtype] += delta;
+		metadata.setProperty(PROP_GEOMETRY_TYPE_COUNTS, geometryTypeCounts);
+	}
+	
 	/**
-	 * Save the geometry count to the database if it has not been saved yet.
-	 * However, if the count is zero, first do an exhaustive search of the tree
-	 * and count everything before saving it.
+	 * Apply and reset the changes in the number of geometries of each type.
 	 */
-	private void saveCount() {
-		if (totalGeometryCount == 0) {
-			RecordCounter counter = new RecordCounter();
-			visit(counter, boundingBox.getIndexRoot());
-			totalGeometryCount = counter.getResult();
-			countSaved = false;
+	private void updateGeometryStatistics(int[] geometryTypeDeltas) {
+		for (int gtype = 0; gtype < geometryTypeDeltas.length; gtype++) {
+			if (geometryTypeDeltas[gtype] != 0) {
+				updateGeometryStatistics(gtype, geometryTypeDeltas[gtype]);
+				geometryTypeDeltas[gtype] = 0;
+			}
 		}
-		if (!countSaved) {
-			Transaction tx = database.beginTx();
-			try {
-				getMetadataNode().setProperty("totalGeometryCount", totalGeometryCount);
-				countSaved = true;
-				tx.success();
-			} finally {
-				tx.finish();
+	}
+	
+	private void updateIndexNodeStatistics(int indexNodeDelta, int treeDepthDelta) {
+		Node metadata = getMetadataNode();
+		metadata.setProperty(PROP_INDEX_NODE_COUNT, (Integer) metadata.getProperty(PROP_INDEX_NODE_COUNT) + indexNodeDelta);
+		if (treeDepthDelta != 0) {
+			metadata.setProperty(PROP_TREE_DEPTH, (Integer) metadata.getProperty(PROP_TREE_DEPTH) + treeDepthDelta);
+		}
+	}
+	
+	private void onIndexNodeCreated(Node indexNode, boolean newRoot) {
+		if (concurrentWriters) {
+			pendingStatistics.get().addIndexNode(indexNode.getId(), newRoot);
+		} else {
+			updateIndexNodeStatistics(1, newRoot ? 1 : 0);
+		}
+	}
+	
+	/**
+	 * @return the histogram stored in the index metadata node, or null if
+	 *         none has been stored
+	 */
+	private RTreeIndexHistogram getStoredHistogram() {
+		Node metadata = getMetadataNode();
+		if (!metadata.hasProperty(PROP_HISTOGRAM_CELLS)) return null;
+		return new RTreeIndexHistogram((double[]) metadata.getProperty(PROP_HISTOGRAM_BOUNDS),
+				(Integer) metadata.getProperty(PROP_HISTOGRAM_SIZE), (double[]) metadata.getProperty(PROP_HISTOGRAM_CELLS),
+				(Integer) metadata.getProperty(PROP_HISTOGRAM_GEOMETRY_COUNT));
+	}
+	
+	private boolean isStale(RTreeIndexHistogram histogram) {
+		return Math.abs(count() - histogram.getGeometryCount()) > histogram.getGeometryCount() * HISTOGRAM_REBUILD_FRACTION
+				|| !histogram.covers(getLayerBoundingBox());
+	}
+	
+	/**
+	 * Spread the entries of every leaf over the leaf bounding box. Only index
+	 * nodes are read, so this is much cheaper than a visit of all the
+	 * geometries.
+	 */
+	private RTreeIndexHistogram buildHistogram() {
+		RTreeIndexHistogram histogram = new RTreeIndexHistogram(getLayerBoundingBox(), HISTOGRAM_SIZE);
+		
+		List<Node> level = new ArrayList<Node>();
+		level.add(boundingBox.getIndexRoot());
+		while (!level.isEmpty()) {
+			List<Node> nextLevel = new ArrayList<Node>();
+			for (Node indexNode : level) {
+				if (indexNode.hasRelationship(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+					for (Relationship rel : indexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+						nextLevel.add(rel.getEndNode());
+					}
+				} else if (indexNode.hasProperty(PROP_BBOX)) {
+					histogram.add((double[]) indexNode.getProperty(PROP_BBOX), countLeafEntries(indexNode));
+				}
+			}
+			level = nextLevel;
+		}
+		return histogram;
+	}
+	
+	private int countLeafEntries(Node leaf) {
+		if (leaf.hasProperty(PROP_CHILD_IDS)) {
+			return ((long[]) leaf.getProperty(PROP_CHILD_IDS)).length;
+		}
+		return boundingBox.countChildren(leaf, SpatialRelationshipTypes.RTREE_REFERENCE);
+	}
+	
+	private List<double[]> getLeafEntryBBoxList(Node leaf) {
+		List<double[]> result = new ArrayList<double[]>();
+		if (leaf.hasProperty(PROP_CHILD_IDS)) {
+			result.addAll(getLeafEntryBBoxes(leaf).values());
+		} else {
+			for (Relationship rel : leaf.getRelationships(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)) {
+				result.add(boundingBox.getGeometryNodeBoundingBox(rel.getEndNode()));
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Count the index nodes, and of those the leaves, that a window search
+	 * would read, in visited[0] and visited[1].
+	 */
+	private void countVisitedNodes(Node indexNode, double[] window, int[] visited) {
+		if (indexNode.hasProperty(PROP_BBOX) && !GenericBoundingBox.intersects(window, boundingBox.getIndexNodeBoundingBox(indexNode))) {
+			return;
+		}
+		
+		visited[0]++;
+		boolean leaf = true;
+		for (Relationship rel : indexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+			leaf = false;
+			countVisitedNodes(rel.getEndNode(), window, visited);
+		}
+		if (leaf) visited[1]++;
+	}
+	
+	/**
+	 * Count everything in the tree once, for indexes created before the
+	 * statistics were kept in the metadata node.
+	 */
+	private void initStatistics() {
+		int geometryCount = 0;
+		int[] geometryTypeCounts = new int[GEOMETRY_TYPE_COUNT];
+		int treeDepth = 0;
+		int indexNodeCount = 0;
+		
+		List<Node> level = new ArrayList<Node>();
+		level.add(boundingBox.getIndexRoot());
+		while (!level.isEmpty()) {
+			treeDepth++;
+			indexNodeCount += level.size();
+			List<Node> nextLevel = new ArrayList<Node>();
+			for (Node indexNode : level) {
+				for (Relationship rel : indexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+					nextLevel.add(rel.getEndNode());
+				}
+				for (Relationship rel : indexNode.getRelationships(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)) {
+					geometryCount++;
+					geometryTypeCounts[getGeometryType(rel.getEndNode())]++;
+				}
 			}
+			level = nextLevel;
+		}
+		
+		metadataNode.setProperty(PROP_TOTAL_GEOMETRY_COUNT, geometryCount);
+		metadataNode.setProperty(PROP_GEOMETRY_TYPE_COUNTS, geometryTypeCounts);
+		metadataNode.setProperty(PROP_TREE_DEPTH, treeDepth);
+		metadataNode.setProperty(PROP_INDEX_NODE_COUNT, indexNodeCount);
+	}
+	
+	/**
+	 * Open the insert buffer stored in the index metadata, unless another
+	 * RTreeIndex instance of the layer has opened it already.
+	 */
+	private void initInsertBuffer() {
+		Node metadata = getMetadataNode();
+		if (metadata != null && metadata.hasProperty(PROP_INSERT_BUFFER_SIZE)) {
+			RTreeIndexInsertBuffer.enableBuffer(this, database, (Integer) metadata.getProperty(PROP_INSERT_BUFFER_SIZE),
+					(Long) metadata.getProperty(PROP_INSERT_BUFFER_FLUSH_INTERVAL, 0L));
 		}
 	}
 	
@@ -445,8 +1611,16 @@ public class RTreeIndex implements Constants {
 			
 			maxNodeReferences = (Integer) metadataNode.getProperty("maxNodeReferences");
 			minNodeReferences = (Integer) metadataNode.getProperty("minNodeReferences");
-			if (countSaved) {
-				totalGeometryCount = (Integer) metadataNode.getProperty("totalGeometryCount", 0);
+			packedLeafBBoxes = (Boolean) metadataNode.getProperty(PROP_PACKED_LEAF_BBOXES, false);
+			boundingBox.setDimensionProperties((String[]) metadataNode.getProperty(PROP_DIMENSION_PROPERTIES, new String[0]));
+			if (!metadataNode.hasProperty(PROP_INDEX_NODE_COUNT)) {
+				Transaction tx = database.beginTx();
+				try {
+					initStatistics();
+					tx.success();
+				} finally {
+					tx.finish();
+				}
 			}
 		} else {
 			// metadata initialization
@@ -455,10 +1629,29 @@ public class RTreeIndex implements Constants {
 			
 			metadataNode.setProperty("maxNodeReferences", maxNodeReferences);
 			metadataNode.setProperty("minNodeReferences", minNodeReferences);
+			metadataNode.setProperty(PROP_INDEX_TYPE, getIndexType());
+			metadataNode.setProperty(PROP_TOTAL_GEOMETRY_COUNT, 0);
+			metadataNode.setProperty(PROP_GEOMETRY_TYPE_COUNTS, new int[GEOMETRY_TYPE_COUNT]);
+			metadataNode.setProperty(PROP_TREE_DEPTH, 1);
+			metadataNode.setProperty(PROP_INDEX_NODE_COUNT, 1);
 		}
-		saveCount();
 	}
 
+	private void initSplitPolicy() {
+		Node metadataNode = getMetadataNode();
+		if (metadataNode.hasProperty(PROP_SPLIT_POLICY)) {
+			String splitPolicyClassName = (String) metadataNode.getProperty(PROP_SPLIT_POLICY);
+			try {
+				splitPolicy = (SplitPolicy) Class.forName(splitPolicyClassName).newInstance();
+			} catch (Exception e) {
+				throw new SpatialDatabaseException(e);
+			}
+		} else {
+			splitPolicy = new QuadraticSplitPolicy();
+		}
+		splitPolicy.init(this);
+	}
+	
 	private void initIndexRoot() {
 		Node layerNode = layer.getLayerNode();
 		if (!layerNode.hasRelationship(SpatialRelationshipTypes.RTREE_ROOT, Direction.OUTGOING)) {
@@ -470,29 +1663,231 @@ public class RTreeIndex implements Constants {
 	
 	
 	
-	private boolean nodeIsLeaf(Node node) {
-		return !node.hasRelationship(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING);
+	private void insert(Node geomNode) {
+		boundingBox.beginInsert(geomNode);
+		try {
+			insertWithBoundingBox(geomNode);
+		} finally {
+			boundingBox.endInsert();
+		}
 	}
 	
-
-	private Node chooseSubTree(Node parentIndexNode, Node geomRootNode) {
-		// children that can contain the new geometry
-		List<Node> indexNodes = new ArrayList<Node>();
+	private void insertWithBoundingBox(Node geomNode) {
+		insertWithBoundingBox(boundingBox.getIndexRoot(), geomNode);
+	}
+	
+	/**
+	 * Insert below the specified index node, which is the root unless the
+	 * geometry is being moved.
+	 */
+	private void insertWithBoundingBox(Node parent, Node geomNode) {
+		// choose a path down to a leaf
+		while (!nodeIsLeaf(parent)) {
+			parent = chooseSubTree(parent, geomNode);
+		}
 		
-		// pick the child that contains the new geometry bounding box		
-		Iterable<Relationship> relationships = parentIndexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING);		
-		for (Relationship relation : relationships) {
-			Node indexNode = relation.getEndNode();
-			Double x = (Double)geomRootNode.getProperty("x");
-			Double y = (Double)geomRootNode.getProperty("y");
-			if (boundingBox.coversBoundingBox(boundingBox.getIndexNodeBoundingBox(indexNode),x.doubleValue(),y.doubleValue())) {
-				indexNodes.add(indexNode);
+		if (boundingBox.countChildren(parent, SpatialRelationshipTypes.RTREE_REFERENCE) == maxNodeReferences) {
+			insertInLeaf(parent, geomNode);
+			
+			// give the split policy one chance per insert to move entries elsewhere instead of splitting
+			List<Node> reinsertEntries = null;
+			if (!reinserting && boundingBox.getIndexNodeParent(parent) != null) {
+				reinsertEntries = splitPolicy.chooseReinsertEntries(parent);
+			}
+			if (reinsertEntries != null && !reinsertEntries.isEmpty()) {
+				for (Node entry : reinsertEntries) {
+					entry.getSingleRelationship(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING).delete();
+					removeLeafEntryBBox(parent, entry.getId());
+				}
+				resetPathBoundingBox(parent);
+				reinserting = true;
+				try {
+					for (Node entry : reinsertEntries) {
+						insert(entry);
+					}
+				} finally {
+					reinserting = false;
+				}
+			} else {
+				splitAndAdjustPathBoundingBox(parent);
+			}
+		} else {
+			if (insertInLeaf(parent, geomNode)) {
+				// bbox enlargement needed
+				boundingBox.adjustPathBoundingBox(parent);							
+				updateCachePath(parent);
 			}
 		}
-
-		if (indexNodes.size() > 1) {
-			return chooseIndexNodeWithSmallestArea(indexNodes);
-		} else if (indexNodes.size() == 1) {
+	}
+	
+	/**
+	 * Insert with lock coupling, see setConcurrentWriters. The path holds the
+	 * locks on the index nodes that a split below the current node could
+	 * still modify, starting from the layer node, which links the root.
+	 */
+	private void insertConcurrently(Node geomNode) {
+		Transaction tx = database.beginTx();
+		LockedPath path = new LockedPath(tx);
+		double[] geomBBox = boundingBox.beginInsert(geomNode);
+		try {
+			path.lock(layer.getLayerNode());
+			// the root can only be replaced while the layer node is locked
+			Node indexNode = boundingBox.getIndexRoot();
+			path.lock(indexNode);
+			while (true) {
+				if (hasRoomForEntry(indexNode)) {
+					// nothing above this node changes anymore
+					path.releaseAncestors();
+				}
+				if (nodeIsLeaf(indexNode)) break;
+				
+				// enlarge on the way down, a split below never needs to enlarge an ancestor
+				boundingBox.adjustParentBoundingBox(indexNode, geomBBox);
+				indexNode = chooseSubTree(indexNode, geomNode);
+				path.lock(indexNode);
+			}
+			
+			boolean split = !hasRoomForEntry(indexNode);
+			insertInLeaf(indexNode, geomNode);
+			if (split) {
+				splitAndAdjustPathBoundingBox(indexNode);
+			}
+			tx.success();
+		} finally {
+			path.releaseAll();
+			boundingBox.endInsert();
+			tx.finish();
+		}
+	}
+	
+	private boolean hasRoomForEntry(Node indexNode) {
+		RelationshipType relationshipType = nodeIsLeaf(indexNode) ? SpatialRelationshipTypes.RTREE_REFERENCE : SpatialRelationshipTypes.RTREE_CHILD;
+		return boundingBox.countChildren(indexNode, relationshipType) < maxNodeReferences;
+	}
+	
+	/**
+	 * Lock the children of an index node before a split reads their bounding
+	 * boxes, since other writers may still be enlarging them. The split moves
+	 * the children, which keeps them locked until commit anyway.
+	 */
+	private void lockChildNodes(Node indexNode) {
+		Transaction tx = database.beginTx();
+		try {
+			for (Relationship rel : indexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+				tx.acquireWriteLock(rel.getEndNode());
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+	
+	/**
+	 * Recalculate the bounding box of an index node from its children, and
+	 * then of every index node on the path to the root. Unlike
+	 * adjustPathBoundingBox, this also shrinks the bounding boxes after
+	 * entries have been moved out of a node.
+	 */
+	protected void resetPathBoundingBox(Node indexNode) {
+		Node first = indexNode;
+		while (indexNode != null) {
+			resetBoundingBox(indexNode);
+			indexNode = boundingBox.getIndexNodeParent(indexNode);
+		}
+		updateCachePath(first);
+	}
+	
+	/**
+	 * Recalculate the bounding boxes from the index node up to the first one
+	 * that does not change.
+	 */
+	private void shrinkPathBoundingBox(Node indexNode) {
+		while (indexNode != null) {
+			Object before = indexNode.getProperty(PROP_BBOX, null);
+			resetBoundingBox(indexNode);
+			Object after = indexNode.getProperty(PROP_BBOX, null);
+			if (before != null && after != null && Arrays.equals((double[]) before, (double[]) after)) break;
+			indexNode = boundingBox.getIndexNodeParent(indexNode);
+		}
+	}
+	
+	/**
+	 * @return true if the child bounding box reaches the bounding box of its
+	 *         parent in any dimension, so that the parent can shrink when the
+	 *         child moves away
+	 */
+	private static boolean touchesEdge(double[] parentBBox, double[] childBBox) {
+		int dimensions = GenericBoundingBox.getDimensions(parentBBox);
+		for (int d = 0; d < dimensions; d++) {
+			int min = GenericBoundingBox.getMinIndex(d);
+			int max = GenericBoundingBox.getMaxIndex(d);
+			if (childBBox[min] <= parentBBox[min] || childBBox[max] >= parentBBox[max]) return true;
+		}
+		return false;
+	}
+	
+	protected void resetBoundingBox(Node indexNode) {
+		if (indexNode.hasProperty(PROP_CHILD_IDS)) {
+			// a leaf with packed entries, no need to decode the geometries
+			long[] childIds = (long[]) indexNode.getProperty(PROP_CHILD_IDS);
+			double[] childBBoxes = (double[]) indexNode.getProperty(PROP_CHILD_BBOXES);
+			if (childIds.length > 0) {
+				int size = getBoundingBoxSize(childIds, childBBoxes);
+				double[] bbox = new double[size];
+				System.arraycopy(childBBoxes, 0, bbox, 0, size);
+				double[] childBBox = new double[size];
+				for (int i = 1; i < childIds.length; i++) {
+					System.arraycopy(childBBoxes, i * size, childBBox, 0, size);
+					GenericBoundingBox.expandToInclude(bbox, childBBox);
+				}
+				indexNode.setProperty(PROP_BBOX, bbox);
+				return;
+			}
+		}
+		
+		double[] bbox = null;
+		for (Relationship rel : indexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+			bbox = expandBoundingBox(bbox, (double[]) rel.getEndNode().getProperty(PROP_BBOX));
+		}
+		for (Relationship rel : indexNode.getRelationships(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)) {
+			bbox = expandBoundingBox(bbox, boundingBox.getGeometryNodeBoundingBox(rel.getEndNode()));
+		}
+		if (bbox != null) {
+			indexNode.setProperty(PROP_BBOX, bbox);
+		} else if (indexNode.hasProperty(PROP_BBOX)) {
+			indexNode.removeProperty(PROP_BBOX);
+		}
+	}
+	
+	/**
+	 * @return the index type recorded in the index metadata node
+	 */
+	protected String getIndexType() {
+		return INDEX_TYPE_RTREE;
+	}
+	
+	protected boolean nodeIsLeaf(Node node) {
+		return !node.hasRelationship(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING);
+	}
+	
+
+	protected Node chooseSubTree(Node parentIndexNode, Node geomRootNode) {
+		// children that can contain the new geometry
+		List<Node> indexNodes = new ArrayList<Node>();
+		
+		// pick the child that contains the new geometry bounding box		
+		double[] geomBBox = boundingBox.getGeometryNodeBoundingBox(geomRootNode);
+		Iterable<Relationship> relationships = parentIndexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING);		
+		for (Relationship relation : relationships) {
+			Node indexNode = relation.getEndNode();
+			if (GenericBoundingBox.covers(boundingBox.getIndexNodeBoundingBox(indexNode), geomBBox)) {
+				indexNodes.add(indexNode);
+			}
+		}
+
+		if (indexNodes.size() > 1) {
+			return chooseIndexNodeWithSmallestArea(indexNodes);
+		} else if (indexNodes.size() == 1) {
 			return indexNodes.get(0);
 		}
 		
@@ -501,7 +1896,7 @@ public class RTreeIndex implements Constants {
 		relationships = parentIndexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING);
 		for (Relationship relation : relationships) {
 			Node indexNode = relation.getEndNode();
-			double enlargementNeeded = boundingBox.getAreaEnlargement(indexNode, geomRootNode);
+			double enlargementNeeded = GenericBoundingBox.getAreaEnlargement(boundingBox.getIndexNodeBoundingBox(indexNode), geomBBox);
 
 			if (enlargementNeeded < minimumEnlargement) {
 				indexNodes.clear();
@@ -550,13 +1945,28 @@ public class RTreeIndex implements Constants {
 	/**
 	 * @return is enlargement needed?
 	 */
-	private boolean insertInLeaf(Node indexNode, Node geomRootNode) {
-		return boundingBox.addChild(indexNode, SpatialRelationshipTypes.RTREE_REFERENCE, geomRootNode);
+	protected boolean insertInLeaf(Node indexNode, Node geomRootNode) {
+		boolean enlarged = boundingBox.addChild(indexNode, SpatialRelationshipTypes.RTREE_REFERENCE, geomRootNode);
+		if (packedLeafBBoxes) {
+			addLeafEntryBBox(indexNode, geomRootNode.getId(), boundingBox.getGeometryNodeBoundingBox(geomRootNode));
+		}
+		return enlarged;
 	}
 
 	private void splitAndAdjustPathBoundingBox(Node indexNode) {
 		// create a new node and distribute the entries
-		Node newIndexNode = quadraticSplit(indexNode);
+		Map<Long, double[]> leafEntryBBoxes = packedLeafBBoxes && nodeIsLeaf(indexNode) ? getLeafEntryBBoxes(indexNode) : null;
+		if (concurrentWriters && !nodeIsLeaf(indexNode)) {
+			lockChildNodes(indexNode);
+		}
+		Node newIndexNode = splitIndexNode(indexNode);
+		onIndexNodeCreated(newIndexNode, false);
+		if (leafEntryBBoxes != null) {
+			writeLeafEntryBBoxes(indexNode, leafEntryBBoxes);
+			writeLeafEntryBBoxes(newIndexNode, leafEntryBBoxes);
+		}
+		reloadCache(indexNode);
+		reloadCache(newIndexNode);
 		Node parent = boundingBox.getIndexNodeParent(indexNode);
 		if (parent == null) {
 			// if indexNode is the root
@@ -565,18 +1975,24 @@ public class RTreeIndex implements Constants {
 			boundingBox.adjustParentBoundingBox(parent, (double[]) indexNode.getProperty(PROP_BBOX));
 			
 			boundingBox.addChild(parent, SpatialRelationshipTypes.RTREE_CHILD, newIndexNode);
+			reloadCache(parent);
 
 			if (boundingBox.countChildren(parent, SpatialRelationshipTypes.RTREE_CHILD) > maxNodeReferences) {
 				splitAndAdjustPathBoundingBox(parent);
 			} else {
 				boundingBox.adjustPathBoundingBox(parent);
+				updateCachePath(parent);
 			}
 		}
 	}
 
-	private Node quadraticSplit(Node indexNode) {
-		if (nodeIsLeaf(indexNode)) return quadraticSplit(indexNode, SpatialRelationshipTypes.RTREE_REFERENCE);
-		else return quadraticSplit(indexNode, SpatialRelationshipTypes.RTREE_CHILD);
+	/**
+	 * Move part of the entries of an overflowing index node to a new index
+	 * node, and return the new node.
+	 */
+	protected Node splitIndexNode(Node indexNode) {
+		if (nodeIsLeaf(indexNode)) return splitPolicy.split(indexNode, SpatialRelationshipTypes.RTREE_REFERENCE);
+		else return splitPolicy.split(indexNode, SpatialRelationshipTypes.RTREE_CHILD);
 	}
 
 	
@@ -589,6 +2005,8 @@ public class RTreeIndex implements Constants {
 		Node layerNode = layer.getLayerNode();
 		layerNode.getSingleRelationship(SpatialRelationshipTypes.RTREE_ROOT, Direction.OUTGOING).delete();
 		layerNode.createRelationshipTo(newRoot, SpatialRelationshipTypes.RTREE_ROOT);
+		onIndexNodeCreated(newRoot, true);
+		reloadCache(newRoot);
 	}
 
     
@@ -601,9 +2019,503 @@ public class RTreeIndex implements Constants {
 	
 	
 	
-	private void deleteRecursivelyEmptySubtree(Node indexNode) {
+	private void setPackedLeafBBoxes(Node indexNode, boolean enabled) {
+		if (indexNode.hasRelationship(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+			for (Relationship rel : indexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+				setPackedLeafBBoxes(rel.getEndNode(), enabled);
+			}
+		} else if (enabled) {
+			writeLeafEntryBBoxes(indexNode, new HashMap<Long, double[]>());
+		} else if (indexNode.hasProperty(PROP_CHILD_IDS)) {
+			indexNode.removeProperty(PROP_CHILD_IDS);
+			indexNode.removeProperty(PROP_CHILD_BBOXES);
+		}
+	}
+	
+	private void setLeafEntryBBoxes(Node leaf, List<IndexEntry> entries) {
+		int size = boundingBox.getBoundingBoxSize();
+		long[] childIds = new long[entries.size()];
+		double[] childBBoxes = new double[entries.size() * size];
+		for (int i = 0; i < childIds.length; i++) {
+			childIds[i] = entries.get(i).node.getId();
+			System.arraycopy(entries.get(i).bbox, 0, childBBoxes, i * size, size);
+		}
+		leaf.setProperty(PROP_CHILD_IDS, childIds);
+		leaf.setProperty(PROP_CHILD_BBOXES, childBBoxes);
+	}
+	
+	private Map<Long, double[]> getLeafEntryBBoxes(Node leaf) {
+		Map<Long, double[]> result = new HashMap<Long, double[]>();
+		if (leaf.hasProperty(PROP_CHILD_IDS)) {
+			long[] childIds = (long[]) leaf.getProperty(PROP_CHILD_IDS);
+			double[] childBBoxes = (double[]) leaf.getProperty(PROP_CHILD_BBOXES);
+			int size = getBoundingBoxSize(childIds, childBBoxes);
+			for (int i = 0; i < childIds.length; i++) {
+				double[] bbox = new double[size];
+				System.arraycopy(childBBoxes, i * size, bbox, 0, size);
+				result.put(childIds[i], bbox);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Rewrite the packed child properties of a leaf from its RTREE_REFERENCE
+	 * relationships, decoding only the bounding boxes not already known.
+	 */
+	private void writeLeafEntryBBoxes(Node leaf, Map<Long, double[]> knownBBoxes) {
+		List<IndexEntry> entries = new ArrayList<IndexEntry>();
+		for (Relationship rel : leaf.getRelationships(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)) {
+			Node geomNode = rel.getEndNode();
+			double[] bbox = knownBBoxes.get(geomNode.getId());
+			if (bbox == null) bbox = boundingBox.getGeometryNodeBoundingBox(geomNode);
+			entries.add(new IndexEntry(geomNode, bbox));
+		}
+		setLeafEntryBBoxes(leaf, entries);
+	}
+	
+	private void addLeafEntryBBox(Node leaf, long geomNodeId, double[] bbox) {
+		long[] childIds = (long[]) leaf.getProperty(PROP_CHILD_IDS, new long[0]);
+		double[] childBBoxes = (double[]) leaf.getProperty(PROP_CHILD_BBOXES, new double[0]);
+		
+		long[] newChildIds = new long[childIds.length + 1];
+		System.arraycopy(childIds, 0, newChildIds, 0, childIds.length);
+		newChildIds[childIds.length] = geomNodeId;
+		double[] newChildBBoxes = new double[childBBoxes.length + bbox.length];
+		System.arraycopy(childBBoxes, 0, newChildBBoxes, 0, childBBoxes.length);
+		System.arraycopy(bbox, 0, newChildBBoxes, childBBoxes.length, bbox.length);
+		
+		leaf.setProperty(PROP_CHILD_IDS, newChildIds);
+		leaf.setProperty(PROP_CHILD_BBOXES, newChildBBoxes);
+	}
+	
+	/**
+	 * @return the packed bounding box of a leaf entry, or null if the leaf
+	 *         has no packed bounding boxes
+	 */
+	private double[] getLeafEntryBBox(Node leaf, long geomNodeId) {
+		if (!leaf.hasProperty(PROP_CHILD_IDS)) return null;
+		long[] childIds = (long[]) leaf.getProperty(PROP_CHILD_IDS);
+		double[] childBBoxes = (double[]) leaf.getProperty(PROP_CHILD_BBOXES);
+		int size = getBoundingBoxSize(childIds, childBBoxes);
+		for (int i = 0; i < childIds.length; i++) {
+			if (childIds[i] == geomNodeId) {
+				double[] bbox = new double[size];
+				System.arraycopy(childBBoxes, i * size, bbox, 0, size);
+				return bbox;
+			}
+		}
+		return null;
+	}
+	
+	private void removeLeafEntryBBox(Node leaf, long geomNodeId) {
+		if (!leaf.hasProperty(PROP_CHILD_IDS)) return;
+		long[] childIds = (long[]) leaf.getProperty(PROP_CHILD_IDS);
+		double[] childBBoxes = (double[]) leaf.getProperty(PROP_CHILD_BBOXES);
+		int size = getBoundingBoxSize(childIds, childBBoxes);
+		for (int i = 0; i < childIds.length; i++) {
+			if (childIds[i] == geomNodeId) {
+				long[] newChildIds = new long[childIds.length - 1];
+				System.arraycopy(childIds, 0, newChildIds, 0, i);
+				System.arraycopy(childIds, i + 1, newChildIds, i, childIds.length - i - 1);
+				double[] newChildBBoxes = new double[childBBoxes.length - size];
+				System.arraycopy(childBBoxes, 0, newChildBBoxes, 0, i * size);
+				System.arraycopy(childBBoxes, (i + 1) * size, newChildBBoxes, i * size, childBBoxes.length - (i + 1) * size);
+				
+				leaf.setProperty(PROP_CHILD_IDS, newChildIds);
+				leaf.setProperty(PROP_CHILD_BBOXES, newChildBBoxes);
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of values per child in a PROP_CHILD_BBOXES array
+	 */
+	static int getBoundingBoxSize(long[] childIds, double[] childBBoxes) {
+		return childIds.length == 0 ? 4 : childBBoxes.length / childIds.length;
+	}
+	
+	private void visitAll(List<? extends SpatialIndexVisitor> visitors, Node indexNode) {
+		double[] indexNodeBoundingBox = boundingBox.getIndexNodeBoundingBox(indexNode);
+		List<SpatialIndexVisitor> interested = new ArrayList<SpatialIndexVisitor>(visitors.size());
+		for (SpatialIndexVisitor visitor : visitors) {
+			if (!visitor.needsToVisit(indexNodeBoundingBox)) continue;
+			if (covers(visitor, indexNodeBoundingBox)) {
+				// this search takes the whole subtree, the others go on testing it
+				visitCovered(database, (SpatialIndexCoveringVisitor) visitor, indexNode);
+			} else {
+				interested.add(visitor);
+			}
+		}
+		if (interested.isEmpty()) return;
+		
+		if (indexNode.hasRelationship(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+			for (Relationship rel : indexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+				visitAll(interested, rel.getEndNode());
+			}
+		} else if (indexNode.hasProperty(PROP_CHILD_IDS)) {
+			// only searches that need a child's packed bbox get the child
+			long[] childIds = (long[]) indexNode.getProperty(PROP_CHILD_IDS);
+			double[] childBBoxes = (double[]) indexNode.getProperty(PROP_CHILD_BBOXES);
+			int size = getBoundingBoxSize(childIds, childBBoxes);
+			double[] bbox = new double[size];
+			for (int i = 0; i < childIds.length; i++) {
+				Node geomNode = null;
+				for (SpatialIndexVisitor visitor : interested) {
+					System.arraycopy(childBBoxes, i * size, bbox, 0, size);
+					if (visitor.needsToVisit(bbox)) {
+						if (geomNode == null) geomNode = database.getNodeById(childIds[i]);
+						visitReference(visitor, bbox, geomNode);
+					}
+				}
+			}
+		} else {
+			for (Relationship rel : indexNode.getRelationships(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)) {
+				Node geomNode = rel.getEndNode();
+				for (SpatialIndexVisitor visitor : interested) {
+					visitor.onIndexReference(geomNode);
+				}
+			}
+		}
+	}
+	
+	private void visitSubtree(SpatialIndexVisitor visitor, Node indexNode) {
+		RTreeIndexCache cache = getCache();
+		if (cache != null && !cache.hasPendingChanges()) {
+			cache.visit(visitor, indexNode);
+		} else {
+			visit(visitor, indexNode);
+		}
+	}
+	
+	/**
+	 * @param unknown
+	 *            returned if the database does not tell
+	 * @return true if the calling thread has an open transaction, whose
+	 *         changes and locks other threads do not share
+	 */
+	static boolean isInTransaction(GraphDatabaseService database, boolean unknown) {
+		if (!(database instanceof AbstractGraphDatabase)) {
+			return unknown;
+		}
+		try {
+			return ((AbstractGraphDatabase) database).getConfig().getTxModule().getTxManager().getTransaction() != null;
+		} catch (SystemException e) {
+			throw new SpatialDatabaseException(e);
+		}
+	}
+	
+	private void executeParallelSearch(final AbstractSearch search) {
+		List<Node> subtrees = splitForParallelSearch(search);
+		search.beginParallel(subtrees.size(), orderedResults);
+		List<Future<?>> tasks = new ArrayList<Future<?>>(subtrees.size());
+		try {
+			for (int i = 0; i < subtrees.size(); i++) {
+				final int partition = i;
+				final Node subtree = subtrees.get(i);
+				tasks.add(searchExecutor.submit(new Runnable() {
+					public void run() {
+						search.setPartition(partition);
+						visitSubtree(search, subtree);
+					}
+				}));
+			}
+			for (Future<?> task : tasks) {
+				task.get();
+			}
+		} catch (InterruptedException e) {
+			throw new SpatialDatabaseException(e);
+		} catch (ExecutionException e) {
+			throw new SpatialDatabaseException(e.getCause());
+		} finally {
+			for (Future<?> task : tasks) {
+				task.cancel(true);
+			}
+			search.endParallel();
+		}
+	}
+	
+	/**
+	 * Expand the tree from the root, one level at a time, until there are
+	 * enough subtrees to keep all search threads busy. The subtrees are
+	 * returned in the order a single threaded visit would reach them.
+	 */
+	private List<Node> splitForParallelSearch(SpatialIndexVisitor visitor) {
+		List<Node> subtrees = new ArrayList<Node>();
+		Node root = boundingBox.getIndexRoot();
+		if (visitor.needsToVisit(boundingBox.getIndexNodeBoundingBox(root))) subtrees.add(root);
+		
+		boolean expanded = true;
+		while (expanded && subtrees.size() < searchThreads * PARALLEL_SUBTREES_PER_THREAD) {
+			expanded = false;
+			List<Node> next = new ArrayList<Node>();
+			for (Node indexNode : subtrees) {
+				if (indexNode.hasRelationship(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+					for (Relationship rel : indexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+						Node child = rel.getEndNode();
+						if (visitor.needsToVisit(boundingBox.getIndexNodeBoundingBox(child))) next.add(child);
+					}
+					expanded = true;
+				} else {
+					next.add(indexNode);
+				}
+			}
+			subtrees = next;
+		}
+		return subtrees;
+	}
+	
+	private RTreeIndexCache getCache() {
+		return RTreeIndexCache.getCache(database, layer.getLayerNode());
+	}
+	
+	private void reloadCache(Node indexNode) {
+		RTreeIndexCache cache = getCache();
+		if (cache != null) cache.reload(indexNode);
+	}
+	
+	private void updateCachePath(Node indexNode) {
+		RTreeIndexCache cache = getCache();
+		if (cache != null) cache.updatePath(indexNode);
+	}
+	
+	/**
+	 * @return the geometry nodes referenced by the leaves of the tree,
+	 *         including a root that is a leaf
+	 */
+	private List<Node> getTreeGeometryNodes() {
+		final List<Node> geomNodes = new ArrayList<Node>();
+		visit(new SpatialIndexVisitor() {
+			public boolean needsToVisit(double[] indexNodeEnvelope) {
+				return true;
+			}
+			
+			public void onIndexReference(Node geomNode) {
+				geomNodes.add(geomNode);
+			}
+		}, boundingBox.getIndexRoot());
+		return geomNodes;
+	}
+	
+	/**
+	 * Start or stop recording the geometries added to the tree or moved,
+	 * see rebuild(Listener).
+	 */
+	private void setRebuildInProgress(boolean inProgress) {
+		Transaction tx = database.beginTx();
+		try {
+			Node metadata = getMetadataNode();
+			if (inProgress) {
+				metadata.setProperty(PROP_REBUILD_CHANGED_IDS, new long[0]);
+			} else if (metadata.hasProperty(PROP_REBUILD_CHANGED_IDS)) {
+				metadata.removeProperty(PROP_REBUILD_CHANGED_IDS);
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+	
+	private void recordRebuildChange(Node geomNode) {
+		Node metadata = getMetadataNode();
+		if (metadata == null || !metadata.hasProperty(PROP_REBUILD_CHANGED_IDS)) return;
+		
+		Transaction tx = database.beginTx();
+		try {
+			// lock before reading, so that concurrent writers do not drop each other's ids
+			tx.acquireWriteLock(metadata);
+			long[] changedIds = (long[]) metadata.getProperty(PROP_REBUILD_CHANGED_IDS, null);
+			if (changedIds != null) {
+				long[] newChangedIds = new long[changedIds.length + 1];
+				System.arraycopy(changedIds, 0, newChangedIds, 0, changedIds.length);
+				newChangedIds[changedIds.length] = geomNode.getId();
+				metadata.setProperty(PROP_REBUILD_CHANGED_IDS, newChangedIds);
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+	
+	/**
+	 * Replace the live tree with a rebuilt one, see rebuild(Listener).
+	 */
+	private void swapIndexRoot(Node newRoot, int[] treeSize, Set<Long> snapshotIds) {
+		Transaction tx = database.beginTx();
+		try {
+			// stop writers on the old tree, so that it no longer changes
+			Node layerNode = layer.getLayerNode();
+			tx.acquireWriteLock(layerNode);
+			Node oldRoot = boundingBox.getIndexRoot();
+			List<Node> oldIndexNodes = new ArrayList<Node>();
+			oldIndexNodes.add(oldRoot);
+			for (int i = 0; i < oldIndexNodes.size(); i++) {
+				Node indexNode = oldIndexNodes.get(i);
+				tx.acquireWriteLock(indexNode);
+				for (Relationship rel : indexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+					oldIndexNodes.add(rel.getEndNode());
+				}
+			}
+			Node metadata = getMetadataNode();
+			Set<Long> changedIds = new HashSet<Long>();
+			for (long geomNodeId : (long[]) metadata.getProperty(PROP_REBUILD_CHANGED_IDS, new long[0])) {
+				changedIds.add(geomNodeId);
+			}
+			
+			// geometries added or moved during the rebuild are inserted again, removed ones are left out
+			List<Node> reinserted = new ArrayList<Node>();
+			Set<Long> linkedIds = new HashSet<Long>();
+			for (Node geomNode : getTreeGeometryNodes()) {
+				if (!snapshotIds.contains(geomNode.getId()) || changedIds.contains(geomNode.getId())) {
+					reinserted.add(geomNode);
+				} else {
+					linkedIds.add(geomNode.getId());
+				}
+			}
+			
+			layerNode.getSingleRelationship(SpatialRelationshipTypes.RTREE_ROOT, Direction.OUTGOING).delete();
+			layerNode.createRelationshipTo(newRoot, SpatialRelationshipTypes.RTREE_ROOT);
+			deleteIndexNodes(oldIndexNodes);
+			metadata.setProperty(PROP_TREE_DEPTH, treeSize[0]);
+			metadata.setProperty(PROP_INDEX_NODE_COUNT, treeSize[1]);
+			metadata.removeProperty(PROP_REBUILD_CHANGED_IDS);
+			invalidateCache();
+			
+			// the geometry nodes no longer have references, link them to the new leaves
+			Set<Long> leafIds = new HashSet<Long>();
+			List<Node> indexNodes = new ArrayList<Node>();
+			indexNodes.add(newRoot);
+			for (int i = 0; i < indexNodes.size(); i++) {
+				Node indexNode = indexNodes.get(i);
+				for (Relationship rel : indexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+					indexNodes.add(rel.getEndNode());
+				}
+				if (indexNode.hasProperty(PROP_PENDING_CHILD_IDS)) {
+					for (long geomNodeId : (long[]) indexNode.removeProperty(PROP_PENDING_CHILD_IDS)) {
+						if (linkedIds.contains(geomNodeId)) {
+							indexNode.createRelationshipTo(database.getNodeById(geomNodeId), SpatialRelationshipTypes.RTREE_REFERENCE);
+						} else {
+							removeLeafEntryBBox(indexNode, geomNodeId);
+							leafIds.add(indexNode.getId());
+						}
+					}
+				}
+			}
+			
+			// catch up with the changes made during the rebuild, which are already in the statistics
+			for (Node geomNode : reinserted) {
+				insert(geomNode);
+			}
+			condenseTree(leafIds);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		invalidateCache();
+	}
+	
+	/**
+	 * Delete index nodes with all their relationships, but not the geometry
+	 * nodes they reference.
+	 */
+	private void deleteIndexNodes(List<Node> indexNodes) {
+		Transaction tx = database.beginTx();
+		try {
+			for (Node indexNode : indexNodes) {
+				try {
+					for (Relationship rel : indexNode.getRelationships()) {
+						rel.delete();
+					}
+					indexNode.delete();
+				} catch (NotFoundException e) {
+					// created by a bulk load commit that was rolled back
+				}
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+	
+	/**
+	 * Condense the tree after entries have been removed from the specified
+	 * leaves, see removeAll(Iterable, boolean, Listener).
+	 */
+	private void condenseTree(Set<Long> leafIds) {
+		Transaction tx = database.beginTx();
+		try {
+			List<Node> orphans = new ArrayList<Node>();
+			List<Long> changedIds = new ArrayList<Long>();
+			int deletedIndexNodes = 0;
+			for (Long leafId : leafIds) {
+				Node leaf = database.getNodeById(leafId);
+				Node parent = boundingBox.getIndexNodeParent(leaf);
+				if (parent == null || countLeafEntries(leaf) >= minNodeReferences) {
+					changedIds.add(leafId);
+					continue;
+				}
+				
+				// dissolve the leaf, its entries are inserted again below
+				for (Relationship rel : leaf.getRelationships(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)) {
+					orphans.add(rel.getEndNode());
+					rel.delete();
+				}
+				deletedIndexNodes += deleteRecursivelyEmptySubtree(leaf);
+				
+				// and the ancestors left without children, except the root
+				while (boundingBox.getIndexNodeParent(parent) != null && !parent.hasRelationship(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+					Node grandParent = boundingBox.getIndexNodeParent(parent);
+					deletedIndexNodes += deleteRecursivelyEmptySubtree(parent);
+					parent = grandParent;
+				}
+				changedIds.add(parent.getId());
+			}
+			
+			for (Long indexNodeId : changedIds) {
+				try {
+					shrinkPathBoundingBox(database.getNodeById(indexNodeId));
+				} catch (NotFoundException e) {
+					// deleted when a sibling leaf was dissolved
+				}
+			}
+			
+			for (Node orphan : orphans) {
+				insert(orphan);
+			}
+			
+			// shorten the tree while the root has a single child
+			Node layerNode = layer.getLayerNode();
+			Node root = boundingBox.getIndexRoot();
+			while (boundingBox.countChildren(root, SpatialRelationshipTypes.RTREE_CHILD) == 1) {
+				Relationship childRel = root.getSingleRelationship(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING);
+				Node child = childRel.getEndNode();
+				childRel.delete();
+				root.getSingleRelationship(SpatialRelationshipTypes.RTREE_ROOT, Direction.INCOMING).delete();
+				root.delete();
+				deletedIndexNodes++;
+				layerNode.createRelationshipTo(child, SpatialRelationshipTypes.RTREE_ROOT);
+				root = child;
+			}
+			int treeDepth = 1;
+			for (Node indexNode = root; !nodeIsLeaf(indexNode); treeDepth++) {
+				indexNode = indexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING).iterator().next().getEndNode();
+			}
+			updateIndexNodeStatistics(-deletedIndexNodes, treeDepth - (Integer) getMetadataNode().getProperty(PROP_TREE_DEPTH));
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		invalidateCache();
+	}
+	
+	/**
+	 * @return the number of index nodes deleted
+	 */
+	private int deleteRecursivelyEmptySubtree(Node indexNode) {
+		int deleted = 1;
 		for (Relationship relationship : indexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
-			deleteRecursivelyEmptySubtree(relationship.getEndNode());
+			deleted += deleteRecursivelyEmptySubtree(relationship.getEndNode());
 		}
 		
 		Relationship relationshipWithFather = indexNode.getSingleRelationship(SpatialRelationshipTypes.RTREE_CHILD, Direction.INCOMING);
@@ -612,6 +2524,7 @@ public class RTreeIndex implements Constants {
 			relationshipWithFather.delete();
 		}
 		indexNode.delete();
+		return deleted;
 	}
 	
 	private Node findLeafContainingGeometryNode(Node geomNode) {
@@ -649,16 +2562,140 @@ public class RTreeIndex implements Constants {
 	
 	// Attributes
 	
-	private GraphDatabaseService database;
-	private int maxNodeReferences;
-	private int minNodeReferences;
+	protected GraphDatabaseService database;
+	protected int maxNodeReferences;
+	protected int minNodeReferences;
 	private Node metadataNode;
-	private int totalGeometryCount;
-	private boolean countSaved = false;
-	private GenericBoundingBox boundingBox = null;
+	protected GenericBoundingBox boundingBox = null;
+	private SplitPolicy splitPolicy;
+	private boolean reinserting = false;
+	private boolean packedLeafBBoxes = false;
+	private ExecutorService searchExecutor;
+	private int searchThreads = 0;
+	private boolean orderedResults = true;
+	private boolean concurrentWriters = false;
+	private volatile boolean insertBufferLoaded = false;
+	
+	/**
+	 * Built in memory by getHistogram while the stored histogram is stale.
+	 */
+	private volatile RTreeIndexHistogram builtHistogram;
+	private StatisticsTransactionHandler statisticsHandler;
+	private final ThreadLocal<PendingStatistics> pendingStatistics = new ThreadLocal<PendingStatistics>() {
+		protected PendingStatistics initialValue() {
+			return new PendingStatistics();
+		}
+	};
+	
+	private static final int BULK_COMMIT_INTERVAL = 10000;
+	private static final int GEOMETRY_TYPE_COUNT = GTYPE_MULTIPOLYGON + 1;
+	private static final int PARALLEL_SUBTREES_PER_THREAD = 4;
+	private static final int HISTOGRAM_SIZE = 32;
+	private static final double DIAGNOSTICS_WINDOW = 0.1;
+	private static final double HISTOGRAM_REBUILD_FRACTION = 0.1;
 
 	
 	// Private classes
+	
+	/**
+	 * The manual write locks taken while descending the tree. Releasing a
+	 * manual lock does not release the lock a transaction holds on a node it
+	 * has modified, so ancestors whose bounding box was enlarged stay locked
+	 * until commit.
+	 */
+	private static class LockedPath {
+		
+		public LockedPath(Transaction tx) {
+			this.tx = tx;
+		}
+		
+		public void lock(PropertyContainer container) {
+			locks.add(tx.acquireWriteLock(container));
+		}
+		
+		/**
+		 * Release every lock but the last one taken.
+		 */
+		public void releaseAncestors() {
+			while (locks.size() > 1) {
+				locks.remove(0).release();
+			}
+		}
+		
+		public void releaseAll() {
+			for (Lock lock : locks) {
+				lock.release();
+			}
+			locks.clear();
+		}
+		
+		private Transaction tx;
+		private List<Lock> locks = new ArrayList<Lock>();
+	}
+	
+	/**
+	 * The statistics changes made by concurrent writers on one thread, waiting
+	 * for the transaction to commit. A transaction that is rolled back does
+	 * not always reach the event handler, so every change remembers the node
+	 * it belongs to, and is only applied if that node was created or indexed
+	 * by the committing transaction.
+	 */
+	private static class PendingStatistics {
+		
+		public void addGeometry(long geomNodeId, int gtype) {
+			geometryTypes.put(geomNodeId, gtype);
+		}
+		
+		public void addIndexNode(long indexNodeId, boolean newRoot) {
+			indexNodes.put(indexNodeId, newRoot);
+		}
+		
+		public boolean isEmpty() {
+			return geometryTypes.isEmpty() && indexNodes.isEmpty();
+		}
+		
+		private Map<Long, Integer> geometryTypes = new HashMap<Long, Integer>();
+		private Map<Long, Boolean> indexNodes = new HashMap<Long, Boolean>();
+	}
+	
+	private class StatisticsTransactionHandler implements TransactionEventHandler<Object> {
+		
+		public Object beforeCommit(TransactionData data) {
+			PendingStatistics pending = pendingStatistics.get();
+			pendingStatistics.remove();
+			if (pending.isEmpty()) return null;
+			
+			Set<Long> createdNodeIds = new HashSet<Long>();
+			for (Node node : data.createdNodes()) {
+				createdNodeIds.add(node.getId());
+			}
+			Set<Long> indexedNodeIds = new HashSet<Long>();
+			for (Relationship rel : data.createdRelationships()) {
+				if (rel.isType(SpatialRelationshipTypes.RTREE_REFERENCE)) {
+					indexedNodeIds.add(rel.getEndNode().getId());
+				}
+			}
+			
+			for (Map.Entry<Long, Integer> entry : pending.geometryTypes.entrySet()) {
+				if (indexedNodeIds.contains(entry.getKey())) {
+					updateGeometryStatistics(entry.getValue(), 1);
+				}
+			}
+			for (Map.Entry<Long, Boolean> entry : pending.indexNodes.entrySet()) {
+				if (createdNodeIds.contains(entry.getKey())) {
+					updateIndexNodeStatistics(1, entry.getValue() ? 1 : 0);
+				}
+			}
+			return null;
+		}
+		
+		public void afterCommit(TransactionData data, Object state) {
+		}
+		
+		public void afterRollback(TransactionData data, Object state) {
+			pendingStatistics.remove();
+		}
+	}
 
 	static class RecordCounter implements SpatialIndexVisitor {	
 		
@@ -680,6 +2717,142 @@ public class RTreeIndex implements Constants {
 	
 	
 	
+	/**
+	 * A node to be placed in the tree during a bulk load, together with its
+	 * bounding box in index order (xmin, ymin, xmax, ymax).
+	 */
+	static class IndexEntry {
+		
+		IndexEntry(Node node, double[] bbox) {
+			this.node = node;
+			this.bbox = bbox;
+		}
+		
+		Node node;
+		double[] bbox;
+	}
+	
+	/**
+	 * Orders bulk load entries by the centre of their bounding box along one
+	 * axis: 0 for x, 1 for y.
+	 */
+	private static class IndexEntryCentreComparator implements Comparator<IndexEntry> {
+		
+		IndexEntryCentreComparator(int axis) {
+			this.axis = axis;
+		}
+		
+		public int compare(IndexEntry e1, IndexEntry e2) {
+			return Double.compare(e1.bbox[axis] + e1.bbox[axis + 2], e2.bbox[axis] + e2.bbox[axis + 2]);
+		}
+		
+		private int axis;
+	}
+	
+	/**
+	 * Walks the tree depth first with an explicit stack of index nodes, in
+	 * the same order as visit, and keeps only the candidates of one leaf.
+	 * The subtree of an index node the search covers is walked on a stack of
+	 * its own, without testing bounding boxes, and its geometries are handed
+	 * out as covered candidates.
+	 */
+	private class TreeSearchCursor extends SearchCursor {
+		
+		TreeSearchCursor(Search search, int limit) {
+			super(search, limit);
+			buffer = getInsertBuffer();
+			if (buffer != null) bufferedEntries = buffer.getEntries();
+			if (!isEmpty()) stack.add(boundingBox.getIndexRoot());
+		}
+		
+		protected Node nextCandidate() {
+			while (true) {
+				if (leafEntries != null && leafEntries.hasNext()) return leafEntries.next();
+				leafEntries = null;
+				leafCovered = false;
+				if (!coveredStack.isEmpty()) {
+					Node indexNode = coveredStack.remove(coveredStack.size() - 1);
+					if (indexNode.hasRelationship(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+						pushChildren(coveredStack, indexNode);
+					} else {
+						leafEntries = getLeafGeometryNodes(database, indexNode).iterator();
+						leafCovered = true;
+					}
+					continue;
+				}
+				if (stack.isEmpty()) {
+					if (bufferedEntries == null) return null;
+					
+					// the tree is done, continue with the buffered geometries
+					final List<Node> entries = new ArrayList<Node>();
+					buffer.visit(new SpatialIndexVisitor() {
+						public boolean needsToVisit(double[] bbox) {
+							return search.needsToVisit(bbox);
+						}
+						
+						public void onIndexReference(Node geomNode) {
+							entries.add(geomNode);
+						}
+					}, bufferedEntries);
+					bufferedEntries = null;
+					leafEntries = entries.iterator();
+					continue;
+				}
+				
+				Node indexNode = stack.remove(stack.size() - 1);
+				double[] indexNodeBoundingBox = boundingBox.getIndexNodeBoundingBox(indexNode);
+				if (!search.needsToVisit(indexNodeBoundingBox)) continue;
+				
+				if (covers(search, indexNodeBoundingBox)) {
+					coveredStack.add(indexNode);
+				} else if (indexNode.hasRelationship(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+					pushChildren(stack, indexNode);
+				} else {
+					final List<Node> entries = new ArrayList<Node>();
+					visitLeaf(database, new SpatialIndexVisitor() {
+						public boolean needsToVisit(double[] bbox) {
+							return search.needsToVisit(bbox);
+						}
+						
+						public void onIndexReference(Node geomNode) {
+							entries.add(geomNode);
+						}
+					}, indexNode);
+					leafEntries = entries.iterator();
+				}
+			}
+		}
+		
+		protected boolean isCandidateCovered() {
+			return leafCovered;
+		}
+		
+		protected void onClose() {
+			stack.clear();
+			coveredStack.clear();
+			leafEntries = null;
+			bufferedEntries = null;
+		}
+		
+		private void pushChildren(List<Node> nodes, Node indexNode) {
+			List<Node> children = new ArrayList<Node>();
+			for (Relationship rel : indexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+				children.add(rel.getEndNode());
+			}
+			// push in reverse so the first child is visited first
+			for (int i = children.size() - 1; i >= 0; i--) {
+				nodes.add(children.get(i));
+			}
+		}
+		
+		private List<Node> stack = new ArrayList<Node>();
+		private List<Node> coveredStack = new ArrayList<Node>();
+		private Iterator<Node> leafEntries;
+		private boolean leafCovered = false;
+		private RTreeIndexInsertBuffer buffer;
+		private List<RTreeIndexInsertBuffer.Entry> bufferedEntries;
+	}
+	
 	class WarmUpVisitor implements SpatialIndexVisitor {
 		
 		public boolean needsToVisit(double[] indexNodeEnvelope) { return true; }	
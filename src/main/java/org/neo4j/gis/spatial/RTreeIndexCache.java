@@ -0,0 +1,412 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+
+/**
+ * An in-memory copy of the non-leaf levels of an RTreeIndex. For every index
+ * node that has RTREE_CHILD relationships, it keeps the ids of the children
+ * in a long[] and their bounding boxes in a flat double[], four values per
+ * child in index order (xmin, ymin, xmax, ymax). A visit can then prune the
+ * upper levels of the tree without loading any relationships or bbox
+ * properties, and only touches the store for the leaves it needs.
+ * 
+ * The copy is built lazily on the first visit. RTreeIndex reports the index
+ * nodes changed by add, remove and split, and asks for the copy to be
+ * dropped after bulk changes so it is built again. These changes are only
+ * recorded for the transaction of the calling thread, and applied from the
+ * store by a TransactionEventHandler once it commits, so the copy never
+ * holds uncommitted or rolled back changes. A thread with such pending
+ * changes visits the store instead of the copy, so that it sees its own
+ * changes. Index nodes committed by another thread but not applied yet are
+ * visited from the store as well.
+ * 
+ * The copy is never changed in place: changes are applied to a copy of the
+ * map, with new entries for the changed index nodes, which then replaces
+ * the map, so a visit that is already running keeps a consistent view.
+ * 
+ * Caches are shared by all RTreeIndex instances for the same layer node in
+ * the same database, so writes through one Layer instance are seen by
+ * searches through another.
+ */
+public class RTreeIndexCache {
+
+	// Constructor
+	
+	private RTreeIndexCache(GraphDatabaseService database, long layerNodeId) {
+		this.database = database;
+		this.layerNodeId = layerNodeId;
+	}
+
+	
+	// Public methods
+	
+	/**
+	 * @return the cache for this layer, or null if caching has not been
+	 *         enabled for it
+	 */
+	public static synchronized RTreeIndexCache getCache(GraphDatabaseService database, Node layerNode) {
+		Map<Long, RTreeIndexCache> layerCaches = caches.get(database);
+		return layerCaches == null ? null : layerCaches.get(layerNode.getId());
+	}
+	
+	public static synchronized RTreeIndexCache enableCache(GraphDatabaseService database, Node layerNode) {
+		Map<Long, RTreeIndexCache> layerCaches = caches.get(database);
+		if (layerCaches == null) {
+			layerCaches = new HashMap<Long, RTreeIndexCache>();
+			caches.put(database, layerCaches);
+		}
+		RTreeIndexCache cache = layerCaches.get(layerNode.getId());
+		if (cache == null) {
+			cache = new RTreeIndexCache(database, layerNode.getId());
+			database.registerTransactionEventHandler(cache.transactionHandler);
+			layerCaches.put(layerNode.getId(), cache);
+		}
+		return cache;
+	}
+
+	public static synchronized void disableCache(GraphDatabaseService database, Node layerNode) {
+		Map<Long, RTreeIndexCache> layerCaches = caches.get(database);
+		if (layerCaches != null) {
+			RTreeIndexCache cache = layerCaches.remove(layerNode.getId());
+			if (cache != null) database.unregisterTransactionEventHandler(cache.transactionHandler);
+		}
+	}
+	
+	/**
+	 * Drop the cached copy. It will be built again on the next visit, and
+	 * dropped again when the transaction of the calling thread commits, in
+	 * case the copy was built before the changes were committed.
+	 */
+	public void invalidate() {
+		nodes = null;
+		if (RTreeIndex.isInTransaction(database, true)) pendingChanges.get().invalidate = true;
+	}
+	
+	public boolean isValid() {
+		return nodes != null;
+	}
+	
+	/**
+	 * @return true if the transaction of the calling thread has changed the
+	 *         index, which the copy only shows once it has committed
+	 */
+	public boolean hasPendingChanges() {
+		return !pendingChanges.get().isEmpty();
+	}
+	
+	/**
+	 * @return the number of non-leaf index nodes held in memory
+	 */
+	public int size() {
+		Map<Long, CachedIndexNode> current = nodes;
+		return current == null ? 0 : current.size();
+	}
+	
+	/**
+	 * Visit the subtree below the given index node, using the cached bounding
+	 * boxes to decide which children to enter. The double[] passed to
+	 * SpatialIndexVisitor.needsToVisit is reused between calls, so visitors
+	 * must not keep it.
+	 */
+	public void visit(SpatialIndexVisitor visitor, Node indexNode) {
+		Map<Long, CachedIndexNode> current = nodes;
+		if (current == null) current = build();
+		if (!indexNode.hasProperty(Constants.PROP_BBOX)) return;
+		double[] indexNodeBBox = (double[]) indexNode.getProperty(Constants.PROP_BBOX);
+		if (!visitor.needsToVisit(indexNodeBBox)) return;
+		if (RTreeIndex.covers(visitor, indexNodeBBox)) {
+			RTreeIndex.visitCovered(database, (SpatialIndexCoveringVisitor) visitor, indexNode);
+			return;
+		}
+		visit(current, visitor, indexNode.getId(), new double[indexNodeBBox.length]);
+	}
+	
+	/**
+	 * Read the children of an index node from the store again, after they
+	 * were added, removed or moved, once the transaction commits.
+	 */
+	public void reload(Node indexNode) {
+		pendingChanges.get().reloadIds.add(indexNode.getId());
+	}
+	
+	/**
+	 * Copy the bounding boxes of the index node and its ancestors into the
+	 * cached entries of their parents, after the bounding boxes changed, once
+	 * the transaction commits.
+	 */
+	public void updatePath(Node indexNode) {
+		PendingChanges changes = pendingChanges.get();
+		Relationship parentRel = indexNode.getSingleRelationship(SpatialRelationshipTypes.RTREE_CHILD, Direction.INCOMING);
+		while (parentRel != null) {
+			Node parent = parentRel.getStartNode();
+			Set<Long> childIds = changes.pathUpdates.get(parent.getId());
+			if (childIds == null) {
+				childIds = new HashSet<Long>();
+				changes.pathUpdates.put(parent.getId(), childIds);
+			}
+			childIds.add(indexNode.getId());
+			
+			indexNode = parent;
+			parentRel = indexNode.getSingleRelationship(SpatialRelationshipTypes.RTREE_CHILD, Direction.INCOMING);
+		}
+	}
+
+	
+	// Private methods
+	
+	private synchronized Map<Long, CachedIndexNode> build() {
+		if (nodes != null) return nodes;
+		Node layerNode = database.getNodeById(layerNodeId);
+		Node root = layerNode.getSingleRelationship(SpatialRelationshipTypes.RTREE_ROOT, Direction.OUTGOING).getEndNode();
+		
+		// published only once complete, so that no visit takes a missing index node for a leaf
+		Map<Long, CachedIndexNode> built = new HashMap<Long, CachedIndexNode>();
+		List<Node> level = new ArrayList<Node>();
+		level.add(root);
+		while (!level.isEmpty()) {
+			List<Node> nextLevel = new ArrayList<Node>();
+			for (Node indexNode : level) {
+				CachedIndexNode cached = load(indexNode);
+				if (cached != null) built.put(indexNode.getId(), cached);
+				for (Relationship rel : indexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+					nextLevel.add(rel.getEndNode());
+				}
+			}
+			level = nextLevel;
+		}
+		nodes = built;
+		return built;
+	}
+	
+	/**
+	 * @return the children of the index node as stored, or null if it is a
+	 *         leaf
+	 */
+	private CachedIndexNode load(Node indexNode) {
+		List<Relationship> relationships = new ArrayList<Relationship>();
+		for (Relationship rel : indexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+			relationships.add(rel);
+		}
+		if (relationships.isEmpty()) return null;
+		
+		CachedIndexNode cached = new CachedIndexNode(relationships.size(),
+				((double[]) relationships.get(0).getEndNode().getProperty(Constants.PROP_BBOX)).length);
+		for (int i = 0; i < relationships.size(); i++) {
+			Node child = relationships.get(i).getEndNode();
+			cached.children[i] = child.getId();
+			System.arraycopy((double[]) child.getProperty(Constants.PROP_BBOX), 0, cached.bboxes, i * cached.size, cached.size);
+		}
+		return cached;
+	}
+	
+	/**
+	 * Apply committed changes to a copy of the map, and replace the map with
+	 * it. The copy is dropped instead if it does not know a changed part of
+	 * the tree.
+	 */
+	private synchronized void apply(PendingChanges changes) {
+		Map<Long, CachedIndexNode> current = nodes;
+		if (current == null) return;
+		if (changes.invalidate) {
+			nodes = null;
+			return;
+		}
+		
+		Map<Long, CachedIndexNode> updated = new HashMap<Long, CachedIndexNode>(current);
+		try {
+			for (Long indexNodeId : changes.reloadIds) {
+				CachedIndexNode cached = load(database.getNodeById(indexNodeId));
+				if (cached == null) {
+					updated.remove(indexNodeId);
+				} else {
+					updated.put(indexNodeId, cached);
+				}
+			}
+			for (Map.Entry<Long, Set<Long>> update : changes.pathUpdates.entrySet()) {
+				if (changes.reloadIds.contains(update.getKey())) continue;
+				CachedIndexNode cached = updated.get(update.getKey());
+				if (cached == null) {
+					nodes = null;
+					return;
+				}
+				cached = cached.copy();
+				for (Long childId : update.getValue()) {
+					int i = cached.indexOf(childId);
+					if (i < 0) {
+						nodes = null;
+						return;
+					}
+					System.arraycopy((double[]) database.getNodeById(childId).getProperty(Constants.PROP_BBOX), 0, cached.bboxes, i * cached.size, cached.size);
+				}
+				updated.put(update.getKey(), cached);
+			}
+		} catch (NotFoundException e) {
+			// deleted by a later transaction
+			nodes = null;
+			return;
+		}
+		nodes = updated;
+	}
+	
+	private void visit(Map<Long, CachedIndexNode> current, SpatialIndexVisitor visitor, long indexNodeId, double[] bbox) {
+		CachedIndexNode cached = current.get(indexNodeId);
+		if (cached == null) {
+			Node indexNode = database.getNodeById(indexNodeId);
+			if (indexNode.hasRelationship(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+				// created by a split that has committed, but is not applied to this copy yet
+				for (Relationship rel : indexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+					Node child = rel.getEndNode();
+					double[] childBBox = (double[]) child.getProperty(Constants.PROP_BBOX);
+					if (!visitor.needsToVisit(childBBox)) continue;
+					if (RTreeIndex.covers(visitor, childBBox)) {
+						RTreeIndex.visitCovered(database, (SpatialIndexCoveringVisitor) visitor, child);
+					} else {
+						visit(current, visitor, child.getId(), bbox);
+					}
+				}
+			} else {
+				// leaves are not cached
+				RTreeIndex.visitLeaf(database, visitor, indexNode);
+			}
+			return;
+		}
+		
+		for (int i = 0; i < cached.children.length; i++) {
+			System.arraycopy(cached.bboxes, i * cached.size, bbox, 0, cached.size);
+			if (!visitor.needsToVisit(bbox)) continue;
+			if (RTreeIndex.covers(visitor, bbox)) {
+				// the rest of the subtree is not tested, so the store is enough
+				RTreeIndex.visitCovered(database, (SpatialIndexCoveringVisitor) visitor, database.getNodeById(cached.children[i]));
+			} else {
+				visit(current, visitor, cached.children[i], bbox);
+			}
+		}
+	}
+
+	
+	// Attributes
+	
+	private GraphDatabaseService database;
+	private long layerNodeId;
+	
+	/**
+	 * The cached index nodes by id, or null if the copy has to be built
+	 * again. A published map is never changed.
+	 */
+	private volatile Map<Long, CachedIndexNode> nodes = null;
+	
+	/**
+	 * Changes made by the current transaction on this thread.
+	 */
+	private final ThreadLocal<PendingChanges> pendingChanges = new ThreadLocal<PendingChanges>() {
+		protected PendingChanges initialValue() {
+			return new PendingChanges();
+		}
+	};
+	
+	private final TransactionEventHandler<PendingChanges> transactionHandler = new TransactionEventHandler<PendingChanges>() {
+		public PendingChanges beforeCommit(TransactionData data) {
+			PendingChanges changes = pendingChanges.get();
+			pendingChanges.remove();
+			return changes.isEmpty() ? null : changes;
+		}
+
+		public void afterCommit(TransactionData data, PendingChanges changes) {
+			if (changes != null) apply(changes);
+		}
+
+		public void afterRollback(TransactionData data, PendingChanges changes) {
+			boolean changed = changes != null || !pendingChanges.get().isEmpty();
+			pendingChanges.remove();
+			if (changed) nodes = null;
+		}
+	};
+	
+	private static Map<GraphDatabaseService, Map<Long, RTreeIndexCache>> caches = new WeakHashMap<GraphDatabaseService, Map<Long, RTreeIndexCache>>();
+	
+	
+	// Private classes
+	
+	private static class CachedIndexNode {
+		
+		CachedIndexNode(int childCount, int size) {
+			this.size = size;
+			children = new long[childCount];
+			bboxes = new double[childCount * size];
+		}
+		
+		int indexOf(long childId) {
+			for (int i = 0; i < children.length; i++) {
+				if (children[i] == childId) return i;
+			}
+			return -1;
+		}
+		
+		CachedIndexNode copy() {
+			CachedIndexNode copy = new CachedIndexNode(children.length, size);
+			System.arraycopy(children, 0, copy.children, 0, children.length);
+			System.arraycopy(bboxes, 0, copy.bboxes, 0, bboxes.length);
+			return copy;
+		}
+		
+		private long[] children;
+		private double[] bboxes;
+		private int size;
+	}
+	
+	private static class PendingChanges {
+		
+		boolean isEmpty() {
+			return !invalidate && reloadIds.isEmpty() && pathUpdates.isEmpty();
+		}
+		
+		private boolean invalidate = false;
+		
+		/**
+		 * Index nodes whose children changed.
+		 */
+		private final Set<Long> reloadIds = new LinkedHashSet<Long>();
+		
+		/**
+		 * Index nodes by the ids of their children whose bounding boxes
+		 * changed.
+		 */
+		private final Map<Long, Set<Long>> pathUpdates = new LinkedHashMap<Long, Set<Long>>();
+	}
+}
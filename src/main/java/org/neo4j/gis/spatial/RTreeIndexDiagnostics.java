@@ -0,0 +1,296 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.neo4j.gis.spatial.generic.GenericBoundingBox;
+
+
+/**
+ * A report on the shape of an RTreeIndex, for deciding when a tree has
+ * degraded enough to be worth a rebuild. For every level of index nodes, from
+ * the root down to the leaves, it describes how full the nodes are, how much
+ * sibling nodes overlap, and how much of each node is dead space not covered
+ * by any of its entries. It also records how many index nodes a sample of
+ * window searches had to read.
+ * 
+ * All bounding boxes are in index order (xmin, ymin, xmax, ymax), and areas
+ * are volumes for indexes with more than two dimensions.
+ */
+public class RTreeIndexDiagnostics {
+
+	// Constructor
+	
+	public RTreeIndexDiagnostics(int maxNodeReferences) {
+		this.maxNodeReferences = maxNodeReferences;
+	}
+
+	
+	// Public methods
+	
+	/**
+	 * Add an index node and the bounding boxes of its entries, which are
+	 * either its child index nodes or, for a leaf, its geometries.
+	 * 
+	 * @param level
+	 *            0 for the root
+	 */
+	public void addIndexNode(int level, double[] bbox, List<double[]> entryBBoxes, boolean leaf) {
+		Level stats = getOrCreateLevel(level);
+		stats.add(bbox, entryBBoxes);
+		if (!leaf) {
+			// the children of a node are siblings one level down
+			getOrCreateLevel(level + 1).addSiblings(entryBBoxes);
+		}
+	}
+	
+	/**
+	 * Add the result of one sample window search.
+	 */
+	public void addSampleQuery(int nodesVisited, int leavesVisited) {
+		sampleQueries++;
+		totalNodesVisited += nodesVisited;
+		totalLeavesVisited += leavesVisited;
+	}
+	
+	/**
+	 * @return the number of levels of index nodes, 1 for a tree with only a
+	 *         root
+	 */
+	public int getTreeHeight() {
+		return levels.size();
+	}
+	
+	public List<Level> getLevels() {
+		return levels;
+	}
+	
+	public Level getLevel(int level) {
+		return levels.get(level);
+	}
+	
+	public int getIndexNodeCount() {
+		int count = 0;
+		for (Level level : levels) {
+			count += level.getNodeCount();
+		}
+		return count;
+	}
+	
+	public int getSampleQueries() {
+		return sampleQueries;
+	}
+	
+	/**
+	 * @return the average number of index nodes read by the sample searches,
+	 *         or 0 if there were none
+	 */
+	public double getAverageNodesVisited() {
+		return sampleQueries == 0 ? 0 : (double) totalNodesVisited / sampleQueries;
+	}
+	
+	/**
+	 * @return the average number of leaves read by the sample searches, or 0
+	 *         if there were none
+	 */
+	public double getAverageLeavesVisited() {
+		return sampleQueries == 0 ? 0 : (double) totalLeavesVisited / sampleQueries;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public JSONObject toJSON() {
+		JSONObject result = new JSONObject();
+		result.put("treeHeight", getTreeHeight());
+		result.put("indexNodeCount", getIndexNodeCount());
+		result.put("maxNodeReferences", maxNodeReferences);
+		result.put("sampleQueries", sampleQueries);
+		result.put("averageNodesVisited", getAverageNodesVisited());
+		result.put("averageLeavesVisited", getAverageLeavesVisited());
+		JSONArray levelsArray = new JSONArray();
+		for (Level level : levels) {
+			levelsArray.add(level.toJSON());
+		}
+		result.put("levels", levelsArray);
+		return result;
+	}
+	
+	public String toString() {
+		StringBuffer result = new StringBuffer("RTreeIndexDiagnostics[height: " + getTreeHeight() + ", index nodes: "
+				+ getIndexNodeCount() + ", average nodes visited: " + getAverageNodesVisited() + "]");
+		for (Level level : levels) {
+			result.append("\n\t").append(level);
+		}
+		return result.toString();
+	}
+
+	
+	// Private methods
+	
+	private Level getOrCreateLevel(int level) {
+		while (levels.size() <= level) {
+			levels.add(new Level(levels.size()));
+		}
+		return levels.get(level);
+	}
+
+	
+	// Public classes
+	
+	/**
+	 * The statistics of one level of the tree.
+	 */
+	public class Level {
+
+		private Level(int level) {
+			this.level = level;
+		}
+		
+		/**
+		 * @return the depth of this level, 0 for the root
+		 */
+		public int getLevel() {
+			return level;
+		}
+		
+		public int getNodeCount() {
+			return nodeCount;
+		}
+		
+		public int getEntryCount() {
+			return entryCount;
+		}
+		
+		public int getMinEntries() {
+			return nodeCount == 0 ? 0 : minEntries;
+		}
+		
+		public int getMaxEntries() {
+			return maxEntries;
+		}
+		
+		/**
+		 * @return the average number of entries per node, as a fraction of
+		 *         the maximum number of entries
+		 */
+		public double getFillFactor() {
+			return nodeCount == 0 ? 0 : (double) entryCount / ((double) nodeCount * maxNodeReferences);
+		}
+		
+		/**
+		 * @return the number of nodes in each tenth of the fill range, from
+		 *         nodes less than 10% full up to nodes at least 90% full
+		 */
+		public int[] getFillHistogram() {
+			return fillHistogram;
+		}
+		
+		/**
+		 * @return the area shared by pairs of sibling nodes, as a fraction of
+		 *         the total area of the nodes of this level. It is 0 for the
+		 *         root, and may exceed 1 when many siblings overlap the same
+		 *         area.
+		 */
+		public double getOverlapRatio() {
+			return totalArea == 0 ? 0 : overlapArea / totalArea;
+		}
+		
+		/**
+		 * @return the fraction of the area of the nodes of this level not
+		 *         covered by their entries. Overlapping entries are not
+		 *         subtracted from each other, so this is a lower bound.
+		 */
+		public double getDeadSpaceRatio() {
+			return totalArea == 0 ? 0 : deadArea / totalArea;
+		}
+		
+		@SuppressWarnings("unchecked")
+		public JSONObject toJSON() {
+			JSONObject result = new JSONObject();
+			result.put("level", level);
+			result.put("nodeCount", nodeCount);
+			result.put("entryCount", entryCount);
+			result.put("minEntries", getMinEntries());
+			result.put("maxEntries", maxEntries);
+			result.put("fillFactor", getFillFactor());
+			JSONArray histogram = new JSONArray();
+			for (int count : fillHistogram) {
+				histogram.add(count);
+			}
+			result.put("fillHistogram", histogram);
+			result.put("overlapRatio", getOverlapRatio());
+			result.put("deadSpaceRatio", getDeadSpaceRatio());
+			return result;
+		}
+		
+		public String toString() {
+			return "Level[" + level + ", nodes: " + nodeCount + ", entries: " + getMinEntries() + ".." + maxEntries + ", fill factor: "
+					+ getFillFactor() + ", overlap: " + getOverlapRatio() + ", dead space: " + getDeadSpaceRatio() + "]";
+		}
+		
+		private void add(double[] bbox, List<double[]> entryBBoxes) {
+			int entries = entryBBoxes.size();
+			nodeCount++;
+			entryCount += entries;
+			minEntries = Math.min(minEntries, entries);
+			maxEntries = Math.max(maxEntries, entries);
+			fillHistogram[Math.min(fillHistogram.length - 1, entries * fillHistogram.length / maxNodeReferences)]++;
+			
+			if (bbox == null) return;
+			double area = GenericBoundingBox.getArea(bbox);
+			double coveredArea = 0;
+			for (double[] entryBBox : entryBBoxes) {
+				coveredArea += GenericBoundingBox.getArea(entryBBox);
+			}
+			totalArea += area;
+			deadArea += Math.max(0, area - coveredArea);
+		}
+		
+		private void addSiblings(List<double[]> bboxes) {
+			for (int i = 0; i < bboxes.size(); i++) {
+				for (int j = i + 1; j < bboxes.size(); j++) {
+					overlapArea += GenericBoundingBox.getIntersectionArea(bboxes.get(i), bboxes.get(j));
+				}
+			}
+		}
+		
+		private int level;
+		private int nodeCount;
+		private int entryCount;
+		private int minEntries = Integer.MAX_VALUE;
+		private int maxEntries;
+		private int[] fillHistogram = new int[10];
+		private double totalArea;
+		private double overlapArea;
+		private double deadArea;
+	}
+
+	
+	// Attributes
+	
+	private int maxNodeReferences;
+	private List<Level> levels = new ArrayList<Level>();
+	private int sampleQueries;
+	private long totalNodesVisited;
+	private long totalLeavesVisited;
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+
+/**
+ * A grid of geometry counts over the extent of an RTreeIndex, used to
+ * estimate how many geometries a search window will find, and how large a
+ * window must be to find a given number of geometries. Unlike an estimate
+ * based on the average density of the whole layer, it follows the actual
+ * distribution of the geometries, so clustered data does not lead to windows
+ * that are far too large in dense areas and far too small in sparse ones.
+ * 
+ * The grid is derived from the leaves of the tree: the entries of each leaf
+ * are spread evenly over its bounding box. All bounding boxes are in index
+ * order (xmin, ymin, xmax, ymax).
+ */
+public class RTreeIndexHistogram {
+
+	// Constructor
+	
+	public RTreeIndexHistogram(double[] bounds, int size) {
+		this(bounds, size, new double[size * size], 0);
+	}
+
+	public RTreeIndexHistogram(double[] bounds, int size, double[] cells, int geometryCount) {
+		this.bounds = bounds;
+		this.size = size;
+		this.cells = cells;
+		this.geometryCount = geometryCount;
+	}
+
+	
+	// Public methods
+	
+	/**
+	 * Spread the specified number of geometries evenly over the cells covered
+	 * by the bounding box.
+	 */
+	public void add(double[] bbox, int count) {
+		int x0 = cellX(bbox[0]);
+		int x1 = cellX(bbox[2]);
+		int y0 = cellY(bbox[1]);
+		int y1 = cellY(bbox[3]);
+		for (int x = x0; x <= x1; x++) {
+			double fx = spread(bbox[0], bbox[2], cellMinX(x), cellMinX(x + 1));
+			for (int y = y0; y <= y1; y++) {
+				cells[y * size + x] += count * fx * spread(bbox[1], bbox[3], cellMinY(y), cellMinY(y + 1));
+			}
+		}
+		geometryCount += count;
+	}
+	
+	/**
+	 * @return the estimated number of geometries inside the bounding box
+	 */
+	public double estimateCount(double[] bbox) {
+		if (bbox[2] < bounds[0] || bbox[0] > bounds[2] || bbox[3] < bounds[1] || bbox[1] > bounds[3]) {
+			return 0;
+		}
+		
+		double result = 0;
+		int x0 = cellX(bbox[0]);
+		int x1 = cellX(bbox[2]);
+		int y0 = cellY(bbox[1]);
+		int y1 = cellY(bbox[3]);
+		for (int x = x0; x <= x1; x++) {
+			double fx = cover(bbox[0], bbox[2], cellMinX(x), cellMinX(x + 1));
+			for (int y = y0; y <= y1; y++) {
+				result += cells[y * size + x] * fx * cover(bbox[1], bbox[3], cellMinY(y), cellMinY(y + 1));
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * @return the smallest square bounding box around the point which is
+	 *         estimated to contain the specified number of geometries, or a
+	 *         bounding box including the whole histogram if there are not
+	 *         that many geometries
+	 */
+	public double[] createBoundingBoxForCount(double x, double y, int count) {
+		if (count < 1) {
+			return new double[] { x, y, x, y };
+		}
+		if (count >= geometryCount) {
+			return new double[] { Math.min(x, bounds[0]), Math.min(y, bounds[1]), Math.max(x, bounds[2]), Math.max(y, bounds[3]) };
+		}
+		
+		// the square reaching the farthest corner of the histogram contains everything
+		double max = Math.max(Math.max(x - bounds[0], bounds[2] - x), Math.max(y - bounds[1], bounds[3] - y));
+		double min = 0;
+		for (int i = 0; i < SEARCH_ITERATIONS && max - min > 0; i++) {
+			double half = (min + max) / 2.0;
+			if (estimateCount(new double[] { x - half, y - half, x + half, y + half }) >= count) {
+				max = half;
+			} else {
+				min = half;
+			}
+		}
+		return new double[] { x - max, y - max, x + max, y + max };
+	}
+	
+	/**
+	 * @return true if the bounding box lies inside the histogram bounds
+	 */
+	public boolean covers(double[] bbox) {
+		return bbox[0] >= bounds[0] && bbox[1] >= bounds[1] && bbox[2] <= bounds[2] && bbox[3] <= bounds[3];
+	}
+	
+	public double[] getBounds() {
+		return bounds;
+	}
+	
+	public int getSize() {
+		return size;
+	}
+	
+	public double[] getCells() {
+		return cells;
+	}
+	
+	/**
+	 * @return the number of geometries in the index when the histogram was
+	 *         built
+	 */
+	public int getGeometryCount() {
+		return geometryCount;
+	}
+	
+	public String toString() {
+		return "RTreeIndexHistogram[" + size + "x" + size + ", geometries: " + geometryCount + "]";
+	}
+	
+	
+	// Private methods
+	
+	private int cellX(double x) {
+		return cell(x, bounds[0], bounds[2]);
+	}
+
+	private int cellY(double y) {
+		return cell(y, bounds[1], bounds[3]);
+	}
+	
+	private int cell(double value, double min, double max) {
+		if (max <= min) return 0;
+		int cell = (int) ((value - min) / (max - min) * size);
+		return Math.max(0, Math.min(size - 1, cell));
+	}
+
+	private double cellMinX(int x) {
+		return bounds[0] + (bounds[2] - bounds[0]) * x / size;
+	}
+
+	private double cellMinY(int y) {
+		return bounds[1] + (bounds[3] - bounds[1]) * y / size;
+	}
+	
+	/**
+	 * @return the fraction of the range (min, max) that falls inside the cell
+	 */
+	private static double spread(double min, double max, double cellMin, double cellMax) {
+		if (max <= min) return 1.0;
+		return Math.max(0, Math.min(max, cellMax) - Math.max(min, cellMin)) / (max - min);
+	}
+
+	/**
+	 * @return the fraction of the cell that falls inside the range (min, max)
+	 */
+	private static double cover(double min, double max, double cellMin, double cellMax) {
+		if (cellMax <= cellMin) return 1.0;
+		return Math.max(0, Math.min(max, cellMax) - Math.max(min, cellMin)) / (cellMax - cellMin);
+	}
+	
+	
+	// Attributes
+	
+	private double[] bounds;
+	private int size;
+	private double[] cells;
+	private int geometryCount;
+	
+	private static final int SEARCH_ITERATIONS = 32;
+}
@@ -0,0 +1,595 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.ErrorState;
+import org.neo4j.graphdb.event.KernelEventHandler;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+
+/**
+ * An in-memory write-behind buffer in front of an RTreeIndex. Geometries
+ * added to the index are kept here with their bounding box instead of being
+ * inserted in the tree straight away, and a background thread merges them
+ * into the tree with RTreeIndex.addAll when the buffer reaches its maximum
+ * size, or at a fixed interval. Searches through the index visit the
+ * buffered geometries after the tree, with the same needsToVisit test on
+ * their bounding box.
+ * 
+ * Changes reach the buffer when the transaction that made them commits, so
+ * other threads never see geometries from open transactions, and a
+ * transaction does not see the geometries it has added itself until it has
+ * committed. A search running while the buffer is flushed can see a
+ * geometry twice, once in the tree and once here.
+ * 
+ * There is one buffer per layer node in a database, shared by all the
+ * RTreeIndex instances of the layer, and its settings are kept in the index
+ * metadata node, so it is opened again with the index. The adding
+ * transaction links every buffered geometry to the metadata node with an
+ * RTREE_BUFFERED relationship, which is deleted once the geometry is in the
+ * tree or removed. Geometries that were still buffered when the JVM stopped
+ * are buffered again from these relationships when the index is opened, and
+ * the buffer is flushed before the database shuts down.
+ * 
+ * A geometry can be removed while a flush is writing it to the tree, or
+ * just after. The removal is then committed to the buffer as usual, and
+ * the flusher takes the geometry out of the tree again once its own
+ * writes are done.
+ * 
+ * A background flush that fails leaves the geometries in the buffer for the
+ * next flush to try again, and is reported by getFlushFailure(). Once the
+ * buffer is full after a failed flush, adds fail with the same error instead
+ * of growing the buffer further.
+ * 
+ * @see RTreeIndex#setInsertBuffer(int, long)
+ */
+public class RTreeIndexInsertBuffer {
+
+	// Constructor
+	
+	private RTreeIndexInsertBuffer(final RTreeIndex index, GraphDatabaseService database, int maxSize, long flushInterval) {
+		this.index = index;
+		this.database = database;
+		this.maxSize = maxSize;
+		this.flushInterval = flushInterval;
+		
+		flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "RTreeIndex flush " + index.layer.getName());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		if (flushInterval > 0) {
+			flusher.scheduleWithFixedDelay(flushTask, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+		}
+		recover();
+		database.registerTransactionEventHandler(transactionHandler);
+		database.registerKernelEventHandler(kernelHandler);
+	}
+
+	
+	// Public methods
+	
+	/**
+	 * @return the buffer of this layer, or null if added geometries go
+	 *         straight into the tree
+	 */
+	public static synchronized RTreeIndexInsertBuffer getBuffer(GraphDatabaseService database, Node layerNode) {
+		Map<Long, RTreeIndexInsertBuffer> layerBuffers = buffers.get(database);
+		return layerBuffers == null ? null : layerBuffers.get(layerNode.getId());
+	}
+	
+	/**
+	 * Open the buffer of the layer of the index with the given settings,
+	 * unless it is open already. A buffer with other settings is closed
+	 * first, which flushes it.
+	 */
+	static RTreeIndexInsertBuffer enableBuffer(RTreeIndex index, GraphDatabaseService database, int maxSize, long flushInterval) {
+		Node layerNode = index.layer.getLayerNode();
+		RTreeIndexInsertBuffer previous = getBuffer(database, layerNode);
+		if (previous != null && previous.maxSize == maxSize && previous.flushInterval == flushInterval) return previous;
+		disableBuffer(database, layerNode);
+		
+		synchronized (RTreeIndexInsertBuffer.class) {
+			RTreeIndexInsertBuffer buffer = getBuffer(database, layerNode);
+			if (buffer == null) {
+				// opened only once the previous buffer is flushed, so that no geometry is buffered twice
+				buffer = new RTreeIndexInsertBuffer(index, database, maxSize, flushInterval);
+				Map<Long, RTreeIndexInsertBuffer> layerBuffers = buffers.get(database);
+				if (layerBuffers == null) {
+					layerBuffers = new HashMap<Long, RTreeIndexInsertBuffer>();
+					buffers.put(database, layerBuffers);
+				}
+				layerBuffers.put(layerNode.getId(), buffer);
+			}
+			return buffer;
+		}
+	}
+	
+	/**
+	 * Close the buffer of the layer, if it has one, which flushes it.
+	 */
+	static void disableBuffer(GraphDatabaseService database, Node layerNode) {
+		RTreeIndexInsertBuffer buffer = unregister(database, layerNode.getId(), null);
+		if (buffer != null) buffer.close();
+	}
+	
+	public int getMaxSize() {
+		return maxSize;
+	}
+	
+	/**
+	 * @return the interval between two flushes in milliseconds, or 0 if the
+	 *         buffer is only flushed when it is full
+	 */
+	public long getFlushInterval() {
+		return flushInterval;
+	}
+	
+	/**
+	 * @return the error the last background flush failed with, or null if it
+	 *         succeeded
+	 */
+	public RuntimeException getFlushFailure() {
+		return flushFailure;
+	}
+	
+	/**
+	 * @return the number of committed geometries waiting to be merged into
+	 *         the tree
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * Buffer a geometry once the current transaction commits.
+	 * 
+	 * @throws SpatialDatabaseException
+	 *             if the buffer is full and the last flush failed
+	 */
+	public void add(Node geomNode, double[] bbox) {
+		RuntimeException failure = flushFailure;
+		if (failure != null && size() >= maxSize) {
+			throw new SpatialDatabaseException("The insert buffer of layer '" + index.layer.getName() + "' is full and could not be flushed", failure);
+		}
+		pendingChanges.get().added.put(geomNode.getId(), bbox);
+		if (!geomNode.hasRelationship(SpatialRelationshipTypes.RTREE_BUFFERED, Direction.INCOMING)) {
+			index.getMetadataNode().createRelationshipTo(geomNode, SpatialRelationshipTypes.RTREE_BUFFERED);
+		}
+	}
+	
+	/**
+	 * Take a geometry out of the buffer once the current transaction
+	 * commits.
+	 * 
+	 * @return false if the geometry is neither buffered nor added by the
+	 *         current transaction, in which case it has to be removed from
+	 *         the tree
+	 */
+	public boolean remove(long geomNodeId) {
+		if (!take(geomNodeId)) return false;
+		deleteMarkers(Collections.singletonList(geomNodeId));
+		return true;
+	}
+	
+	/**
+	 * Buffer a geometry again with its new bounding box once the current
+	 * transaction commits.
+	 * 
+	 * @return false if the geometry is neither buffered nor added by the
+	 *         current transaction, in which case it has to be moved in the
+	 *         tree
+	 */
+	public boolean move(Node geomNode, double[] bbox) {
+		if (!take(geomNode.getId())) return false;
+		pendingChanges.get().added.put(geomNode.getId(), bbox);
+		return true;
+	}
+	
+	/**
+	 * @return a copy of the buffered geometries, node id and bounding box in
+	 *         index order
+	 */
+	public synchronized List<Entry> getEntries() {
+		List<Entry> result = new ArrayList<Entry>(entries.size());
+		for (Map.Entry<Long, double[]> entry : entries.entrySet()) {
+			result.add(new Entry(entry.getKey(), entry.getValue()));
+		}
+		return result;
+	}
+	
+	/**
+	 * Pass the buffered geometries among the entries whose bounding box the
+	 * visitor needs to the visitor, as covered references if the visitor
+	 * covers their bounding box.
+	 */
+	public void visit(SpatialIndexVisitor visitor, List<Entry> bufferedEntries) {
+		for (Entry entry : bufferedEntries) {
+			if (visitor.needsToVisit(entry.getBoundingBox())) {
+				Node geomNode = getNode(entry);
+				if (geomNode != null) RTreeIndex.visitReference(visitor, entry.getBoundingBox(), geomNode);
+			}
+		}
+	}
+	
+	/**
+	 * @return the geometry node of the entry, or null if it has been deleted
+	 *         or is not visible to the current transaction
+	 */
+	public Node getNode(Entry entry) {
+		try {
+			return database.getNodeById(entry.getNodeId());
+		} catch (NotFoundException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Merge the buffered geometries into the tree on the calling thread, in
+	 * the current transaction if there is one. Geometries are taken out of
+	 * the buffer once they have been written, so this should be called
+	 * outside of any transaction that could still be rolled back.
+	 */
+	public void flush() {
+		synchronized (flushLock) {
+			List<Entry> batch;
+			synchronized (this) {
+				batch = getEntries();
+				for (Entry entry : batch) {
+					flushingIds.add(entry.getNodeId());
+				}
+			}
+			
+			List<Long> flushedIds = new ArrayList<Long>(batch.size());
+			try {
+				if (!batch.isEmpty()) {
+					List<Node> geomNodes = new ArrayList<Node>(batch.size());
+					for (Entry entry : batch) {
+						// geometries deleted since they were buffered are skipped
+						Node geomNode = getNode(entry);
+						if (geomNode != null) geomNodes.add(geomNode);
+					}
+					index.addAll(geomNodes);
+				}
+				
+				synchronized (this) {
+					for (Entry entry : batch) {
+						// unless it was moved meanwhile, then it stays buffered with its new bounding box
+						if (entries.get(entry.getNodeId()) == entry.getBoundingBox()) {
+							entries.remove(entry.getNodeId());
+							flushedIds.add(entry.getNodeId());
+						}
+					}
+				}
+			} finally {
+				synchronized (this) {
+					flushingIds.clear();
+				}
+			}
+			
+			deleteMarkers(flushedIds);
+			removeFlushedGeometries();
+			flushFailure = null;
+		}
+	}
+	
+	/**
+	 * Stop the background flusher and merge what is left in the buffer into
+	 * the tree.
+	 */
+	public void close() {
+		database.unregisterKernelEventHandler(kernelHandler);
+		shutdown();
+	}
+	
+	
+	// Private methods
+	
+	/**
+	 * @return the buffer removed from the registry, or null if the layer had
+	 *         no buffer, or another one than the expected buffer
+	 */
+	private static synchronized RTreeIndexInsertBuffer unregister(GraphDatabaseService database, long layerNodeId, RTreeIndexInsertBuffer expected) {
+		Map<Long, RTreeIndexInsertBuffer> layerBuffers = buffers.get(database);
+		if (layerBuffers == null) return null;
+		RTreeIndexInsertBuffer buffer = layerBuffers.get(layerNodeId);
+		if (buffer == null || (expected != null && buffer != expected)) return null;
+		return layerBuffers.remove(layerNodeId);
+	}
+	
+	private void shutdown() {
+		database.unregisterTransactionEventHandler(transactionHandler);
+		flusher.shutdown();
+		try {
+			flusher.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+	
+	/**
+	 * Buffer the geometries again that are linked to the metadata node, but
+	 * not in the tree, because the JVM stopped before they were flushed.
+	 */
+	private void recover() {
+		Transaction tx = database.beginTx();
+		try {
+			List<Relationship> markers = new ArrayList<Relationship>();
+			for (Relationship marker : index.getMetadataNode().getRelationships(SpatialRelationshipTypes.RTREE_BUFFERED, Direction.OUTGOING)) {
+				markers.add(marker);
+			}
+			for (Relationship marker : markers) {
+				Node geomNode = marker.getEndNode();
+				if (geomNode.hasRelationship(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING)) {
+					// the flush that wrote it to the tree stopped before it deleted the marker
+					marker.delete();
+				} else {
+					entries.put(geomNode.getId(), index.boundingBox.getGeometryNodeBoundingBox(geomNode));
+				}
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		
+		if (!entries.isEmpty()) {
+			flushRequested = true;
+			flusher.execute(flushTask);
+		}
+	}
+	
+	/**
+	 * @return true if the geometry was buffered or added by the current
+	 *         transaction, and will no longer be buffered once the
+	 *         transaction commits
+	 */
+	private boolean take(long geomNodeId) {
+		PendingChanges pending = pendingChanges.get();
+		boolean added = pending.added.remove(geomNodeId) != null;
+		if (pending.removed.contains(geomNodeId)) {
+			// buffered before, and added again by the current transaction
+			return true;
+		}
+		synchronized (this) {
+			if (!entries.containsKey(geomNodeId)) return added;
+		}
+		pending.removed.add(geomNodeId);
+		return true;
+	}
+	
+	/**
+	 * Delete the RTREE_BUFFERED relationships of the geometries, in the
+	 * current transaction if there is one.
+	 */
+	private void deleteMarkers(Collection<Long> geomNodeIds) {
+		if (geomNodeIds.isEmpty()) return;
+		Transaction tx = database.beginTx();
+		try {
+			for (Long geomNodeId : geomNodeIds) {
+				try {
+					Node geomNode = database.getNodeById(geomNodeId);
+					// so that a concurrent removal and flush do not both delete the same marker
+					tx.acquireWriteLock(geomNode);
+					for (Relationship marker : geomNode.getRelationships(SpatialRelationshipTypes.RTREE_BUFFERED, Direction.INCOMING)) {
+						marker.delete();
+					}
+				} catch (NotFoundException e) {
+					// the geometry node has been deleted, and its marker with it
+				}
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+	
+	private synchronized void commit(PendingChanges changes) {
+		for (Long geomNodeId : changes.removed) {
+			if (entries.remove(geomNodeId) == null || flushingIds.contains(geomNodeId)) {
+				// a flush has written it to the tree since it was removed from the buffer
+				flushedRemovals.add(geomNodeId);
+			}
+		}
+		entries.putAll(changes.added);
+		if ((entries.size() >= maxSize || !flushedRemovals.isEmpty()) && !flushRequested && !flusher.isShutdown()) {
+			flushRequested = true;
+			flusher.execute(flushTask);
+		}
+	}
+	
+	/**
+	 * Take the geometries out of the tree again that were removed from the
+	 * buffer while a flush was writing them to the tree, each in its own
+	 * transaction.
+	 */
+	private void removeFlushedGeometries() {
+		List<Long> geomNodeIds;
+		synchronized (this) {
+			if (flushedRemovals.isEmpty()) return;
+			geomNodeIds = new ArrayList<Long>(flushedRemovals);
+			flushedRemovals.clear();
+		}
+		for (Long geomNodeId : geomNodeIds) {
+			Transaction tx = database.beginTx();
+			try {
+				Node geomNode = database.getNodeById(geomNodeId);
+				// not there if the flush that wrote it failed
+				if (geomNode.hasRelationship(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING)) {
+					index.removeFromTree(geomNode, false);
+				}
+				tx.success();
+			} catch (NotFoundException e) {
+				// the geometry node has been deleted, and its reference with it
+			} finally {
+				tx.finish();
+			}
+		}
+	}
+	
+	
+	// Attributes
+	
+	private RTreeIndex index;
+	private GraphDatabaseService database;
+	private int maxSize;
+	private long flushInterval;
+	private ScheduledExecutorService flusher;
+	private boolean flushRequested = false;
+	private volatile RuntimeException flushFailure;
+	private final Object flushLock = new Object();
+	private final Map<Long, double[]> entries = new LinkedHashMap<Long, double[]>();
+	
+	/**
+	 * Ids of the geometries the running flush is writing to the tree.
+	 */
+	private final Set<Long> flushingIds = new HashSet<Long>();
+	
+	/**
+	 * Ids of the geometries removed from the buffer after a flush had
+	 * started writing them to the tree.
+	 */
+	private final Set<Long> flushedRemovals = new HashSet<Long>();
+	
+	/**
+	 * Geometries added or removed by the current transaction on this thread.
+	 */
+	private final ThreadLocal<PendingChanges> pendingChanges = new ThreadLocal<PendingChanges>() {
+		protected PendingChanges initialValue() {
+			return new PendingChanges();
+		}
+	};
+	
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			synchronized (RTreeIndexInsertBuffer.this) {
+				flushRequested = false;
+			}
+			try {
+				flush();
+			} catch (RuntimeException e) {
+				// the geometries stay in the buffer and the next flush tries again
+				flushFailure = e;
+			}
+		}
+	};
+	
+	private final TransactionEventHandler<PendingChanges> transactionHandler = new TransactionEventHandler<PendingChanges>() {
+		public PendingChanges beforeCommit(TransactionData data) {
+			PendingChanges changes = pendingChanges.get();
+			pendingChanges.remove();
+			return changes.isEmpty() ? null : changes;
+		}
+
+		public void afterCommit(TransactionData data, PendingChanges changes) {
+			if (changes != null) commit(changes);
+		}
+
+		public void afterRollback(TransactionData data, PendingChanges changes) {
+			pendingChanges.remove();
+		}
+	};
+	
+	private final KernelEventHandler kernelHandler = new KernelEventHandler() {
+		public void beforeShutdown() {
+			unregister(database, index.layer.getLayerNode().getId(), RTreeIndexInsertBuffer.this);
+			shutdown();
+		}
+
+		public void kernelPanic(ErrorState error) {
+		}
+
+		public Object getResource() {
+			return null;
+		}
+
+		public ExecutionOrder orderComparedTo(KernelEventHandler other) {
+			return ExecutionOrder.DOESNT_MATTER;
+		}
+	};
+	
+	private static Map<GraphDatabaseService, Map<Long, RTreeIndexInsertBuffer>> buffers = new WeakHashMap<GraphDatabaseService, Map<Long, RTreeIndexInsertBuffer>>();
+	
+	
+	// Public classes
+	
+	public static class Entry {
+		
+		Entry(long nodeId, double[] bbox) {
+			this.nodeId = nodeId;
+			this.bbox = bbox;
+		}
+		
+		public long getNodeId() {
+			return nodeId;
+		}
+		
+		public double[] getBoundingBox() {
+			return bbox;
+		}
+		
+		private long nodeId;
+		private double[] bbox;
+	}
+	
+	
+	// Private classes
+	
+	private static class PendingChanges {
+		
+		boolean isEmpty() {
+			return added.isEmpty() && removed.isEmpty();
+		}
+		
+		/**
+		 * Geometry node ids with their bounding box.
+		 */
+		private final Map<Long, double[]> added = new LinkedHashMap<Long, double[]>();
+		
+		/**
+		 * Ids of geometries that were buffered before the transaction.
+		 */
+		private final Set<Long> removed = new HashSet<Long>();
+	}
+}
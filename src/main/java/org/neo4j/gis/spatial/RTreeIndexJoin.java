@@ -0,0 +1,369 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+
+
+/**
+ * A spatial join of two layers indexed by an RTreeIndex: finds every pair of
+ * geometries, one from each layer, that are in the given relation, for
+ * example all customer points within each sales territory polygon.
+ * 
+ * Both trees are walked at the same time. Only pairs of index nodes whose
+ * bounding boxes intersect are entered, and only the children inside the
+ * intersection of their bounding boxes are compared. When the trees have
+ * different heights, the deeper tree is walked alone below the leaves of the
+ * other. The children of two index nodes are paired with a plane sweep along
+ * x, instead of comparing every child with every other.
+ * 
+ * Candidate pairs of geometries whose bounding boxes allow the relation are
+ * refined with the geometry of the right layer prepared, so the right layer
+ * should be the one with the larger geometries, such as polygons. Prepared
+ * geometries are kept for the most recently used right geometries, since
+ * every one of them is paired with many left geometries.
+ * 
+ * The join only uses x and y, even for indexes with more dimensions.
+ */
+public class RTreeIndexJoin implements Constants {
+
+	// Constructor
+	
+	/**
+	 * @param relation
+	 *            the relation of the left geometry to the right one
+	 */
+	public RTreeIndexJoin(Layer left, Layer right, Relation relation) {
+		this.left = left;
+		this.right = right;
+		this.leftIndex = getRTreeIndex(left);
+		this.rightIndex = getRTreeIndex(right);
+		this.relation = relation;
+	}
+
+	
+	// Public methods
+	
+	/**
+	 * Pass every pair of geometries in the relation to the visitor, as soon as
+	 * it is found. Pairs are not collected, and come in no particular order.
+	 */
+	public void execute(Visitor visitor) {
+		if (leftIndex.isEmpty() || rightIndex.isEmpty()) return;
+		
+		Node leftRoot = leftIndex.getIndexRoot();
+		Node rightRoot = rightIndex.getIndexRoot();
+		join(new Entry(leftRoot, getBoundingBox(leftRoot)), new Entry(rightRoot, getBoundingBox(rightRoot)), visitor);
+	}
+	
+	/**
+	 * @return every pair of geometries in the relation, as the ids of the left
+	 *         and the right geometry node
+	 */
+	public List<long[]> getPairs() {
+		final List<long[]> pairs = new ArrayList<long[]>();
+		execute(new Visitor() {
+			public void onPair(SpatialDatabaseRecord leftRecord, SpatialDatabaseRecord rightRecord) {
+				pairs.add(new long[] { leftRecord.getId(), rightRecord.getId() });
+			}
+		});
+		return pairs;
+	}
+	
+	
+	// Private methods
+	
+	private static RTreeIndex getRTreeIndex(Layer layer) {
+		if (!(layer.getIndex() instanceof RTreeIndex)) {
+			throw new SpatialDatabaseException("Layer '" + layer.getName() + "' does not have an RTreeIndex");
+		}
+		return (RTreeIndex) layer.getIndex();
+	}
+	
+	private void join(Entry leftNode, Entry rightNode, Visitor visitor) {
+		double[] common = getIntersection(leftNode.bbox, rightNode.bbox);
+		if (common == null) return;
+		
+		boolean leftLeaf = !leftNode.node.hasRelationship(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING);
+		boolean rightLeaf = !rightNode.node.hasRelationship(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING);
+		if (leftLeaf && rightLeaf) {
+			List<Entry> leftEntries = getGeometryEntries(leftIndex, leftNode.node, common);
+			List<Entry> rightEntries = getGeometryEntries(rightIndex, rightNode.node, common);
+			for (Entry[] pair : sweep(leftEntries, rightEntries)) {
+				refine(pair[0], pair[1], visitor);
+			}
+		} else {
+			// a leaf is paired with the children of the other index node as it is
+			List<Entry> leftEntries = leftLeaf ? asList(leftNode) : getChildEntries(leftNode.node, common);
+			List<Entry> rightEntries = rightLeaf ? asList(rightNode) : getChildEntries(rightNode.node, common);
+			for (Entry[] pair : sweep(leftEntries, rightEntries)) {
+				join(pair[0], pair[1], visitor);
+			}
+		}
+	}
+	
+	private void refine(Entry leftEntry, Entry rightEntry, Visitor visitor) {
+		if (!relation.allows(leftEntry.bbox, rightEntry.bbox)) return;
+		
+		if (leftEntry.geometry == null) leftEntry.geometry = left.getGeometryEncoder().decodeGeometry(leftEntry.node);
+		if (relation.holds(leftEntry.geometry, getPrepared(rightEntry))) {
+			visitor.onPair(new SpatialDatabaseRecord(left, leftEntry.node, leftEntry.geometry), new SpatialDatabaseRecord(right,
+					rightEntry.node, getPrepared(rightEntry).getGeometry()));
+		}
+	}
+	
+	private PreparedGeometry getPrepared(Entry rightEntry) {
+		PreparedGeometry result = prepared.get(rightEntry.node.getId());
+		if (result == null) {
+			result = PreparedGeometryFactory.prepare(right.getGeometryEncoder().decodeGeometry(rightEntry.node));
+			prepared.put(rightEntry.node.getId(), result);
+		}
+		return result;
+	}
+	
+	/**
+	 * @return the child index nodes whose bounding box intersects the window
+	 */
+	private List<Entry> getChildEntries(Node indexNode, double[] window) {
+		List<Entry> entries = new ArrayList<Entry>();
+		for (Relationship rel : indexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+			Node child = rel.getEndNode();
+			double[] bbox = getBoundingBox(child);
+			if (intersects(bbox, window)) entries.add(new Entry(child, bbox));
+		}
+		return entries;
+	}
+	
+	/**
+	 * @return the geometries of a leaf whose bounding box intersects the
+	 *         window, with the bounding boxes packed in the leaf if there are
+	 *         any
+	 */
+	private static List<Entry> getGeometryEntries(RTreeIndex index, Node leaf, double[] window) {
+		List<Entry> entries = new ArrayList<Entry>();
+		if (leaf.hasProperty(RTreeIndex.PROP_CHILD_IDS)) {
+			long[] childIds = (long[]) leaf.getProperty(RTreeIndex.PROP_CHILD_IDS);
+			double[] childBBoxes = (double[]) leaf.getProperty(RTreeIndex.PROP_CHILD_BBOXES);
+			int size = RTreeIndex.getBoundingBoxSize(childIds, childBBoxes);
+			for (int i = 0; i < childIds.length; i++) {
+				double[] bbox = new double[size];
+				System.arraycopy(childBBoxes, i * size, bbox, 0, size);
+				if (intersects(bbox, window)) entries.add(new Entry(leaf.getGraphDatabase().getNodeById(childIds[i]), bbox));
+			}
+		} else {
+			for (Relationship rel : leaf.getRelationships(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)) {
+				Node geomNode = rel.getEndNode();
+				double[] bbox = index.getGeometryNodeBoundingBox(geomNode);
+				if (intersects(bbox, window)) entries.add(new Entry(geomNode, bbox));
+			}
+		}
+		return entries;
+	}
+	
+	/**
+	 * Pair the entries whose bounding boxes intersect. Both lists are sorted
+	 * by xmin, and each entry is only compared with the entries of the other
+	 * list that start inside its x range.
+	 */
+	private static List<Entry[]> sweep(List<Entry> leftEntries, List<Entry> rightEntries) {
+		List<Entry[]> pairs = new ArrayList<Entry[]>();
+		if (leftEntries.isEmpty() || rightEntries.isEmpty()) return pairs;
+		
+		Collections.sort(leftEntries, XMIN_ORDER);
+		Collections.sort(rightEntries, XMIN_ORDER);
+		int i = 0;
+		int j = 0;
+		while (i < leftEntries.size() && j < rightEntries.size()) {
+			Entry leftEntry = leftEntries.get(i);
+			Entry rightEntry = rightEntries.get(j);
+			if (leftEntry.bbox[0] <= rightEntry.bbox[0]) {
+				for (int k = j; k < rightEntries.size() && rightEntries.get(k).bbox[0] <= leftEntry.bbox[2]; k++) {
+					if (overlapsY(leftEntry.bbox, rightEntries.get(k).bbox)) pairs.add(new Entry[] { leftEntry, rightEntries.get(k) });
+				}
+				i++;
+			} else {
+				for (int k = i; k < leftEntries.size() && leftEntries.get(k).bbox[0] <= rightEntry.bbox[2]; k++) {
+					if (overlapsY(leftEntries.get(k).bbox, rightEntry.bbox)) pairs.add(new Entry[] { leftEntries.get(k), rightEntry });
+				}
+				j++;
+			}
+		}
+		return pairs;
+	}
+	
+	/**
+	 * @return a list that sweep can sort
+	 */
+	private static List<Entry> asList(Entry entry) {
+		List<Entry> entries = new ArrayList<Entry>(1);
+		entries.add(entry);
+		return entries;
+	}
+	
+	private static double[] getBoundingBox(Node indexNode) {
+		return (double[]) indexNode.getProperty(PROP_BBOX);
+	}
+	
+	/**
+	 * @return the x and y range common to both bounding boxes, or null if
+	 *         they do not intersect
+	 */
+	private static double[] getIntersection(double[] bbox, double[] other) {
+		if (!intersects(bbox, other)) return null;
+		return new double[] { Math.max(bbox[0], other[0]), Math.max(bbox[1], other[1]), Math.min(bbox[2], other[2]),
+				Math.min(bbox[3], other[3]) };
+	}
+	
+	private static boolean intersects(double[] bbox, double[] other) {
+		return bbox[0] <= other[2] && bbox[2] >= other[0] && overlapsY(bbox, other);
+	}
+	
+	private static boolean overlapsY(double[] bbox, double[] other) {
+		return bbox[1] <= other[3] && bbox[3] >= other[1];
+	}
+	
+	private static boolean covers(double[] bbox, double[] other) {
+		return bbox[0] <= other[0] && other[2] <= bbox[2] && bbox[1] <= other[1] && other[3] <= bbox[3];
+	}
+	
+	
+	// Attributes
+	
+	/**
+	 * The number of prepared right geometries kept between leaf pairs.
+	 */
+	private static final int PREPARED_CACHE_SIZE = 1000;
+	
+	private static final Comparator<Entry> XMIN_ORDER = new Comparator<Entry>() {
+		public int compare(Entry e1, Entry e2) {
+			return Double.compare(e1.bbox[0], e2.bbox[0]);
+		}
+	};
+	
+	private Layer left;
+	private Layer right;
+	private RTreeIndex leftIndex;
+	private RTreeIndex rightIndex;
+	private Relation relation;
+	private Map<Long, PreparedGeometry> prepared = new LinkedHashMap<Long, PreparedGeometry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		
+		protected boolean removeEldestEntry(Map.Entry<Long, PreparedGeometry> eldest) {
+			return size() > PREPARED_CACHE_SIZE;
+		}
+	};
+	
+	
+	// Public classes
+	
+	/**
+	 * The relation of the left geometry to the right geometry of a pair.
+	 */
+	public enum Relation {
+		
+		INTERSECTS {
+			boolean holds(Geometry leftGeometry, PreparedGeometry rightGeometry) {
+				return rightGeometry.intersects(leftGeometry);
+			}
+		},
+		WITHIN {
+			boolean allows(double[] leftBBox, double[] rightBBox) {
+				return covers(rightBBox, leftBBox);
+			}
+			
+			boolean holds(Geometry leftGeometry, PreparedGeometry rightGeometry) {
+				return rightGeometry.contains(leftGeometry);
+			}
+		},
+		COVERED_BY {
+			boolean allows(double[] leftBBox, double[] rightBBox) {
+				return covers(rightBBox, leftBBox);
+			}
+			
+			boolean holds(Geometry leftGeometry, PreparedGeometry rightGeometry) {
+				return rightGeometry.covers(leftGeometry);
+			}
+		},
+		CONTAINS {
+			boolean allows(double[] leftBBox, double[] rightBBox) {
+				return covers(leftBBox, rightBBox);
+			}
+			
+			boolean holds(Geometry leftGeometry, PreparedGeometry rightGeometry) {
+				return rightGeometry.within(leftGeometry);
+			}
+		},
+		COVERS {
+			boolean allows(double[] leftBBox, double[] rightBBox) {
+				return covers(leftBBox, rightBBox);
+			}
+			
+			boolean holds(Geometry leftGeometry, PreparedGeometry rightGeometry) {
+				return rightGeometry.coveredBy(leftGeometry);
+			}
+		};
+		
+		/**
+		 * @return false if geometries with these bounding boxes can not be in
+		 *         the relation
+		 */
+		boolean allows(double[] leftBBox, double[] rightBBox) {
+			return true;
+		}
+		
+		abstract boolean holds(Geometry leftGeometry, PreparedGeometry rightGeometry);
+	}
+	
+	/**
+	 * Receives the pairs found by a join.
+	 */
+	public interface Visitor {
+		
+		void onPair(SpatialDatabaseRecord leftRecord, SpatialDatabaseRecord rightRecord);
+	}
+	
+	
+	// Private classes
+	
+	private static class Entry {
+		
+		Entry(Node node, double[] bbox) {
+			this.node = node;
+			this.bbox = bbox;
+		}
+		
+		private Node node;
+		private double[] bbox;
+		private Geometry geometry;
+	}
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+
+/**
+ * A snapshot of the statistics an RTreeIndex keeps in its metadata node. They
+ * are updated in the same transaction as every add and remove, so reading
+ * them never needs a visit of the tree.
+ */
+public class RTreeIndexStatistics implements Constants {
+
+	// Constructor
+	
+	public RTreeIndexStatistics(int geometryCount, int[] geometryTypeCounts, int treeDepth, int indexNodeCount, int maxNodeReferences, double[] extent) {
+		this.geometryCount = geometryCount;
+		this.geometryTypeCounts = geometryTypeCounts;
+		this.treeDepth = treeDepth;
+		this.indexNodeCount = indexNodeCount;
+		this.maxNodeReferences = maxNodeReferences;
+		this.extent = extent;
+	}
+
+	
+	// Public methods
+	
+	public int getGeometryCount() {
+		return geometryCount;
+	}
+	
+	/**
+	 * @param gtype
+	 *            one of the GTYPE constants, where GTYPE_GEOMETRY counts
+	 *            geometries of unknown type
+	 */
+	public int getGeometryTypeCount(int gtype) {
+		return gtype >= 0 && gtype < geometryTypeCounts.length ? geometryTypeCounts[gtype] : 0;
+	}
+	
+	/**
+	 * @return the most common geometry type in the index, or null if it is
+	 *         empty
+	 */
+	public Integer getGeometryType() {
+		Integer result = null;
+		for (int gtype = 0; gtype < geometryTypeCounts.length; gtype++) {
+			if (geometryTypeCounts[gtype] > 0 && (result == null || geometryTypeCounts[gtype] > geometryTypeCounts[result])) {
+				result = gtype;
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * @return the number of levels of index nodes, 1 for a tree with only a
+	 *         root
+	 */
+	public int getTreeDepth() {
+		return treeDepth;
+	}
+	
+	public int getIndexNodeCount() {
+		return indexNodeCount;
+	}
+	
+	/**
+	 * @return the average number of entries per index node, as a fraction of
+	 *         the maximum number of entries
+	 */
+	public double getFillFactor() {
+		// every index node except the root is an entry of its parent
+		int entries = geometryCount + indexNodeCount - 1;
+		return indexNodeCount == 0 ? 0 : (double) entries / ((double) indexNodeCount * maxNodeReferences);
+	}
+	
+	/**
+	 * @return the bounding box of the index, in index order (xmin, ymin, xmax,
+	 *         ymax), or null if it is empty
+	 */
+	public double[] getExtent() {
+		return extent;
+	}
+	
+	public String toString() {
+		return "RTreeIndexStatistics[geometries: " + geometryCount + ", depth: " + treeDepth + ", index nodes: " + indexNodeCount
+				+ ", fill factor: " + getFillFactor() + "]";
+	}
+
+	
+	// Attributes
+	
+	private int geometryCount;
+	private int[] geometryTypeCounts;
+	private int treeDepth;
+	private int indexNodeCount;
+	private int maxNodeReferences;
+	private double[] extent;
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.neo4j.graphdb.Node;
+
+
+/**
+ * A pull based iterator over the results of a Search. Candidate geometry
+ * nodes are passed to Search.onIndexReference one at a time, only when the
+ * consumer asks for more results, and the records the search adds are handed
+ * out and removed from Search.getResults() straight away. Nothing is collected
+ * beyond the records found for the current candidate, and the walk stops as
+ * soon as the limit is reached or the consumer stops asking.
+ * 
+ * This suits searches that decide on each geometry independently. Searches
+ * that revise earlier results, like SearchClosest, need executeSearch.
+ */
+public abstract class SearchCursor implements Iterator<SpatialDatabaseRecord> {
+
+	// Constructor
+	
+	/**
+	 * @param limit
+	 *            the maximum number of records to return, or a negative
+	 *            value for no limit
+	 */
+	protected SearchCursor(Search search, int limit) {
+		this.search = search;
+		this.limit = limit;
+	}
+
+	
+	// Public methods
+	
+	public boolean hasNext() {
+		while (buffer.isEmpty() && !closed) {
+			if (limit >= 0 && returned >= limit) {
+				close();
+			} else {
+				Node geomNode = nextCandidate();
+				if (geomNode == null) {
+					close();
+				} else {
+					if (isCandidateCovered()) {
+						((SpatialIndexCoveringVisitor) search).onCoveredIndexReference(geomNode);
+					} else {
+						search.onIndexReference(geomNode);
+					}
+					List<SpatialDatabaseRecord> results = search.getResults();
+					buffer.addAll(results);
+					results.clear();
+				}
+			}
+		}
+		return !buffer.isEmpty() && (limit < 0 || returned < limit);
+	}
+
+	public SpatialDatabaseRecord next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		returned++;
+		return buffer.removeFirst();
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+	
+	/**
+	 * Stop the search early and release its state.
+	 */
+	public void close() {
+		if (!closed) {
+			closed = true;
+			onClose();
+		}
+	}
+	
+	
+	// Protected methods
+	
+	/**
+	 * @return the next geometry node to pass to the search, or null when
+	 *         there are no more
+	 */
+	protected abstract Node nextCandidate();
+	
+	/**
+	 * @return true if the candidate nextCandidate returned last lies in an
+	 *         index node the search covers, see SpatialIndexCoveringVisitor
+	 */
+	protected boolean isCandidateCovered() {
+		return false;
+	}
+	
+	protected void onClose() {
+	}
+	
+	
+	// Attributes
+	
+	protected Search search;
+	private int limit;
+	private int returned = 0;
+	private boolean closed = false;
+	private LinkedList<SpatialDatabaseRecord> buffer = new LinkedList<SpatialDatabaseRecord>();
+	
+	
+	// Public classes
+	
+	/**
+	 * Passes every node of an Iterable to the search, for indexes that do not
+	 * prune candidates.
+	 */
+	public static class IterableSearchCursor extends SearchCursor {
+		
+		public IterableSearchCursor(Search search, int limit, Iterable<Node> geomNodes) {
+			super(search, limit);
+			this.geomNodes = geomNodes.iterator();
+		}
+		
+		protected Node nextCandidate() {
+			return geomNodes.hasNext() ? geomNodes.next() : null;
+		}
+		
+		protected void onClose() {
+			geomNodes = null;
+		}
+		
+		private Iterator<Node> geomNodes;
+	}
+}
@@ -32,7 +32,19 @@ public class SimplePointLayer extends EditableLayerImpl {
 	public static final int LIMIT_RESULTS = 100;
 
 	public List<SpatialDatabaseRecord> findClosestPointsTo(Coordinate point) {
-		Envelope extent = SpatialTopologyUtils.createEnvelopeForGeometryDensityEstimate(this, point, LIMIT_RESULTS);
+		return findNearestPointsTo(point, LIMIT_RESULTS);
+	}
+
+	/**
+	 * Find the closest points by great-circle distance, closest first. With an
+	 * RTreeIndex this is an exact best-first search, otherwise the points are
+	 * taken from a search window estimated from the layer density.
+	 */
+	public List<SpatialDatabaseRecord> findNearestPointsTo(Coordinate point, int limit) {
+		if (getIndex() instanceof RTreeIndex) {
+			return ((RTreeIndex) getIndex()).findNearestOrthodromic(point, limit);
+		}
+		Envelope extent = SpatialTopologyUtils.createEnvelopeForGeometryDensityEstimate(this, point, limit);
 		SearchPointsWithinOrthodromicDistance distanceQuery = new SearchPointsWithinOrthodromicDistance(point, extent, true);
 		return findClosestPoints(distanceQuery);
 	}
@@ -132,6 +132,14 @@ public class SpatialDatabaseRecord implements Constants, Comparable<SpatialDatab
 		this.geomNode = geomNode;
 		this.geometry = geometry;
 	}
+	
+	/**
+	 * Copy a record, keeping its geometry if it was already decoded.
+	 */
+	protected SpatialDatabaseRecord(SpatialDatabaseRecord record) {
+		this(record.layer, record.geomNode, record.geometry);
+		this.userData = record.userData;
+	}
 
 	// Private methods
 	
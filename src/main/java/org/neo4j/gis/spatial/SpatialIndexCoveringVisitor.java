@@ -0,0 +1,50 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import org.neo4j.graphdb.Node;
+
+
+/**
+ * A SpatialIndexVisitor that can tell when an index node lies fully inside
+ * the part of space it is looking for, so that every geometry below it is a
+ * result. The index then passes those geometries to onCoveredIndexReference
+ * without asking needsToVisit about the rest of the subtree, and the visitor
+ * can accept them without decoding their envelope or geometry.
+ */
+public interface SpatialIndexCoveringVisitor extends SpatialIndexVisitor {
+
+	/**
+	 * Only called for bounding boxes needsToVisit accepted.
+	 * 
+	 * @param indexNodeBoundingBox
+	 *            the bounding box of an index node, or of a single geometry
+	 *            in a packed leaf, in index order
+	 * @return true if every geometry inside the bounding box is a result
+	 */
+	boolean coversIndexNode(double[] indexNodeBoundingBox);
+
+	/**
+	 * Called instead of onIndexReference for the geometries below an index
+	 * node that coversIndexNode accepted.
+	 */
+	void onCoveredIndexReference(Node geomNode);
+	
+}
@@ -19,6 +19,7 @@
  */
 package org.neo4j.gis.spatial;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
@@ -39,6 +40,18 @@ public interface SpatialIndexReader {
 	List<SpatialDatabaseRecord> get(Set<Long> geomNodeIds);
 	
 	void executeSearch(Search search);
+	
+	/**
+	 * Run the search lazily: geometries are only tested and decoded as the
+	 * returned iterator is advanced, and the results are not collected in
+	 * Search.getResults().
+	 * 
+	 * @param limit
+	 *            the maximum number of records to return, or a negative
+	 *            value for no limit
+	 * @see SearchCursor
+	 */
+	Iterator<SpatialDatabaseRecord> search(Search search, int limit);
 
     Iterable<Node> getAllGeometryNodes();
 
@@ -29,9 +29,15 @@ public interface SpatialIndexWriter extends SpatialIndexReader {
 
 	void add(Node geomNode);
 	
+	void addAll(Iterable<Node> geomNodes);
+	
 	void remove(long geomNodeId, boolean deleteGeomNode);
 	
+	void move(Node geomNode);
+	
 	void removeAll(boolean deleteGeomNodes, Listener monitor);
 	
+	void removeAll(Iterable<Long> geomNodeIds, boolean deleteGeomNodes, Listener monitor);
+	
 	void clear(Listener monitor);
 }
\ No newline at end of file
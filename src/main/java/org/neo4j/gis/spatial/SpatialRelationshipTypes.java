@@ -26,5 +26,5 @@ import org.neo4j.graphdb.RelationshipType;
  * @author Davide Savazzi
  */
 public enum SpatialRelationshipTypes implements RelationshipType {
-	LAYER, RTREE_METADATA, RTREE_ROOT, RTREE_CHILD, RTREE_REFERENCE, NETWORK, NEXT_GEOM, GEOMETRIES, SPATIAL, LAYERS, DATASETS, LAYER_CONFIG, DATASET
+	LAYER, RTREE_METADATA, RTREE_ROOT, RTREE_CHILD, RTREE_REFERENCE, NETWORK, NEXT_GEOM, GEOMETRIES, SPATIAL, LAYERS, DATASETS, LAYER_CONFIG, DATASET, RTREE_BUFFERED
 }
\ No newline at end of file
@@ -288,10 +288,12 @@ public class SpatialTopologyUtils {
 
 	/**
 	 * Create an Envelope that should approximately include the specified number
-	 * of geometries, based on a simple linear calculation of the geometry
-	 * density. If the layer has fewer geometries, then the layer bounds will be
-	 * returned. If the limit is set to zero (or negative), a point Envelope
-	 * will be returned.
+	 * of geometries. When the layer is indexed by an RTreeIndex its density
+	 * histogram is used, so the envelope follows the local density around the
+	 * point; otherwise it is based on a simple linear calculation of the
+	 * average geometry density. If the layer has fewer geometries, then the
+	 * layer bounds will be returned. If the limit is set to zero (or negative),
+	 * a point Envelope will be returned.
 	 * 
 	 * @param layer
 	 *            the layer whose geometry density is to be used to estimate the
@@ -307,6 +309,14 @@ public class SpatialTopologyUtils {
 		if(limit < 1) {
 			return new Envelope(point);
 		}
+		if (layer.getIndex() instanceof RTreeIndex) {
+			RTreeIndexHistogram histogram = ((RTreeIndex) layer.getIndex()).getHistogram();
+			if (histogram == null) {
+				return new Envelope(point);
+			}
+			double[] bbox = histogram.createBoundingBoxForCount(point.x, point.y, limit);
+			return new Envelope(bbox[0], bbox[2], bbox[1], bbox[3]);
+		}
 		int count = layer.getIndex().count();
 		if (count > limit) {
 			return createEnvelopeForGeometryDensityEstimate(layer, point,(double) limit / (double) count);
@@ -338,7 +348,7 @@ public class SpatialTopologyUtils {
 		}
 		Envelope bbox = layer.getIndex().getLayerBoundingBox();
 		double width = bbox.getWidth() * fraction;
-		double height = bbox.getWidth() * fraction;
+		double height = bbox.getHeight() * fraction;
 		Envelope extent = new Envelope(point);
 		extent.expandToInclude(point.x - width / 2.0, point.y - height / 2.0);
 		extent.expandToInclude(point.x + width / 2.0, point.y + height / 2.0);
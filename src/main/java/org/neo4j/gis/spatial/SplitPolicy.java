@@ -0,0 +1,60 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.util.List;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.RelationshipType;
+
+
+/**
+ * Decides how RTreeIndex handles an index node that has grown beyond the
+ * maximum number of entries. Implementations are recorded by class name in the
+ * index metadata node, and must have a no-argument constructor.
+ */
+public interface SplitPolicy {
+
+	/**
+	 * Called once when the policy is attached to an index.
+	 */
+	void init(RTreeIndex index);
+
+	/**
+	 * When a leaf overflows, the policy can choose some of its geometry nodes
+	 * to be removed and inserted again from the root, instead of splitting the
+	 * leaf. This is done at most once per insert.
+	 * 
+	 * @param leafNode overflowing leaf index node
+	 * @return geometry nodes to reinsert in order, or null to split the leaf
+	 */
+	List<Node> chooseReinsertEntries(Node leafNode);
+
+	/**
+	 * Distribute the children of an overflowing index node between that node
+	 * and a new index node.
+	 * 
+	 * @param indexNode overflowing index node
+	 * @param relationshipType RTREE_REFERENCE for leaves, RTREE_CHILD otherwise
+	 * @return the new index node, not yet connected to a parent
+	 */
+	Node split(Node indexNode, RelationshipType relationshipType);
+
+}
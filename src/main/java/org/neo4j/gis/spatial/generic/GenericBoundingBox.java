@@ -23,6 +23,7 @@ import java.util.Iterator;
 import org.apache.commons.lang.ArrayUtils;
 import org.neo4j.gis.spatial.Constants;
 import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.SpatialDatabaseException;
 import org.neo4j.gis.spatial.SpatialRelationshipTypes;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
@@ -30,16 +31,27 @@ import org.neo4j.graphdb.PropertyContainer;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
 
+/**
+ * Bounding box handling for the R-tree index nodes. Bounding boxes are
+ * double[] in index order: xmin, ymin, xmax, ymax, followed by a (min, max)
+ * pair for every extra dimension configured with setDimensionProperties, such
+ * as elevation or time. Code that only knows about x and y can keep reading
+ * the first four values.
+ */
 public class GenericBoundingBox implements Constants {
 	
 	private double [] currentBoundingBoxParms;
 	private Layer layer;
 	private int minNodeReferences;
 	
+	public GenericBoundingBox(Layer layer, int minNodeReferences) {
+		this.layer = layer;
+		this.minNodeReferences = minNodeReferences;
+	}
+	
 	public GenericBoundingBox(double[] vals)
 	{
-		for (int i=0;i<vals.length;i++)
-			currentBoundingBoxParms[i]=vals[i];
+		currentBoundingBoxParms = vals.clone();
 	}
 	
 	
@@ -50,49 +62,125 @@ public class GenericBoundingBox implements Constants {
 	public GenericBoundingBox()
 	{}
 	
+	public void setMinNodeReferences(int minNodeReferences) {
+		this.minNodeReferences = minNodeReferences;
+	}
+	
+	/**
+	 * @param dimensionProperties
+	 *            the geometry node properties holding the extra dimensions
+	 *            after x and y. Each is either a number or a double[] with
+	 *            the minimum and maximum.
+	 */
+	public void setDimensionProperties(String[] dimensionProperties) {
+		this.dimensionProperties = dimensionProperties.clone();
+	}
+	
+	public String[] getDimensionProperties() {
+		return dimensionProperties.clone();
+	}
+	
+	public int getDimensions() {
+		return 2 + dimensionProperties.length;
+	}
 	
 	/**
-     * Create a bounding box encompassing the two bounding boxes passed in.
+	 * @return the number of values in a bounding box of this index
+	 */
+	public int getBoundingBoxSize() {
+		return 2 * getDimensions();
+	}
+	
+	/**
+	 * @return the number of dimensions of a bounding box
+	 */
+	public static int getDimensions(double[] bbox) {
+		return bbox.length / 2;
+	}
+	
+	/**
+	 * @return the position of the minimum of a dimension in a bounding box,
+	 *         where 0 is x and 1 is y
+	 */
+	public static int getMinIndex(int dimension) {
+		return dimension < 2 ? dimension : 2 * dimension;
+	}
+
+	/**
+	 * @return the position of the maximum of a dimension in a bounding box,
+	 *         where 0 is x and 1 is y
+	 */
+	public static int getMaxIndex(int dimension) {
+		return dimension < 2 ? dimension + 2 : 2 * dimension + 1;
+	}
+	
+	/**
+	 * Create a bounding box in index order from the minimum and maximum of
+	 * every dimension, x and y first.
+	 */
+	public static double[] createBoundingBoxFromRanges(double[] min, double[] max) {
+		double[] bbox = new double[2 * min.length];
+		for (int d = 0; d < min.length; d++) {
+			bbox[getMinIndex(d)] = min[d];
+			bbox[getMaxIndex(d)] = max[d];
+		}
+		return bbox;
+	}
+	
+	
+	/**
+     * Create a new bounding box encompassing the two bounding boxes passed in.
+     * Neither of them is modified.
      */	
 	public double [] createBoundingBox(double[] e, double[] e1) {
-		double[] result = e;
-		expandToInclude(result,e1);
+		return createBoundingBox(e, e1, new double[e.length]);
+	}
+	
+	/**
+	 * Write the bounding box encompassing the two bounding boxes passed in to
+	 * result, which may be one of them.
+	 * 
+	 * @return result
+	 */
+	public static double[] createBoundingBox(double[] e, double[] e1, double[] result) {
+		for (int d = getDimensions(e) - 1; d >= 0; d--) {
+			int min = getMinIndex(d);
+			int max = getMaxIndex(d);
+			result[min] = Math.min(e[min], e1[min]);
+			result[max] = Math.max(e[max], e1[max]);
+		}
 		return result;
 	}
 	
 	
 	/**
-     *  Enlarges this <code>Envelope</code> so that it contains
-     *  the given point. 
-     *  Has no effect if the point is already on or within the envelope.
-     *
-     *@param  x  the value to lower the minimum x to or to raise the maximum x to
-     *@param  y  the value to lower the minimum y to or to raise the maximum y to
+     *  Enlarges the first bounding box so that it contains the second.
+     *  Has no effect if the second is null or already on or within the first.
+     *  
+     *@return    <code>true</code> if the first bounding box has changed
      */
-    public void expandToInclude(double [] originalBbox,double [] otherBbox) {
-        if (otherBbox[1]<otherBbox[0]) {
-          return;
+    public static boolean expandToInclude(double [] originalBbox,double [] otherBbox) {
+        if (isNull(otherBbox)) {
+          return false;
         }
-        if (originalBbox[1]<currentBoundingBoxParms[0]) {
-        	originalBbox[0] = otherBbox[0];
-        	originalBbox[1] = otherBbox[1];
-        	originalBbox[2] = otherBbox[2];
-        	originalBbox[3] = otherBbox[3];
+        if (isNull(originalBbox)) {
+        	System.arraycopy(otherBbox, 0, originalBbox, 0, originalBbox.length);
+        	return true;
         }
-        else {
-          if (otherBbox[0] < originalBbox[0]) {
-        	  originalBbox[0] = otherBbox[0];
-          }
-          if (otherBbox[1] > originalBbox[1]) {
-        	  originalBbox[1] = otherBbox[1];
-          }
-          if (otherBbox[2] < originalBbox[2]) {
-        	  originalBbox[2] = otherBbox[2];
-          }
-          if (otherBbox[3] > originalBbox[3]) {
-        	  originalBbox[3] = otherBbox[3];
-          }
+        boolean changed = false;
+        for (int d = getDimensions(originalBbox) - 1; d >= 0; d--) {
+        	int min = getMinIndex(d);
+        	int max = getMaxIndex(d);
+        	if (otherBbox[min] < originalBbox[min]) {
+        		originalBbox[min] = otherBbox[min];
+        		changed = true;
+        	}
+        	if (otherBbox[max] > originalBbox[max]) {
+        		originalBbox[max] = otherBbox[max];
+        		changed = true;
+        	}
         }
+        return changed;
     }
     
     public int countChildren(Node indexNode, RelationshipType relationshipType) {
@@ -138,47 +226,30 @@ public class GenericBoundingBox implements Constants {
 	}
 
 
-	private boolean setMin(double[] parent, double[] child, int index) {
-		if (parent[index] > child[index]) {
-			parent[index] = child[index];
-			return true;
-		} else {
-			return false;
-		}
-	}
-	
-	private boolean setMax(double[] parent, double[] child, int index) {
-		if (parent[index] < child[index]) {
-			parent[index] = child[index];
-			return true;
-		} else {
-			return false;
-		}
-	}
-	
 	/**
 	 * Fix an IndexNode bounding box after a child has been removed
 	 * @param indexNode
 	 */
 	public void adjustParentBoundingBox(Node indexNode, RelationshipType relationshipType) {
-	    //make a default null bounding box
-		//Envelope bbox = new Envelope();
-		double [] bbox= {0,0,0,0};
+		double[] bbox = null;
 		
 		Iterator<Relationship> iterator = indexNode.getRelationships(relationshipType, Direction.OUTGOING).iterator();
 		while (iterator.hasNext()) {
 			Node childNode = iterator.next().getEndNode();
-			if (bbox == null) 
-				bbox = getLeafNodeBoundingBox(childNode);
-			else
-			{
-				//bbox.expandToInclude(getLeafNodeEnvelope(childNode));
-				Double newX=(Double)childNode.getProperty("x");
-				Double newY=(Double)childNode.getProperty("y");
-				expandToInclude(bbox,getLeafNodeBoundingBox(childNode));
+			double[] childBBox = relationshipType == SpatialRelationshipTypes.RTREE_REFERENCE ? getGeometryNodeBoundingBox(childNode)
+					: (double[]) childNode.getProperty(PROP_BBOX);
+			if (bbox == null) {
+				bbox = childBBox.clone();
+			} else {
+				expandToInclude(bbox, childBBox);
 			}
 		}
-		indexNode.setProperty(PROP_BBOX, new double[] { bbox[0], bbox[2], bbox[1], bbox[3] });
+		
+		if (bbox != null) {
+			indexNode.setProperty(PROP_BBOX, bbox);
+		} else if (indexNode.hasProperty(PROP_BBOX)) {
+			indexNode.removeProperty(PROP_BBOX);
+		}
 	}
 	
 	
@@ -212,11 +283,72 @@ public class GenericBoundingBox implements Constants {
         return new double[]{ bounds[0], bounds[2], bounds[1], bounds[3] };
     }
 	
+	private double[] addDimensions(Node geomNode, double[] bbox) {
+		double[] result = new double[getBoundingBoxSize()];
+		System.arraycopy(bbox, 0, result, 0, 4);
+		for (int i = 0; i < dimensionProperties.length; i++) {
+			Object value = geomNode.getProperty(dimensionProperties[i], null);
+			if (value instanceof Number) {
+				result[getMinIndex(i + 2)] = ((Number) value).doubleValue();
+				result[getMaxIndex(i + 2)] = ((Number) value).doubleValue();
+			} else if (value instanceof double[] && ((double[]) value).length == 2) {
+				result[getMinIndex(i + 2)] = ((double[]) value)[0];
+				result[getMaxIndex(i + 2)] = ((double[]) value)[1];
+			} else {
+				throw new SpatialDatabaseException("Geometry node " + geomNode.getId() + " has no value for the index dimension '"
+						+ dimensionProperties[i] + "'");
+			}
+		}
+		return result;
+	}
+	
+	
+	/**
+	 * Decode the envelope of a geometry node with the layer GeometryEncoder and
+	 * return it in the order used by the index nodes: xmin, ymin, xmax, ymax.
+	 * While an insert of the node is in progress on this thread the bounding
+	 * box decoded at the start of the insert is returned, and it must not be
+	 * modified.
+	 * 
+	 * @see #beginInsert(Node)
+	 */
+	public double[] getGeometryNodeBoundingBox(Node geomNode) {
+		InsertScratch scratch = insertScratch.get();
+		if (scratch.depth > 0 && scratch.nodeIds[scratch.depth - 1] == geomNode.getId()) {
+			return scratch.bboxes[scratch.depth - 1];
+		}
+		double[] bbox = envelopeToBBox(layer.getGeometryEncoder().decodeEnvelope(geomNode));
+		if (dimensionProperties.length > 0) {
+			bbox = addDimensions(geomNode, bbox);
+		}
+		return bbox;
+	}
+	
+	/**
+	 * Decode the bounding box of a geometry node once for a whole insert. The
+	 * choice of subtree at every level, the leaf update and the split of the
+	 * leaf then all reuse it, instead of decoding the geometry again and
+	 * allocating a new array each time. Inserts may be nested, as when entries
+	 * are reinserted, and every call must be matched by a call to endInsert
+	 * on the same thread.
+	 * 
+	 * @return the bounding box of the geometry node
+	 */
+	public double[] beginInsert(Node geomNode) {
+		double[] bbox = getGeometryNodeBoundingBox(geomNode);
+		InsertScratch scratch = insertScratch.get();
+		scratch.push(geomNode.getId(), bbox);
+		return bbox;
+	}
+	
+	public void endInsert() {
+		insertScratch.get().pop();
+	}
 	
 	public boolean addChild(Node parent, RelationshipType type, Node newChild) {
 	    double[] childBBox = null;
 	    if(type == SpatialRelationshipTypes.RTREE_REFERENCE) {
-	        childBBox = envelopeToBBox(this.layer.getGeometryEncoder().decodeEnvelope(newChild));
+	        childBBox = getGeometryNodeBoundingBox(newChild);
 	    } else {
 	        childBBox = (double[]) newChild.getProperty(PROP_BBOX);
 	    }
@@ -232,28 +364,81 @@ public class GenericBoundingBox implements Constants {
 	   *@return    <code>true</code> if this <code>bounding box</code> is uninitialized
 	   *      or is the envelope of the empty geometry.
 	   */
-	  public boolean isNull(double[] curBox) {
-	    return curBox[1] < curBox[0];
+	  public static boolean isNull(double[] curBox) {
+	    return curBox[2] < curBox[0];
 	  }
 	
 	
 	
 	public double getAreaEnlargement(Node indexNode, Node geomRootNode) {
-    	double[] before = getIndexNodeBoundingBox(indexNode);
-    	
-    	double[] after = getIndexNodeBoundingBox(indexNode);
-    	//after.expandToInclude(before);
-    	expandToInclude(after,before);
-    	
-    	return getArea(after) - getArea(before);
+		return getAreaEnlargement(getIndexNodeBoundingBox(indexNode), getGeometryNodeBoundingBox(geomRootNode));
     }
 	
+	/**
+	 * @return how much the area of the first bounding box grows when it is
+	 *         expanded to include the second, computed without creating the
+	 *         expanded bounding box
+	 */
+	public static double getAreaEnlargement(double[] bbox, double[] other) {
+		return getUnionArea(bbox, other) - getArea(bbox);
+	}
+	
+	/**
+	 * @return the area of the bounding box encompassing both bounding boxes
+	 */
+	public static double getUnionArea(double[] bbox, double[] other) {
+		double area = 1.0;
+		for (int d = getDimensions(bbox) - 1; d >= 0; d--) {
+			area *= Math.max(bbox[getMaxIndex(d)], other[getMaxIndex(d)]) - Math.min(bbox[getMinIndex(d)], other[getMinIndex(d)]);
+		}
+		return area;
+	}
+	
+	/**
+	 * @return the area shared by both bounding boxes, 0 if they do not
+	 *         intersect
+	 */
+	public static double getIntersectionArea(double[] bbox, double[] other) {
+		double area = 1.0;
+		for (int d = getDimensions(bbox) - 1; d >= 0; d--) {
+			double extent = Math.min(bbox[getMaxIndex(d)], other[getMaxIndex(d)]) - Math.max(bbox[getMinIndex(d)], other[getMinIndex(d)]);
+			if (extent <= 0) return 0;
+			area *= extent;
+		}
+		return area;
+	}
+	
+	/**
+	 * @return the area of the bounding box, or its volume if it has more than
+	 *         two dimensions
+	 */
+	public static double getArea(double[] bbox) {
+		double area = 1.0;
+		for (int d = getDimensions(bbox) - 1; d >= 0; d--) {
+			area *= Math.abs(bbox[getMaxIndex(d)] - bbox[getMinIndex(d)]);
+		}
+		return area;
+	}
 	
+	/**
+	 * @return true if the first bounding box contains the second
+	 */
+	public static boolean covers(double[] bbox, double[] other) {
+		for (int d = getDimensions(bbox) - 1; d >= 0; d--) {
+			if (other[getMinIndex(d)] < bbox[getMinIndex(d)] || other[getMaxIndex(d)] > bbox[getMaxIndex(d)]) return false;
+		}
+		return true;
+	}
 	
-	public double getArea(double[] bbox) {
-		double width=Math.abs(bbox[1]-bbox[0]);
-		double length=Math.abs(bbox[3]-bbox[2]);
-		return width*length;
+	/**
+	 * @return true if the bounding boxes intersect in every dimension of the
+	 *         first
+	 */
+	public static boolean intersects(double[] bbox, double[] other) {
+		for (int d = getDimensions(bbox) - 1; d >= 0; d--) {
+			if (other[getMaxIndex(d)] < bbox[getMinIndex(d)] || other[getMinIndex(d)] > bbox[getMaxIndex(d)]) return false;
+		}
+		return true;
 	}
 	
 	
@@ -268,16 +453,13 @@ public class GenericBoundingBox implements Constants {
 	 */
 	public boolean adjustParentBoundingBox(Node parent, double[] childBBox) {
 		if (!parent.hasProperty(PROP_BBOX)) {
-			parent.setProperty(PROP_BBOX, new double[] { childBBox[0], childBBox[1], childBBox[2], childBBox[3] });
+			parent.setProperty(PROP_BBOX, childBBox.clone());
 			return true;
 		}
 		
 		double[] parentBBox = (double[]) parent.getProperty(PROP_BBOX);
 		
-		boolean valueChanged = setMin(parentBBox, childBBox, 0);
-		valueChanged = setMin(parentBBox, childBBox, 1) || valueChanged;
-		valueChanged = setMax(parentBBox, childBBox, 2) || valueChanged;
-		valueChanged = setMax(parentBBox, childBBox, 3) || valueChanged;
+		boolean valueChanged = expandToInclude(parentBBox, childBBox);
 		
 		if (valueChanged) {
 			parent.setProperty(PROP_BBOX, parentBBox);
@@ -320,10 +502,53 @@ public class GenericBoundingBox implements Constants {
 	  *      on the boundary of this <code>Envelope</code>.
 	 */
 	 public boolean coversBoundingBox(double [] curBox,double x, double y) {
-	  	if (curBox[1] < curBox[0]) return false;
+	  	if (isNull(curBox)) return false;
 	    return x >= curBox[0] &&
-	        x <= curBox[1] &&
-	        y >= curBox[2] &&
+	        x <= curBox[2] &&
+	        y >= curBox[1] &&
 	        y <= curBox[3];
 	 }
+	 
+	 
+	 // Attributes
+	 
+	 private String[] dimensionProperties = new String[0];
+	 private final ThreadLocal<InsertScratch> insertScratch = new ThreadLocal<InsertScratch>() {
+		 protected InsertScratch initialValue() {
+			 return new InsertScratch();
+		 }
+	 };
+	 
+	 
+	 // Private classes
+	 
+	 /**
+	  * The bounding boxes of the geometry nodes being inserted by one thread,
+	  * one per nested insert.
+	  */
+	 private static class InsertScratch {
+		 
+		 void push(long nodeId, double[] bbox) {
+			 if (depth == nodeIds.length) {
+				 long[] newNodeIds = new long[depth * 2];
+				 double[][] newBBoxes = new double[depth * 2][];
+				 System.arraycopy(nodeIds, 0, newNodeIds, 0, depth);
+				 System.arraycopy(bboxes, 0, newBBoxes, 0, depth);
+				 nodeIds = newNodeIds;
+				 bboxes = newBBoxes;
+			 }
+			 nodeIds[depth] = nodeId;
+			 bboxes[depth] = bbox;
+			 depth++;
+		 }
+		 
+		 void pop() {
+			 depth--;
+			 bboxes[depth] = null;
+		 }
+		 
+		 private long[] nodeIds = new long[4];
+		 private double[][] bboxes = new double[4][];
+		 private int depth = 0;
+	 }
 }
\ No newline at end of file
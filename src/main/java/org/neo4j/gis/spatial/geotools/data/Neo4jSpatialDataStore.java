@@ -61,9 +61,11 @@ import org.geotools.styling.StyleFactoryImpl;
 import org.neo4j.gis.spatial.Constants;
 import org.neo4j.gis.spatial.EditableLayer;
 import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.RTreeIndex;
 import org.neo4j.gis.spatial.Search;
 import org.neo4j.gis.spatial.SpatialDatabaseRecord;
 import org.neo4j.gis.spatial.SpatialDatabaseService;
+import org.neo4j.gis.spatial.SpatialIndexReader;
 import org.neo4j.gis.spatial.query.SearchAll;
 import org.neo4j.gis.spatial.query.SearchIntersect;
 import org.neo4j.gis.spatial.query.SearchIntersectWindow;
@@ -311,6 +313,20 @@ public class Neo4jSpatialDataStore extends AbstractDataStore implements Constant
     	return result;
     }
     
+	/**
+	 * Estimate the number of features of the layer inside the envelope,
+	 * without running the query. Returns -1 if the layer index keeps no
+	 * density histogram.
+	 */
+	public int estimateCount(String typeName, Envelope bbox) {
+		SpatialIndexReader index = spatialDatabase.getLayer(typeName).getIndex();
+		if (index instanceof RTreeIndex) {
+			return (int) Math.round(((RTreeIndex) index).estimateCount(new double[] { bbox.getMinX(), bbox.getMinY(), bbox.getMaxX(), bbox.getMaxY() }));
+		} else {
+			return -1;
+		}
+	}
+    
 	public SpatialDatabaseService getSpatialDatabaseService() {
 		return spatialDatabase;
 	}
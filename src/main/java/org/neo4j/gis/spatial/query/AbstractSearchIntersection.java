@@ -24,23 +24,37 @@ import org.neo4j.graphdb.Node;
 
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
 
 
 /**
+ * Base class of the searches that only match geometries whose envelope
+ * intersects the envelope of the query geometry. The query geometry is
+ * prepared once, and subclasses should test candidates against
+ * getPreparedOther() rather than other.
+ * 
  * @author Davide Savazzi
  */
 public abstract class AbstractSearchIntersection extends AbstractSearch {
 
 	public AbstractSearchIntersection(Geometry other) {
 		this.other = other;
+		this.preparedOther = new PreparedQueryGeometry(other);
 	}
 
-	public boolean needsToVisit(Envelope indexNodeEnvelope) {
-		return indexNodeEnvelope.intersects(other.getEnvelopeInternal());
+	public boolean needsToVisit(double[] indexNodeBoundingBox) {
+		return intersects(indexNodeBoundingBox, other.getEnvelopeInternal());
 	}
 	
+	/**
+	 * The query geometry is prepared separately for every search thread.
+	 */
+	public boolean isParallelSafe() {
+		return true;
+	}
+
 	public final void onIndexReference(Node geomNode) {	
-		double[] geomEnvelope = getEnvelope(geomNode);
+		Envelope geomEnvelope = getJTSEnvelope(geomNode);
 		if (geomEnvelope.intersects(other.getEnvelopeInternal())) {
 			onEnvelopeIntersection(geomNode, geomEnvelope);
 		}
@@ -48,7 +62,31 @@ public abstract class AbstractSearchIntersection extends AbstractSearch {
 	
 	protected abstract void onEnvelopeIntersection(Node geomNode, Envelope geomEnvelope);
 	
+	/**
+	 * @return the query geometry, prepared for the calling thread
+	 */
+	protected PreparedGeometry getPreparedOther() {
+		return preparedOther.getPrepared();
+	}
+	
+	/**
+	 * @return true if the query geometry covers the whole index node
+	 *         bounding box
+	 */
+	protected boolean otherCovers(double[] indexNodeBoundingBox) {
+		return preparedOther.covers(indexNodeBoundingBox);
+	}
+	
+	/**
+	 * @return true if the whole index node bounding box lies in the interior
+	 *         of the query geometry
+	 */
+	protected boolean otherContainsProperly(double[] indexNodeBoundingBox) {
+		return preparedOther.containsProperly(indexNodeBoundingBox);
+	}
+	
 	protected Geometry other;
+	private PreparedQueryGeometry preparedOther;
 
 	public String toString() {
 		return "SearchIntersection[" + other.getEnvelopeInternal() + "]";
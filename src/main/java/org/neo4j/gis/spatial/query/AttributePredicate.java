@@ -0,0 +1,184 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.query;
+
+import java.util.Arrays;
+
+import org.neo4j.gis.spatial.Layer;
+import org.neo4j.graphdb.Node;
+
+
+/**
+ * A test on one attribute of a geometry, for filtering the results of a
+ * SpatialQuery. The attribute is read with GeometryEncoder.getAttribute,
+ * which for most layers is a property of the geometry node, so testing it
+ * costs much less than decoding the geometry or building a feature for a CQL
+ * filter.
+ * 
+ * Numbers are compared by value, so an Integer attribute matches a Long in the
+ * predicate. A geometry without the attribute only matches notEqual.
+ */
+public abstract class AttributePredicate {
+
+	// Constructor
+	
+	protected AttributePredicate(String attribute) {
+		this.attribute = attribute;
+	}
+
+	
+	// Public methods
+	
+	public String getAttribute() {
+		return attribute;
+	}
+	
+	public boolean matches(Layer layer, Node geomNode) {
+		return matches(layer.getGeometryEncoder().getAttribute(geomNode, attribute));
+	}
+	
+	/**
+	 * @param value
+	 *            the value of the attribute, or null if the geometry does not
+	 *            have it
+	 */
+	public abstract boolean matches(Object value);
+	
+	public static AttributePredicate exists(String attribute) {
+		return new AttributePredicate(attribute) {
+			public boolean matches(Object value) {
+				return value != null;
+			}
+			
+			public String toString() {
+				return getAttribute() + " exists";
+			}
+		};
+	}
+	
+	public static AttributePredicate equal(String attribute, final Object expected) {
+		return new AttributePredicate(attribute) {
+			public boolean matches(Object value) {
+				return value != null && equal(value, expected);
+			}
+			
+			public String toString() {
+				return getAttribute() + " = " + expected;
+			}
+		};
+	}
+	
+	public static AttributePredicate notEqual(String attribute, final Object expected) {
+		return new AttributePredicate(attribute) {
+			public boolean matches(Object value) {
+				return value == null || !equal(value, expected);
+			}
+			
+			public String toString() {
+				return getAttribute() + " <> " + expected;
+			}
+		};
+	}
+	
+	public static AttributePredicate lessThan(String attribute, final Object bound) {
+		return new AttributePredicate(attribute) {
+			public boolean matches(Object value) {
+				return value != null && compare(value, bound) < 0;
+			}
+			
+			public String toString() {
+				return getAttribute() + " < " + bound;
+			}
+		};
+	}
+	
+	public static AttributePredicate greaterThan(String attribute, final Object bound) {
+		return new AttributePredicate(attribute) {
+			public boolean matches(Object value) {
+				return value != null && compare(value, bound) > 0;
+			}
+			
+			public String toString() {
+				return getAttribute() + " > " + bound;
+			}
+		};
+	}
+	
+	/**
+	 * @return a predicate matching values from min to max, both included
+	 */
+	public static AttributePredicate between(String attribute, final Object min, final Object max) {
+		return new AttributePredicate(attribute) {
+			public boolean matches(Object value) {
+				return value != null && compare(value, min) >= 0 && compare(value, max) <= 0;
+			}
+			
+			public String toString() {
+				return getAttribute() + " between " + min + " and " + max;
+			}
+		};
+	}
+	
+	public static AttributePredicate in(String attribute, final Object... values) {
+		return new AttributePredicate(attribute) {
+			public boolean matches(Object value) {
+				if (value == null) return false;
+				for (Object expected : values) {
+					if (equal(value, expected)) return true;
+				}
+				return false;
+			}
+			
+			public String toString() {
+				return getAttribute() + " in " + Arrays.toString(values);
+			}
+		};
+	}
+	
+	
+	// Private methods
+	
+	static boolean equal(Object value, Object other) {
+		if (value instanceof Number && other instanceof Number) {
+			return ((Number) value).doubleValue() == ((Number) other).doubleValue();
+		}
+		return value.equals(other);
+	}
+	
+	/**
+	 * Order two attribute values: numbers by value, values of the same
+	 * Comparable class by compareTo, and anything else by its string.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static int compare(Object value, Object other) {
+		if (value instanceof Number && other instanceof Number) {
+			return Double.compare(((Number) value).doubleValue(), ((Number) other).doubleValue());
+		} else if (value instanceof Comparable && value.getClass().equals(other.getClass())) {
+			return ((Comparable) value).compareTo(other);
+		} else {
+			return value.toString().compareTo(other.toString());
+		}
+	}
+	
+	
+	// Attributes
+	
+	private String attribute;
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.query;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+
+
+/**
+ * The query geometry of a search, prepared once so that testing it against
+ * every candidate geometry does not repeat the work of indexing its segments.
+ * This makes a large difference for query geometries with many vertices,
+ * such as administrative boundaries.
+ * 
+ * A PreparedGeometry builds its indexes lazily and is not safe to share
+ * between threads, so every thread of a parallel search prepares its own.
+ */
+class PreparedQueryGeometry {
+
+	// Constructor
+	
+	PreparedQueryGeometry(Geometry geometry) {
+		this.geometry = geometry;
+	}
+
+	
+	// Public methods
+	
+	public Geometry getGeometry() {
+		return geometry;
+	}
+	
+	public Envelope getEnvelope() {
+		return geometry.getEnvelopeInternal();
+	}
+	
+	/**
+	 * @return true if the query geometry covers the whole index node bounding
+	 *         box, in index order (xmin, ymin, xmax, ymax), so that every
+	 *         geometry below the index node intersects it. Only an areal
+	 *         geometry can cover a box, so this is always false for points
+	 *         and lines.
+	 */
+	public boolean covers(double[] indexNodeBoundingBox) {
+		if (geometry.getDimension() < 2) return false;
+		
+		Envelope box = new Envelope(indexNodeBoundingBox[0], indexNodeBoundingBox[2], indexNodeBoundingBox[1], indexNodeBoundingBox[3]);
+		return getEnvelope().covers(box) && getPrepared().covers(geometry.getFactory().toGeometry(box));
+	}
+	
+	/**
+	 * @return true if the whole index node bounding box lies in the interior
+	 *         of the query geometry, which again needs an areal geometry
+	 */
+	public boolean containsProperly(double[] indexNodeBoundingBox) {
+		if (geometry.getDimension() < 2) return false;
+		
+		Envelope box = new Envelope(indexNodeBoundingBox[0], indexNodeBoundingBox[2], indexNodeBoundingBox[1], indexNodeBoundingBox[3]);
+		return getEnvelope().contains(box) && getPrepared().containsProperly(geometry.getFactory().toGeometry(box));
+	}
+	
+	public PreparedGeometry getPrepared() {
+		PreparedGeometry result = prepared.get();
+		if (result == null) {
+			result = PreparedGeometryFactory.prepare(geometry);
+			prepared.set(result);
+		}
+		return result;
+	}
+
+	
+	// Attributes
+	
+	private Geometry geometry;
+	private ThreadLocal<PreparedGeometry> prepared = new ThreadLocal<PreparedGeometry>();
+}
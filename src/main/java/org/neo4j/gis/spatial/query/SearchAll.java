@@ -30,6 +30,10 @@ import com.vividsolutions.jts.geom.Envelope;
  */
 public class SearchAll extends AbstractSearch {
 
+	public boolean isParallelSafe() {
+		return true;
+	}
+
 	public void onIndexReference(Node geomNode) {
 		add(geomNode);
 	}
@@ -38,6 +38,9 @@ import com.vividsolutions.jts.geom.Geometry;
  * constructor that takes a buffer and creates a search window by appliying the
  * buffer to the input geometry.
  * 
+ * For a layer indexed with an RTreeIndex, RTreeIndex.findNearest(Coordinate,
+ * int) finds the closest objects without needing a search window.
+ * 
  * @author Davide Savazzi
  * @author Craig Taverner
  */
@@ -98,12 +101,19 @@ public class SearchClosest extends AbstractSearch {
 		this.searchWindow = searchWindow;
 	}
 
-	public boolean needsToVisit(Envelope indexNodeEnvelope) {
-		return searchWindow == null || indexNodeEnvelope.intersects(searchWindow);
+	/**
+	 * The closest distance found so far is shared between geometries.
+	 */
+	public boolean isParallelSafe() {
+		return false;
+	}
+
+	public boolean needsToVisit(double[] indexNodeBoundingBox) {
+		return searchWindow == null || intersects(indexNodeBoundingBox, searchWindow);
 	}
 
 	public final void onIndexReference(Node geomNode) {
-		Envelope geomEnvelope = getEnvelope(geomNode);
+		Envelope geomEnvelope = getJTSEnvelope(geomNode);
 		if (searchWindow == null || geomEnvelope.intersects(searchWindow)) {
 			onEnvelopeIntersection(geomNode, geomEnvelope);
 		}
@@ -41,7 +41,7 @@ public class SearchContain extends AbstractSearchIntersection {
 		// and the interiors of the two geometries have at least one point in common		
 	    if (geomEnvelope.contains(other.getEnvelopeInternal())) {
 	    	Geometry geometry = decode(geomNode);
-	    	if (geometry.contains(other)) add(geomNode, geometry);
+	    	if (getPreparedOther().within(geometry)) add(geomNode, geometry);
 	    }
 	}
 
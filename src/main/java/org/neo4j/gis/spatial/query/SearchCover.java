@@ -40,7 +40,7 @@ public class SearchCover extends AbstractSearchIntersection {
 		// check if every point of the other geometry is a point of this geometry
 	    if (geomEnvelope.covers(other.getEnvelopeInternal())) {
 	    	Geometry geometry = decode(geomNode);
-	    	if (geometry.covers(other)) add(geomNode, geometry);
+	    	if (getPreparedOther().coveredBy(geometry)) add(geomNode, geometry);
 	    }
 	}
 }
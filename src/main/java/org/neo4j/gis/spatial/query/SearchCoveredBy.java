@@ -35,12 +35,16 @@ public class SearchCoveredBy extends AbstractSearchIntersection {
 	public SearchCoveredBy(Geometry other) {
 		super(other);
 	}
+	
+	public boolean coversIndexNode(double[] indexNodeBoundingBox) {
+		return otherCovers(indexNodeBoundingBox);
+	}
 
 	protected void onEnvelopeIntersection(Node geomNode, Envelope geomEnvelope) {
 		// check if every point of this geometry is a point of the other geometry
 	    if (other.getEnvelopeInternal().covers(geomEnvelope)) {
 	    	Geometry geometry = decode(geomNode);
-			if (geometry.coveredBy(other)) add(geomNode, geometry);
+			if (getPreparedOther().covers(geometry)) add(geomNode, geometry);
 	    }		
 	}
 
@@ -38,13 +38,7 @@ public class SearchCross extends AbstractSearchIntersection {
 
 	protected void onEnvelopeIntersection(Node geomNode, Envelope geomEnvelope) {
 		Geometry geometry = decode(geomNode);
-		if (geometry.crosses(other)) add(geomNode, geometry);
-	}
-
-	@Override
-	public boolean needsToVisit(double[] indexNodeEnvelope) {
-		// TODO Auto-generated method stub
-		return true;
+		if (getPreparedOther().crosses(geometry)) add(geomNode, geometry);
 	}
 
 }
@@ -34,22 +34,38 @@ import com.vividsolutions.jts.geom.Geometry;
 public class SearchDisjoint extends AbstractSearch {
 
 	public SearchDisjoint(Geometry other) {
-		this.other = other;
+		this.other = new PreparedQueryGeometry(other);
 	}	
 	
-	public boolean needsToVisit(Envelope indexNodeEnvelope) {
+	/**
+	 * Geometries can be disjoint from the query anywhere, except inside an
+	 * areal query geometry.
+	 */
+	public boolean needsToVisit(double[] indexNodeBoundingBox) {
+		return !other.covers(indexNodeBoundingBox);
+	}
+	
+	/**
+	 * Every geometry inside an index node outside the query envelope is
+	 * disjoint.
+	 */
+	public boolean coversIndexNode(double[] indexNodeBoundingBox) {
+		return !intersects(indexNodeBoundingBox, other.getEnvelope());
+	}
+
+	public boolean isParallelSafe() {
 		return true;
 	}
 
 	public void onIndexReference(Node geomNode) {
-		Envelope geomEnvelope = getEnvelope(geomNode);
-		if (!geomEnvelope.intersects(other.getEnvelopeInternal())) {
+		Envelope geomEnvelope = getJTSEnvelope(geomNode);
+		if (!geomEnvelope.intersects(other.getEnvelope())) {
 			add(geomNode);
 		} else {
 			Geometry geometry = decode(geomNode);
-			if (geometry.disjoint(other)) add(geomNode, geometry);
+			if (other.getPrepared().disjoint(geometry)) add(geomNode, geometry);
 		}
 	}
 
-	private Geometry other;
+	private PreparedQueryGeometry other;
 }
\ No newline at end of file
@@ -22,7 +22,6 @@ package org.neo4j.gis.spatial.query;
 import org.neo4j.gis.spatial.AbstractSearch;
 import org.neo4j.graphdb.Node;
 
-import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 
 
@@ -39,19 +38,121 @@ public class SearchInRelation extends AbstractSearch {
 	 * @param intersectionPattern a 9-character string (for more information on the DE-9IM, see the OpenGIS Simple Features Specification)
 	 */
 	public SearchInRelation(Geometry other, String intersectionPattern) {
-		this.other = other;
+		this.other = new PreparedQueryGeometry(other);
 		this.intersectionPattern = intersectionPattern;
+		if (intersectionPattern != null && intersectionPattern.length() == 9) {
+			this.requiresIntersection = !allow(intersectionPattern, DISJOINT_POSITIONS, 'F');
+			this.requiresDisjoint = require(intersectionPattern, DISJOINT_POSITIONS, 'F');
+			this.acceptsDisjoint = acceptsDisjoint(intersectionPattern, other);
+		}
 	}
 
-	public boolean needsToVisit(Envelope indexNodeEnvelope) {
+	/**
+	 * A pattern that needs the geometries to meet only visits index nodes
+	 * intersecting the query envelope, and a pattern that needs them to be
+	 * disjoint skips index nodes covered by an areal query geometry.
+	 */
+	public boolean needsToVisit(double[] indexNodeBoundingBox) {
+		if (requiresIntersection) return intersects(indexNodeBoundingBox, other.getEnvelope());
+		if (requiresDisjoint) return !other.covers(indexNodeBoundingBox);
 		return true;
 	}
 	
+	/**
+	 * A pattern that every disjoint geometry matches takes the index nodes
+	 * outside the query envelope whole.
+	 */
+	public boolean coversIndexNode(double[] indexNodeBoundingBox) {
+		return acceptsDisjoint && !intersects(indexNodeBoundingBox, other.getEnvelope());
+	}
+	
+	public boolean isParallelSafe() {
+		return true;
+	}
+
 	public void onIndexReference(Node geomNode) {
+		if (requiresIntersection || acceptsDisjoint) {
+			if (!getJTSEnvelope(geomNode).intersects(other.getEnvelope())) {
+				// disjoint, which is decided without decoding the geometry
+				if (acceptsDisjoint) add(geomNode);
+				return;
+			}
+		}
+		
 		Geometry geometry = decode(geomNode);
-		if (geometry.relate(other, intersectionPattern)) add(geomNode, geometry);
+		// relate can not be prepared, but a prepared intersects rejects most
+		// candidates cheaply when the pattern needs the geometries to meet
+		if (requiresIntersection && !other.getPrepared().intersects(geometry)) return;
+		if (geometry.relate(other.getGeometry(), intersectionPattern)) add(geomNode, geometry);
 	}
 
-	private Geometry other;
+	
+	// Private methods
+	
+	/**
+	 * @return true if every geometry disjoint from the query geometry
+	 *         matches the pattern. The matrix of disjoint geometries is
+	 *         FF?FF???2, where the cells on the row of the exterior of the
+	 *         found geometry only depend on the query geometry, but the other
+	 *         two depend on the found geometry, so they must be '*'.
+	 */
+	private static boolean acceptsDisjoint(String intersectionPattern, Geometry other) {
+		return allow(intersectionPattern, DISJOINT_POSITIONS, 'F') && require(intersectionPattern, new int[] { 2, 5 }, '*')
+				&& matches(other.getDimension(), intersectionPattern.charAt(6))
+				&& matches(other.getBoundaryDimension(), intersectionPattern.charAt(7)) && matches(2, intersectionPattern.charAt(8));
+	}
+	
+	/**
+	 * @return true if every position of the pattern is the symbol or '*'
+	 */
+	private static boolean allow(String intersectionPattern, int[] positions, char symbol) {
+		for (int position : positions) {
+			char required = Character.toUpperCase(intersectionPattern.charAt(position));
+			if (required != symbol && required != '*') return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @return true if every position of the pattern is the symbol
+	 */
+	private static boolean require(String intersectionPattern, int[] positions, char symbol) {
+		for (int position : positions) {
+			if (Character.toUpperCase(intersectionPattern.charAt(position)) != symbol) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @param dimension
+	 *            the dimension of an intersection, -1 if it is empty
+	 */
+	private static boolean matches(int dimension, char required) {
+		switch (Character.toUpperCase(required)) {
+		case '*':
+			return true;
+		case 'T':
+			return dimension >= 0;
+		case 'F':
+			return dimension < 0;
+		default:
+			return dimension == required - '0';
+		}
+	}
+	
+	
+	// Attributes
+	
+	/**
+	 * Interior / interior, interior / boundary, boundary / interior and
+	 * boundary / boundary, in the row order of the DE-9IM: the cells that
+	 * are empty exactly when the geometries are disjoint.
+	 */
+	private static final int[] DISJOINT_POSITIONS = { 0, 1, 3, 4 };
+	
+	private PreparedQueryGeometry other;
 	private String intersectionPattern;
+	private boolean requiresIntersection;
+	private boolean requiresDisjoint;
+	private boolean acceptsDisjoint;
 }
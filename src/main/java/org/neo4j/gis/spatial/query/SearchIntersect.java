@@ -35,10 +35,18 @@ public class SearchIntersect extends AbstractSearchIntersection {
 	public SearchIntersect(Geometry other) {
 		super(other);
 	}
+	
+	/**
+	 * Every geometry inside an index node an areal query geometry covers
+	 * intersects it.
+	 */
+	public boolean coversIndexNode(double[] indexNodeBoundingBox) {
+		return otherCovers(indexNodeBoundingBox);
+	}
 
 	protected void onEnvelopeIntersection(Node geomNode, Envelope geomEnvelope) {
 		Geometry geometry = decode(geomNode);
-		if (geometry.intersects(other)) {
+		if (getPreparedOther().intersects(geometry)) {
 			add(geomNode, geometry);
 		}
 	}
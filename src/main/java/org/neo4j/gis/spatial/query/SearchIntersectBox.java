@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.query;
+
+import java.util.Arrays;
+
+import org.neo4j.gis.spatial.AbstractSearch;
+import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.RTreeIndex;
+import org.neo4j.gis.spatial.SpatialDatabaseException;
+import org.neo4j.gis.spatial.generic.GenericBoundingBox;
+import org.neo4j.graphdb.Node;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+
+/**
+ * Find geometries intersecting a range in every dimension of the layer index:
+ * x and y, and any extra dimensions such as elevation or time that were set
+ * with RTreeIndex.setDimensionProperties. The index is pruned on all of them.
+ */
+public class SearchIntersectBox extends AbstractSearch {
+
+	/**
+	 * @param min
+	 *            the minimum of every dimension, x and y first, then the
+	 *            extra dimensions in the order they were configured
+	 * @param max
+	 *            the maximum of every dimension, in the same order
+	 */
+	public SearchIntersectBox(double[] min, double[] max) {
+		if (min.length != max.length || min.length < 2) {
+			throw new IllegalArgumentException("Expected the same number of minimums and maximums, and at least x and y");
+		}
+		this.box = GenericBoundingBox.createBoundingBoxFromRanges(min, max);
+		this.window = new Envelope(min[0], max[0], min[1], max[1]);
+	}
+	
+	public void setLayer(Layer layer) {
+		super.setLayer(layer);
+		this.windowGeom = layer.getGeometryFactory().toGeometry(window);
+		if (GenericBoundingBox.getDimensions(box) > 2) {
+			if (!(layer.getIndex() instanceof RTreeIndex) || ((RTreeIndex) layer.getIndex()).getDimensions() != GenericBoundingBox.getDimensions(box)) {
+				throw new SpatialDatabaseException("The index of layer '" + layer.getName() + "' does not have "
+						+ GenericBoundingBox.getDimensions(box) + " dimensions");
+			}
+			this.index = (RTreeIndex) layer.getIndex();
+		}
+	}
+	
+	public boolean needsToVisit(double[] indexNodeBoundingBox) {
+		return GenericBoundingBox.intersects(box, indexNodeBoundingBox);
+	}
+	
+	/**
+	 * Every geometry inside an index node the box covers in every dimension
+	 * intersects it.
+	 */
+	public boolean coversIndexNode(double[] indexNodeBoundingBox) {
+		return GenericBoundingBox.covers(box, indexNodeBoundingBox);
+	}
+	
+	public boolean isParallelSafe() {
+		return true;
+	}
+
+	public final void onIndexReference(Node geomNode) {
+		if (index != null && !GenericBoundingBox.intersects(box, index.getGeometryNodeBoundingBox(geomNode))) {
+			return;
+		}
+		
+		Envelope geomEnvelope = getJTSEnvelope(geomNode);
+		if (window.covers(geomEnvelope)) {
+			add(geomNode);
+		} else if (window.intersects(geomEnvelope)) {
+			Geometry geometry = decode(geomNode);
+			if (geometry.intersects(windowGeom)) {
+				add(geomNode, geometry);
+			}
+		}
+	}
+	
+	public String toString() {
+		return "SearchIntersectBox[" + Arrays.toString(box) + "]";
+	}
+	
+	
+	// Attributes
+	
+	private double[] box;
+	private Envelope window;
+	private Geometry windowGeom;
+	private RTreeIndex index;
+}
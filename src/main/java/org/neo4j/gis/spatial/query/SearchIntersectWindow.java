@@ -43,12 +43,23 @@ public class SearchIntersectWindow extends AbstractSearch {
 		this.windowGeom = layer.getGeometryFactory().toGeometry(window);		
 	}
 	
-	public boolean needsToVisit(Envelope indexNodeEnvelope) {
-		return indexNodeEnvelope.intersects(window);
+	public boolean needsToVisit(double[] indexNodeBoundingBox) {
+		return intersects(indexNodeBoundingBox, window);
+	}
+	
+	/**
+	 * Every geometry inside an index node the window covers intersects it.
+	 */
+	public boolean coversIndexNode(double[] indexNodeBoundingBox) {
+		return covers(window, indexNodeBoundingBox);
 	}
 	
+	public boolean isParallelSafe() {
+		return true;
+	}
+
 	public final void onIndexReference(Node geomNode) {	
-		Envelope geomEnvelope = getEnvelope(geomNode);
+		Envelope geomEnvelope = getJTSEnvelope(geomNode);
 		
 		if (window.covers(geomEnvelope)) {
 			add(geomNode);
@@ -65,9 +76,4 @@ public class SearchIntersectWindow extends AbstractSearch {
 
 	private Envelope window;
 	private Geometry windowGeom;
-	@Override
-	public boolean needsToVisit(double[] indexNodeBoundingBox) {
-		// TODO Auto-generated method stub
-		return false;
-	}
 }
\ No newline at end of file
@@ -23,7 +23,6 @@ package org.neo4j.gis.spatial.query;
 import org.neo4j.gis.spatial.AbstractSearch;
 import org.neo4j.graphdb.Node;
 
-import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 
 
@@ -32,7 +31,11 @@ import com.vividsolutions.jts.geom.Geometry;
  */
 public class SearchInvalid extends AbstractSearch {
 	
-	public boolean needsToVisit(Envelope indexNodeEnvelope) {
+	public boolean needsToVisit(double[] indexNodeBoundingBox) {
+		return true;
+	}
+
+	public boolean isParallelSafe() {
 		return true;
 	}
 
@@ -43,7 +43,7 @@ public class SearchOverlap extends AbstractSearchIntersection {
 		// the same dimension as the geometries themselves
 		
 		Geometry geometry = decode(geomNode);
-		if (geometry.overlaps(other)) add(geomNode, geometry);
+		if (getPreparedOther().overlaps(geometry)) add(geomNode, geometry);
 	}
 
 }
@@ -61,8 +61,8 @@ public class SearchPointsWithinOrthodromicDistance extends AbstractSearch {
 		this.saveDistanceOnGeometry = saveDistanceOnGeometry;
 	}
 
-	public boolean needsToVisit(Envelope indexNodeEnvelope) {
-		return indexNodeEnvelope.intersects(bbox);
+	public boolean needsToVisit(double[] indexNodeBoundingBox) {
+		return intersects(indexNodeBoundingBox, bbox);
 	}
 
 	public void onIndexReference(Node geomNode) {
@@ -82,6 +82,14 @@ public class SearchPointsWithinOrthodromicDistance extends AbstractSearch {
 		}
 	}
 
+	/**
+	 * Saving the distance writes to the geometry nodes, which needs the
+	 * transaction of the calling thread.
+	 */
+	public boolean isParallelSafe() {
+		return !saveDistanceOnGeometry;
+	}
+
 	public static double calculateDistance(Coordinate reference, Coordinate point) {
 		double distanceInKm = Math.acos(Math.sin(Math.toRadians(reference.y)) * Math.sin(Math.toRadians(point.y))
 				+ Math.cos(Math.toRadians(reference.y)) * Math.cos(Math.toRadians(point.y))
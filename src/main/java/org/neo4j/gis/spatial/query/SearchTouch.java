@@ -39,7 +39,7 @@ public class SearchTouch extends AbstractSearchIntersection {
 	protected void onEnvelopeIntersection(Node geomNode, Envelope geomEnvelope) {
 		Geometry geometry = decode(geomNode);
 		// if the geometries have at least one point in common, but their interiors do not intersect
-		if (geometry.touches(other)) add(geomNode, geometry);
+		if (getPreparedOther().touches(geometry)) add(geomNode, geometry);
 	}
 
 }
@@ -35,14 +35,23 @@ public class SearchWithin extends AbstractSearchIntersection {
 	public SearchWithin(Geometry other) {
 		super(other);
 	}
+	
+	/**
+	 * A geometry is within the query geometry if it is covered by it and
+	 * their interiors meet, which holds for every geometry inside an index
+	 * node that lies in the interior of the query geometry.
+	 */
+	public boolean coversIndexNode(double[] indexNodeBoundingBox) {
+		return otherContainsProperly(indexNodeBoundingBox);
+	}
 
 	protected void onEnvelopeIntersection(Node geomNode, Envelope geomEnvelope) {
 		// check if every point of this geometry is a point of the other geometry,
 		// and the interiors of the two geometries have at least one point in common
 
-	    if (other.getEnvelopeInternal().contains(getEnvelope(geomNode))) {
+	    if (other.getEnvelopeInternal().contains(geomEnvelope)) {
 			Geometry geometry = decode(geomNode);
-			if (geometry.within(other)) add(geomNode, geometry);
+			if (getPreparedOther().contains(geometry)) add(geomNode, geometry);
 	    }
 	}
 
@@ -41,12 +41,16 @@ public class SearchWithinDistance extends AbstractSearch {
 		bbox.expandBy(distance);
 	}
 
-	public boolean needsToVisit(Envelope indexNodeEnvelope) {
-		return indexNodeEnvelope.intersects(bbox);
+	public boolean needsToVisit(double[] indexNodeBoundingBox) {
+		return intersects(indexNodeBoundingBox, bbox);
 	}
 	
+	public boolean isParallelSafe() {
+		return true;
+	}
+
 	public void onIndexReference(Node geomNode) {
-	    double bboxDistance = getEnvelope(geomNode).distance(bbox);
+	    double bboxDistance = getJTSEnvelope(geomNode).distance(bbox);
 	    if (bboxDistance <= distance) {
 	    	Geometry geometry = decode(geomNode);
 	    	if (DistanceOp.isWithinDistance(geometry, point, distance)) add(geomNode, geometry);
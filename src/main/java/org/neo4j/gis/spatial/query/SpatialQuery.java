@@ -0,0 +1,364 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.neo4j.gis.spatial.AbstractSearch;
+import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.Search;
+import org.neo4j.gis.spatial.SpatialDatabaseRecord;
+import org.neo4j.gis.spatial.SpatialIndexCoveringVisitor;
+import org.neo4j.graphdb.Node;
+
+
+/**
+ * A spatial search combined with attribute predicates, a sort order, a limit
+ * and a projection of attributes, run in one pass over the layer index:
+ * 
+ * <pre>
+ * List&lt;SpatialDatabaseRecord&gt; results = new SpatialQuery(new SearchIntersectWindow(window))
+ * 		.where(AttributePredicate.equal(&quot;highway&quot;, &quot;residential&quot;))
+ * 		.orderBy(&quot;name&quot;, true).limit(10).select(&quot;name&quot;).execute(layer);
+ * </pre>
+ * 
+ * The spatial search prunes the index as usual, and every candidate it is
+ * given is first tested against the attribute predicates, so geometries with
+ * the wrong attributes are never decoded. The predicates are tested in the
+ * order that rejects candidates soonest, estimated from a sample of the
+ * candidates of the spatial search, see plan(Layer).
+ * 
+ * The search is run through SpatialIndexReader.search, so like there it must
+ * decide on each geometry independently. Without a sort order the index walk
+ * stops as soon as the limit is reached, with one only the best records up to
+ * the limit are kept while walking.
+ */
+public class SpatialQuery {
+
+	// Constructor
+	
+	public SpatialQuery(Search search) {
+		this.search = search;
+	}
+
+	
+	// Public methods
+	
+	/**
+	 * Only return geometries matching the predicate, as well as all
+	 * predicates added before.
+	 */
+	public SpatialQuery where(AttributePredicate predicate) {
+		predicates.add(predicate);
+		plans.clear();
+		return this;
+	}
+	
+	/**
+	 * Sort the results by the value of the attribute. Geometries without the
+	 * attribute come last.
+	 */
+	public SpatialQuery orderBy(String attribute, boolean ascending) {
+		this.orderBy = attribute;
+		this.ascending = ascending;
+		return this;
+	}
+	
+	/**
+	 * @param limit
+	 *            the maximum number of records to return, or a negative
+	 *            value for no limit
+	 */
+	public SpatialQuery limit(int limit) {
+		this.limit = limit;
+		return this;
+	}
+	
+	/**
+	 * Read the attributes into the returned records, which then only have
+	 * those attributes. Without a projection the records have the extra
+	 * properties of the layer, read when they are asked for.
+	 */
+	public SpatialQuery select(String... attributes) {
+		this.projection = attributes;
+		return this;
+	}
+	
+	/**
+	 * Order the attribute predicates by the fraction of a sample of the
+	 * candidates they reject, most first. Every predicate costs about one
+	 * attribute read, so this tests the fewest attributes per candidate. The
+	 * sample is the first candidates the spatial search lets through from
+	 * the index, which are the geometries the predicates are tested on
+	 * during execute. The plan is kept for each layer, so the sample is only
+	 * taken the first time the query runs on a layer.
+	 * 
+	 * @return the attribute predicates in the order they are tested
+	 */
+	public List<AttributePredicate> plan(Layer layer) {
+		Long layerNodeId = layer.getLayerNode().getId();
+		List<AttributePredicate> planned = plans.get(layerNodeId);
+		if (planned == null) {
+			planned = samplePlan(layer);
+			plans.put(layerNodeId, planned);
+		}
+		return new ArrayList<AttributePredicate>(planned);
+	}
+	
+	public List<SpatialDatabaseRecord> execute(Layer layer) {
+		PlannedSearch planned = new PlannedSearch(layer, search, plan(layer));
+		List<SpatialDatabaseRecord> results;
+		if (orderBy == null) {
+			results = new ArrayList<SpatialDatabaseRecord>();
+			Iterator<SpatialDatabaseRecord> records = layer.getIndex().search(planned, limit);
+			while (records.hasNext()) {
+				results.add(records.next());
+			}
+		} else {
+			results = executeOrdered(layer, planned);
+		}
+		
+		if (projection != null) {
+			for (int i = 0; i < results.size(); i++) {
+				results.set(i, new ProjectedRecord(layer, results.get(i), projection));
+			}
+		}
+		return results;
+	}
+	
+	public String toString() {
+		return "SpatialQuery[" + search + " where " + predicates + (orderBy == null ? "" : " order by " + orderBy)
+				+ (limit < 0 ? "" : " limit " + limit) + "]";
+	}
+	
+	
+	// Private methods
+	
+	private List<AttributePredicate> samplePlan(Layer layer) {
+		List<AttributePredicate> planned = new ArrayList<AttributePredicate>(predicates);
+		if (planned.size() < 2) return planned;
+		
+		final Map<AttributePredicate, Integer> matches = new HashMap<AttributePredicate, Integer>();
+		for (AttributePredicate predicate : planned) {
+			matches.put(predicate, 0);
+		}
+		Iterator<SpatialDatabaseRecord> sample = layer.getIndex().search(new CandidateSample(search), PLANNING_SAMPLE_SIZE);
+		while (sample.hasNext()) {
+			Node geomNode = sample.next().getGeomNode();
+			for (AttributePredicate predicate : planned) {
+				if (predicate.matches(layer, geomNode)) matches.put(predicate, matches.get(predicate) + 1);
+			}
+		}
+		
+		// a stable sort, so predicates that are equally selective keep the order they were added in
+		Collections.sort(planned, new Comparator<AttributePredicate>() {
+			public int compare(AttributePredicate p1, AttributePredicate p2) {
+				return matches.get(p1).compareTo(matches.get(p2));
+			}
+		});
+		return planned;
+	}
+	
+	private List<SpatialDatabaseRecord> executeOrdered(Layer layer, Search planned) {
+		// the queue head is the worst record kept, so it is the one dropped when the queue is full
+		Comparator<SortEntry> order = new SortEntryComparator(ascending);
+		PriorityQueue<SortEntry> best = new PriorityQueue<SortEntry>(limit > 0 ? limit + 1 : 11, Collections.reverseOrder(order));
+		
+		if (limit != 0) {
+			Iterator<SpatialDatabaseRecord> records = layer.getIndex().search(planned, -1);
+			while (records.hasNext()) {
+				SpatialDatabaseRecord record = records.next();
+				best.add(new SortEntry(record, layer.getGeometryEncoder().getAttribute(record.getGeomNode(), orderBy)));
+				if (limit > 0 && best.size() > limit) best.poll();
+			}
+		}
+		
+		List<SortEntry> entries = new ArrayList<SortEntry>(best);
+		Collections.sort(entries, order);
+		List<SpatialDatabaseRecord> results = new ArrayList<SpatialDatabaseRecord>(entries.size());
+		for (SortEntry entry : entries) {
+			results.add(entry.record);
+		}
+		return results;
+	}
+	
+	
+	// Attributes
+	
+	/**
+	 * The number of candidates the attribute predicates are tested on to
+	 * decide their order.
+	 */
+	private static final int PLANNING_SAMPLE_SIZE = 100;
+	
+	private Search search;
+	private List<AttributePredicate> predicates = new ArrayList<AttributePredicate>();
+	private String orderBy;
+	private boolean ascending = true;
+	private int limit = -1;
+	private String[] projection;
+	
+	/**
+	 * The planned predicate order by layer node id.
+	 */
+	private Map<Long, List<AttributePredicate>> plans = new HashMap<Long, List<AttributePredicate>>();
+	
+	
+	// Private classes
+	
+	/**
+	 * Passes only the candidates matching every attribute predicate on to
+	 * the spatial search, covered ones included.
+	 */
+	private static class PlannedSearch implements Search, SpatialIndexCoveringVisitor {
+		
+		PlannedSearch(Layer layer, Search search, List<AttributePredicate> predicates) {
+			this.layer = layer;
+			this.search = search;
+			this.predicates = predicates.toArray(new AttributePredicate[predicates.size()]);
+		}
+		
+		public void setLayer(Layer layer) {
+			search.setLayer(layer);
+		}
+		
+		public List<SpatialDatabaseRecord> getResults() {
+			return search.getResults();
+		}
+		
+		public boolean needsToVisit(double[] indexNodeBoundingBox) {
+			return search.needsToVisit(indexNodeBoundingBox);
+		}
+		
+		public boolean coversIndexNode(double[] indexNodeBoundingBox) {
+			return search instanceof SpatialIndexCoveringVisitor && ((SpatialIndexCoveringVisitor) search).coversIndexNode(indexNodeBoundingBox);
+		}
+		
+		public void onIndexReference(Node geomNode) {
+			if (matches(geomNode)) search.onIndexReference(geomNode);
+		}
+		
+		public void onCoveredIndexReference(Node geomNode) {
+			if (matches(geomNode)) ((SpatialIndexCoveringVisitor) search).onCoveredIndexReference(geomNode);
+		}
+		
+		private boolean matches(Node geomNode) {
+			for (AttributePredicate predicate : predicates) {
+				if (!predicate.matches(layer, geomNode)) return false;
+			}
+			return true;
+		}
+		
+		private Layer layer;
+		private Search search;
+		private AttributePredicate[] predicates;
+	}
+	
+	/**
+	 * Returns every candidate the spatial search lets through from the
+	 * index, without testing it.
+	 */
+	private static class CandidateSample extends AbstractSearch {
+		
+		CandidateSample(Search search) {
+			this.search = search;
+		}
+		
+		public void setLayer(Layer layer) {
+			super.setLayer(layer);
+			search.setLayer(layer);
+		}
+		
+		public boolean needsToVisit(double[] indexNodeBoundingBox) {
+			return search.needsToVisit(indexNodeBoundingBox);
+		}
+		
+		public void onIndexReference(Node geomNode) {
+			add(geomNode);
+		}
+		
+		private Search search;
+	}
+	
+	private static class SortEntry {
+		
+		SortEntry(SpatialDatabaseRecord record, Object key) {
+			this.record = record;
+			this.key = key;
+		}
+		
+		private SpatialDatabaseRecord record;
+		private Object key;
+	}
+	
+	private static class SortEntryComparator implements Comparator<SortEntry> {
+		
+		SortEntryComparator(boolean ascending) {
+			this.ascending = ascending;
+		}
+		
+		public int compare(SortEntry e1, SortEntry e2) {
+			// missing values last, whatever the direction
+			if (e1.key == null || e2.key == null) {
+				return e1.key == null ? (e2.key == null ? 0 : 1) : -1;
+			}
+			int result = AttributePredicate.compare(e1.key, e2.key);
+			return ascending ? result : -result;
+		}
+		
+		private boolean ascending;
+	}
+	
+	/**
+	 * A record that holds the projected attributes, read when the query ran.
+	 */
+	private static class ProjectedRecord extends SpatialDatabaseRecord {
+		
+		ProjectedRecord(Layer layer, SpatialDatabaseRecord record, String[] projection) {
+			super(record);
+			this.projection = projection;
+			for (String attribute : projection) {
+				values.put(attribute, layer.getGeometryEncoder().getAttribute(record.getGeomNode(), attribute));
+			}
+		}
+		
+		public boolean hasProperty(String name) {
+			return values.get(name) != null;
+		}
+		
+		public String[] getPropertyNames() {
+			return projection;
+		}
+		
+		public Object getProperty(String name) {
+			return values.get(name);
+		}
+		
+		private String[] projection;
+		private Map<String, Object> values = new HashMap<String, Object>();
+	}
+}
@@ -20,13 +20,18 @@
 package org.neo4j.gis.spatial.server.plugin;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import org.json.simple.JSONArray;
 import org.neo4j.gis.spatial.DynamicLayer;
 import org.neo4j.gis.spatial.EditableLayer;
 import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.RTreeIndex;
+import org.neo4j.gis.spatial.RTreeIndexJoin;
 import org.neo4j.gis.spatial.SpatialDatabaseRecord;
 import org.neo4j.gis.spatial.SpatialDatabaseService;
+import org.neo4j.gis.spatial.SpatialIndexReader;
 import org.neo4j.gis.spatial.query.SearchWithin;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
@@ -177,6 +182,62 @@ public class SpatialPlugin extends ServerPlugin {
 		return toIterable(results);
 	}
 
+	@PluginTarget(GraphDatabaseService.class)
+	@Description("report the shape of the index of a layer as JSON: the tree height, and the fill, overlap and dead space of each level, and the average number of index nodes read by sample window searches")
+	public String getLayerIndexDiagnostics(@Source GraphDatabaseService db,
+			@Description("The layer whose index to inspect.") @Parameter(name = "layer") String layer,
+			@Description("The number of sample window searches to run. Default is 100") @Parameter(name = "samples", optional = true) Integer samples) {
+		System.out.println("Reporting on the index of layer '" + layer + "'");
+		SpatialDatabaseService spatialService = new SpatialDatabaseService(db);
+
+		SpatialIndexReader index = spatialService.getLayer(layer).getIndex();
+		if (!(index instanceof RTreeIndex)) {
+			System.err.println("Layer '" + layer + "' does not have an RTreeIndex");
+			return null;
+		}
+		return ((RTreeIndex) index).getDiagnostics(samples == null ? 100 : samples).toJSON().toJSONString();
+	}
+
+	@PluginTarget(GraphDatabaseService.class)
+	@Description("join two layers: find every pair of geometries, one from each layer, in the given relation, for example all points of one layer within each polygon of the other. Returns a JSON array of [left node id, right node id] pairs.")
+	public String joinLayers(@Source GraphDatabaseService db,
+			@Description("The layer of the left geometries, such as points.") @Parameter(name = "left_layer") String leftLayer,
+			@Description("The layer of the right geometries, such as polygons.") @Parameter(name = "right_layer") String rightLayer,
+			@Description("The relation of the left geometry to the right one: intersects, within, covered_by, contains or covers. Default is intersects") @Parameter(name = "relation", optional = true) String relation) {
+		System.out.println("Joining layers '" + leftLayer + "' and '" + rightLayer + "'");
+		SpatialDatabaseService spatialService = new SpatialDatabaseService(db);
+
+		Layer left = spatialService.getLayer(leftLayer);
+		Layer right = spatialService.getLayer(rightLayer);
+		if (left == null || right == null) {
+			System.err.println("Layer '" + (left == null ? leftLayer : rightLayer) + "' does not exist");
+			return null;
+		}
+		if (!(left.getIndex() instanceof RTreeIndex) || !(right.getIndex() instanceof RTreeIndex)) {
+			System.err.println("Layers '" + leftLayer + "' and '" + rightLayer + "' must both have an RTreeIndex");
+			return null;
+		}
+		RTreeIndexJoin.Relation joinRelation;
+		try {
+			joinRelation = relation == null ? RTreeIndexJoin.Relation.INTERSECTS : RTreeIndexJoin.Relation.valueOf(relation.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			System.err.println("Unknown relation '" + relation + "', expected one of " + Arrays.toString(RTreeIndexJoin.Relation.values()));
+			return null;
+		}
+
+		final JSONArray pairs = new JSONArray();
+		new RTreeIndexJoin(left, right, joinRelation).execute(new RTreeIndexJoin.Visitor() {
+			@SuppressWarnings("unchecked")
+			public void onPair(SpatialDatabaseRecord leftRecord, SpatialDatabaseRecord rightRecord) {
+				JSONArray pair = new JSONArray();
+				pair.add(leftRecord.getId());
+				pair.add(rightRecord.getId());
+				pairs.add(pair);
+			}
+		});
+		return pairs.toJSONString();
+	}
+
 	private Iterable<Node> toArray(Node node) {
 		ArrayList<Node> result = new ArrayList<Node>();
 		if (result != null)
@@ -20,6 +20,7 @@
 package org.neo4j.gis.spatial;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
@@ -89,6 +90,11 @@ public class FakeIndex implements SpatialIndexReader, Constants {
 		}
 	}
 	
+	public Iterator<SpatialDatabaseRecord> search(Search search, int limit) {
+		search.setLayer(layer);
+		return new SearchCursor.IterableSearchCursor(search, limit, layer.getDataset().getAllGeometryNodes());
+	}
+	
 	// Attributes
 	private Layer layer;
 
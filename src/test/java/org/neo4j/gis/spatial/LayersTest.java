@@ -20,7 +20,9 @@
 package org.neo4j.gis.spatial;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.junit.Test;
 import org.neo4j.gis.spatial.encoders.SimpleGraphEncoder;
@@ -28,13 +30,24 @@ import org.neo4j.gis.spatial.encoders.SimplePointEncoder;
 import org.neo4j.gis.spatial.encoders.SimplePropertyEncoder;
 import org.neo4j.gis.spatial.osm.OSMGeometryEncoder;
 import org.neo4j.gis.spatial.osm.OSMLayer;
+import org.neo4j.gis.spatial.query.AttributePredicate;
+import org.neo4j.gis.spatial.query.SearchAll;
 import org.neo4j.gis.spatial.query.SearchContain;
+import org.neo4j.gis.spatial.query.SearchCover;
+import org.neo4j.gis.spatial.query.SearchCoveredBy;
+import org.neo4j.gis.spatial.query.SearchDisjoint;
+import org.neo4j.gis.spatial.query.SearchInRelation;
 import org.neo4j.gis.spatial.query.SearchIntersect;
+import org.neo4j.gis.spatial.query.SearchIntersectWindow;
 import org.neo4j.gis.spatial.query.SearchWithin;
+import org.neo4j.gis.spatial.query.SpatialQuery;
+import org.neo4j.graphdb.Node;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.CoordinateList;
 import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.MultiLineString;
 
@@ -119,6 +132,160 @@ public class LayersTest extends Neo4jTestCase
         assertEquals( 1, results.size() );
     }
 
+    @Test
+    public void testQueryPredicates()
+    {
+        SpatialDatabaseService db = new SpatialDatabaseService( graphDb() );
+        EditableLayer layer = (EditableLayer) db.getOrCreateEditableLayer( "predicates" );
+        GeometryFactory factory = layer.getGeometryFactory();
+        Node outer = layer.add( factory.toGeometry( new Envelope( 0.0, 10.0, 0.0, 10.0 ) ) ).getGeomNode();
+        Node inner = layer.add( factory.toGeometry( new Envelope( 2.0, 4.0, 2.0, 4.0 ) ) ).getGeomNode();
+        Node apart = layer.add( factory.createLineString( new Coordinate[] {
+                new Coordinate( 8.0, 5.0 ), new Coordinate( 12.0, 5.0 ) } ) ).getGeomNode();
+        // the query contains inner, and is contained by outer
+        Geometry query = factory.toGeometry( new Envelope( 1.0, 5.0, 1.0, 5.0 ) );
+
+        assertSearchResults( layer, new SearchContain( query ), outer );
+        assertSearchResults( layer, new SearchCover( query ), outer );
+        assertSearchResults( layer, new SearchWithin( query ), inner );
+        assertSearchResults( layer, new SearchCoveredBy( query ), inner );
+        assertSearchResults( layer, new SearchInRelation( query, "T*F**F***" ), inner );
+        assertSearchResults( layer, new SearchInRelation( query, "T********" ), outer, inner );
+        // patterns that match any disjoint geometry, or only some
+        assertSearchResults( layer, new SearchInRelation( query, "FF*FF****" ), apart );
+        assertSearchResults( layer, new SearchInRelation( query, "FF*FF*212" ), apart );
+        assertSearchResults( layer, new SearchInRelation( query, "FF1FF0***" ), apart );
+        assertSearchResults( layer, new SearchInRelation( query, "FF2FF1***" ) );
+        assertSearchResults( layer, new SearchIntersect( query ), outer, inner );
+        assertSearchResults( layer, new SearchDisjoint( query ), apart );
+    }
+
+    @Test
+    public void testSpatialQuery()
+    {
+        SpatialDatabaseService db = new SpatialDatabaseService( graphDb() );
+        EditableLayer layer = (EditableLayer) db.getOrCreateEditableLayer( "query" );
+        GeometryFactory factory = layer.getGeometryFactory();
+        for ( int i = 0; i < 10; i++ )
+        {
+            layer.add( factory.createPoint( new Coordinate( i, i ) ), new String[] { "kind", "rank" },
+                    new Object[] { i % 2 == 0 ? "even" : "odd", i } );
+        }
+        Envelope window = new Envelope( -0.5, 5.5, -0.5, 5.5 );
+
+        List<SpatialDatabaseRecord> results = new SpatialQuery( new SearchIntersectWindow( window ) ).where(
+                AttributePredicate.equal( "kind", "even" ) ).execute( layer );
+        assertEquals( 3, results.size() );
+
+        // numbers compare by value, so the Long bound applies to Integer ranks
+        results = new SpatialQuery( new SearchIntersectWindow( window ) ).where( AttributePredicate.equal( "kind", "even" ) ).where(
+                AttributePredicate.greaterThan( "rank", 1L ) ).orderBy( "rank", false ).limit( 1 ).select( "rank" ).execute( layer );
+        assertEquals( 1, results.size() );
+        assertEquals( 4, results.get( 0 ).getProperty( "rank" ) );
+        assertEquals( 1, results.get( 0 ).getPropertyNames().length );
+
+        results = new SpatialQuery( new SearchIntersectWindow( window ) ).where( AttributePredicate.in( "rank", 1, 3, 7 ) ).orderBy(
+                "rank", true ).execute( layer );
+        assertEquals( 2, results.size() );
+        assertEquals( 1, results.get( 0 ).getProperty( "rank" ) );
+        assertEquals( 3, results.get( 1 ).getProperty( "rank" ) );
+
+        // the predicate that rejects the most geometries is tested first
+        AttributePredicate exists = AttributePredicate.exists( "kind" );
+        AttributePredicate low = AttributePredicate.lessThan( "rank", 2 );
+        AttributePredicate odd = AttributePredicate.equal( "kind", "odd" );
+        List<AttributePredicate> plan = new SpatialQuery( new SearchIntersectWindow( window ) ).where( exists ).where( odd ).where(
+                low ).plan( layer );
+        assertEquals( low, plan.get( 0 ) );
+        assertEquals( odd, plan.get( 1 ) );
+        assertEquals( exists, plan.get( 2 ) );
+
+        // the sample is the candidates in the window, where few ranks are high, not the whole layer
+        AttributePredicate high = AttributePredicate.greaterThan( "rank", 3 );
+        SpatialQuery query = new SpatialQuery( new SearchIntersectWindow( window ) ).where( odd ).where( high );
+        plan = query.plan( layer );
+        assertEquals( high, plan.get( 0 ) );
+        assertEquals( odd, plan.get( 1 ) );
+
+        // the plan is kept for the layer until the predicates change
+        for ( int i = 0; i < 5; i++ )
+        {
+            layer.add( factory.createPoint( new Coordinate( 5, 5 ) ), new String[] { "kind", "rank" }, new Object[] { "even", 10 } );
+        }
+        plan = query.plan( layer );
+        assertEquals( high, plan.get( 0 ) );
+        assertEquals( odd, plan.get( 1 ) );
+        plan = query.where( exists ).plan( layer );
+        assertEquals( odd, plan.get( 0 ) );
+        assertEquals( high, plan.get( 1 ) );
+        assertEquals( exists, plan.get( 2 ) );
+    }
+
+    @Test
+    public void testSpatialJoin()
+    {
+        SpatialDatabaseService db = new SpatialDatabaseService( graphDb() );
+        EditableLayer customers = (EditableLayer) db.getOrCreateEditableLayer( "customers" );
+        EditableLayer territories = (EditableLayer) db.getOrCreateEditableLayer( "territories" );
+        GeometryFactory factory = customers.getGeometryFactory();
+        // enough points for a tree deeper than the single leaf of the territories
+        for ( int i = 0; i < 400; i++ )
+        {
+            customers.add( factory.createPoint( new Coordinate( i % 20 + 0.5, i / 20 + 0.5 ) ) );
+        }
+        List<Geometry> polygons = new ArrayList<Geometry>();
+        polygons.add( factory.toGeometry( new Envelope( 0.0, 10.0, 0.0, 10.0 ) ) );
+        polygons.add( factory.toGeometry( new Envelope( 10.0, 20.0, 0.0, 10.0 ) ) );
+        polygons.add( factory.toGeometry( new Envelope( 0.0, 20.0, 10.0, 20.0 ) ) );
+        polygons.add( factory.toGeometry( new Envelope( 5.0, 15.0, 5.0, 15.0 ) ) );
+        polygons.add( factory.toGeometry( new Envelope( 30.0, 40.0, 30.0, 40.0 ) ) );
+        for ( Geometry polygon : polygons )
+        {
+            territories.add( polygon );
+        }
+        assertTrue( ( (RTreeIndex) customers.getIndex() ).getStatistics().getTreeDepth() > 1 );
+
+        // the same pairs as a search per polygon
+        Set<String> expected = new HashSet<String>();
+        SearchAll all = new SearchAll();
+        territories.getIndex().executeSearch( all );
+        for ( SpatialDatabaseRecord territory : all.getResults() )
+        {
+            SearchWithin within = new SearchWithin( territory.getGeometry() );
+            customers.getIndex().executeSearch( within );
+            for ( SpatialDatabaseRecord customer : within.getResults() )
+            {
+                expected.add( customer.getId() + ":" + territory.getId() );
+            }
+        }
+        assertEquals( 500, expected.size() );
+
+        Set<String> joined = new HashSet<String>();
+        for ( long[] pair : new RTreeIndexJoin( customers, territories, RTreeIndexJoin.Relation.WITHIN ).getPairs() )
+        {
+            assertTrue( joined.add( pair[0] + ":" + pair[1] ) );
+        }
+        assertEquals( expected, joined );
+
+        // the other way around, with the points prepared
+        assertEquals( 500, new RTreeIndexJoin( territories, customers, RTreeIndexJoin.Relation.CONTAINS ).getPairs().size() );
+    }
+
+    private void assertSearchResults( Layer layer, Search search, Node... expected )
+    {
+        layer.getIndex().executeSearch( search );
+        List<Long> ids = new ArrayList<Long>();
+        for ( SpatialDatabaseRecord record : search.getResults() )
+        {
+            ids.add( record.getGeomNode().getId() );
+        }
+        assertEquals( search.toString(), expected.length, ids.size() );
+        for ( Node node : expected )
+        {
+            assertTrue( search.toString(), ids.contains( node.getId() ) );
+        }
+    }
+
     @Test
     public void testSnapToLine()
     {
@@ -19,13 +19,27 @@
  */
 package org.neo4j.gis.spatial;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
 import org.junit.Test;
 import org.neo4j.gis.spatial.encoders.SimplePropertyEncoder;
+import org.neo4j.gis.spatial.generic.GenericBoundingBox;
+import org.neo4j.gis.spatial.query.SearchAll;
+import org.neo4j.gis.spatial.query.SearchIntersectBox;
+import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.DeadlockDetectedException;
 import org.neo4j.kernel.EmbeddedGraphDatabase;
 import org.neo4j.graphdb.Node;
 
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+
 public class RTreeIndexTest extends Neo4jTestCase {
 
 	private SpatialDatabaseService curSpatialDatabaseServiceObject = null;
@@ -220,4 +234,1232 @@ public class RTreeIndexTest extends Neo4jTestCase {
 	
 	
 	
+	/** We want to bulk load more nodes than fit
+	 * in a single index node, and check that they are
+	 * all counted and covered by the root bounding box
+	 */
+	@Test
+	public void testAddAll()
+	{
+		List<Node> geomNodes = new ArrayList<Node>();
+		Transaction curTrans = graphDb().beginTx();
+		try
+		{
+			for (int i = 0; i < 250; i++)
+			{
+				Node geomTestNode = graphDb().createNode();
+				geomTestNode.setProperty("bbox", new double[] { i, i + 1.0, i % 10, i % 10 + 1.0 });
+				geomNodes.add(geomTestNode);
+			}
+			curTrans.success();
+		}
+		finally
+		{
+			curTrans.finish();
+		}
+
+		int prevCount = curRTreeIndexObj.count();
+		curRTreeIndexObj.addAll(geomNodes);
+		assertEquals(prevCount + 250, curRTreeIndexObj.count());
+
+		double[] bbox = curRTreeIndexObj.getLayerBoundingBox();
+		assertEquals(0.0, bbox[0]);
+		assertEquals(0.0, bbox[1]);
+		assertEquals(250.0, bbox[2]);
+		assertEquals(10.0, bbox[3]);
+	}
+	
+	/** The Hilbert curve of order 1 visits the four
+	 * grid cells in the order (0,0), (0,1), (1,1), (1,0)
+	 */
+	@Test
+	public void testHilbertValue()
+	{
+		assertEquals(0, HilbertRTreeIndex.hilbertValue(1, 0, 0));
+		assertEquals(1, HilbertRTreeIndex.hilbertValue(1, 0, 1));
+		assertEquals(2, HilbertRTreeIndex.hilbertValue(1, 1, 1));
+		assertEquals(3, HilbertRTreeIndex.hilbertValue(1, 1, 0));
+	}
+	
+	
+	/** We want a layer switched to the Hilbert index
+	 * to keep using it, and to count every node added
+	 * through enough splits to grow the tree
+	 */
+	@Test
+	public void testHilbertIndexAdd()
+	{
+		DefaultLayer hilbertLayer = curSpatialDatabaseServiceObject.getOrCreateDefaultLayer("hilbert");
+		hilbertLayer.setIndexType(HilbertRTreeIndex.INDEX_TYPE_HILBERT);
+		assertTrue(hilbertLayer.getIndex() instanceof HilbertRTreeIndex);
+		assertTrue(curSpatialDatabaseServiceObject.getLayer("hilbert").getIndex() instanceof HilbertRTreeIndex);
+
+		HilbertRTreeIndex hilbertIndex = (HilbertRTreeIndex) hilbertLayer.getIndex();
+		Transaction curTrans = graphDb().beginTx();
+		try
+		{
+			for (int i = 0; i < 250; i++)
+			{
+				Node geomTestNode = graphDb().createNode();
+				geomTestNode.setProperty("bbox", new double[] { i % 25, i % 25 + 0.5, i / 25, i / 25 + 0.5 });
+				hilbertIndex.add(geomTestNode);
+			}
+			curTrans.success();
+		}
+		finally
+		{
+			curTrans.finish();
+		}
+		assertEquals(250, hilbertIndex.count());
+	}
+
+	@Test
+	public void testHilbertBounds()
+	{
+		DefaultLayer bulkLayer = curSpatialDatabaseServiceObject.getOrCreateDefaultLayer("hilbertBulk");
+		bulkLayer.setIndexType(HilbertRTreeIndex.INDEX_TYPE_HILBERT);
+		HilbertRTreeIndex bulkIndex = (HilbertRTreeIndex) bulkLayer.getIndex();
+
+		// far outside the default extent, where every geometry would end up in the same grid cell
+		List<Node> geomNodes = new ArrayList<Node>();
+		Transaction curTrans = graphDb().beginTx();
+		try
+		{
+			for (int i = 0; i < 400; i++)
+			{
+				Node geomTestNode = graphDb().createNode();
+				geomTestNode.setProperty("bbox", new double[] { 1000 + i % 20, 1000.5 + i % 20, 5000 + i / 20, 5000.5 + i / 20 });
+				geomNodes.add(geomTestNode);
+			}
+			curTrans.success();
+		}
+		finally
+		{
+			curTrans.finish();
+		}
+		bulkIndex.addAll(geomNodes);
+
+		double[] bounds = bulkIndex.getHilbertBounds();
+		assertEquals(1000.0, bounds[0]);
+		assertEquals(5000.0, bounds[1]);
+		assertEquals(1019.5, bounds[2]);
+		assertEquals(5019.5, bounds[3]);
+		assertTrue(bulkIndex.getHilbertValue(new double[] { 1000, 5000, 1000.5, 5000.5 }) != bulkIndex.getHilbertValue(new double[] { 1019, 5019, 1019.5, 5019.5 }));
+		assertEquals(1019.5, ((HilbertRTreeIndex) curSpatialDatabaseServiceObject.getLayer("hilbertBulk").getIndex()).getHilbertBounds()[2]);
+		try
+		{
+			bulkIndex.setHilbertBounds(new double[] { 0, 0, 10, 10 });
+			fail("The Hilbert grid of a non-empty index can not change");
+		}
+		catch (SpatialDatabaseException e)
+		{
+			// expected
+		}
+
+		DefaultLayer fixedLayer = curSpatialDatabaseServiceObject.getOrCreateDefaultLayer("hilbertFixed");
+		fixedLayer.setIndexType(HilbertRTreeIndex.INDEX_TYPE_HILBERT);
+		HilbertRTreeIndex fixedIndex = (HilbertRTreeIndex) fixedLayer.getIndex();
+		fixedIndex.setHilbertBounds(new double[] { 0, 0, 100, 100 });
+		geomNodes.clear();
+		curTrans = graphDb().beginTx();
+		try
+		{
+			for (int i = 0; i < 400; i++)
+			{
+				Node geomTestNode = graphDb().createNode();
+				geomTestNode.setProperty("bbox", new double[] { i % 20, i % 20 + 0.5, i / 20, i / 20 + 0.5 });
+				geomNodes.add(geomTestNode);
+			}
+			curTrans.success();
+		}
+		finally
+		{
+			curTrans.finish();
+		}
+		fixedIndex.addAll(geomNodes);
+		assertEquals(100.0, fixedIndex.getHilbertBounds()[2]);
+		assertEquals(400, fixedIndex.count());
+	}
+	
+	/** We want the R* split policy to be remembered
+	 * by the layer, and to keep every node through
+	 * forced reinserts and splits
+	 */
+	@Test
+	public void testRStarSplitPolicy()
+	{
+		DefaultLayer rstarLayer = curSpatialDatabaseServiceObject.getOrCreateDefaultLayer("rstar");
+		RTreeIndex rstarIndex = (RTreeIndex) rstarLayer.getIndex();
+		assertTrue(rstarIndex.getSplitPolicy() instanceof QuadraticSplitPolicy);
+		rstarIndex.setSplitPolicy(RStarSplitPolicy.class);
+		assertTrue(((RTreeIndex) curSpatialDatabaseServiceObject.getLayer("rstar").getIndex()).getSplitPolicy() instanceof RStarSplitPolicy);
+
+		addGridNodes(rstarIndex, 500, 50);
+		assertEquals(500, rstarIndex.count());
+
+		double[] bbox = rstarIndex.getLayerBoundingBox();
+		assertEquals(0.0, bbox[0]);
+		assertEquals(0.0, bbox[1]);
+		assertEquals(49.5, bbox[2]);
+		assertEquals(9.5, bbox[3]);
+	}
+	
+	@Test
+	public void testIndexCache()
+	{
+		DefaultLayer cachedLayer = curSpatialDatabaseServiceObject.getOrCreateDefaultLayer("cached");
+		RTreeIndex cachedIndex = (RTreeIndex) cachedLayer.getIndex();
+		cachedIndex.setCacheEnabled(true);
+		assertTrue(((RTreeIndex) curSpatialDatabaseServiceObject.getLayer("cached").getIndex()).isCacheEnabled());
+
+		addGridNodes(cachedIndex, 150, 50);
+
+		// build the cache halfway, so the remaining adds and splits have to keep it up to date
+		SearchAll search = new SearchAll();
+		cachedIndex.executeSearch(search);
+		assertEquals(150, search.getResults().size());
+		assertTrue(RTreeIndexCache.getCache(graphDb(), cachedLayer.getLayerNode()).isValid());
+
+		Transaction curTrans = graphDb().beginTx();
+		try
+		{
+			addGridNodes(cachedIndex, 150, 301, 50);
+			// the transaction sees its own changes before they reach the cache
+			search = new SearchAll();
+			cachedIndex.executeSearch(search);
+			assertEquals(301, search.getResults().size());
+			addGridNodes(cachedIndex, 301, 500, 50);
+			curTrans.success();
+		}
+		finally
+		{
+			curTrans.finish();
+		}
+
+		// splits that are rolled back never reach the cache
+		curTrans = graphDb().beginTx();
+		try
+		{
+			addGridNodes(cachedIndex, 500, 700, 50);
+			curTrans.failure();
+		}
+		finally
+		{
+			curTrans.finish();
+		}
+		search = new SearchAll();
+		cachedIndex.executeSearch(search);
+		assertEquals(500, search.getResults().size());
+
+		WindowSearch window = new WindowSearch(5.0, 2.0, 10.0, 3.0);
+		cachedIndex.executeSearch(window);
+		assertEquals(12, window.getResults().size());
+		assertTrue(RTreeIndexCache.getCache(graphDb(), cachedLayer.getLayerNode()).size() > 0);
+
+		cachedIndex.setCacheEnabled(false);
+		assertFalse(cachedIndex.isCacheEnabled());
+	}
+	
+	@Test
+	public void testPackedLeafBBoxes()
+	{
+		DefaultLayer packedLayer = curSpatialDatabaseServiceObject.getOrCreateDefaultLayer("packed");
+		RTreeIndex packedIndex = (RTreeIndex) packedLayer.getIndex();
+
+		Transaction curTrans = graphDb().beginTx();
+		try
+		{
+			addGridNodes(packedIndex, 200, 50);
+			// existing leaves are filled in when the mode is enabled
+			packedIndex.setPackedLeafBBoxes(true);
+			addGridNodes(packedIndex, 200, 500, 50);
+			curTrans.success();
+		}
+		finally
+		{
+			curTrans.finish();
+		}
+		assertTrue(((RTreeIndex) curSpatialDatabaseServiceObject.getLayer("packed").getIndex()).hasPackedLeafBBoxes());
+
+		WindowSearch window = new WindowSearch(5.0, 2.0, 10.0, 3.0);
+		packedIndex.executeSearch(window);
+		// children outside the window are rejected from the packed bboxes, without being loaded
+		assertEquals(12, window.tested);
+		assertEquals(12, window.getResults().size());
+	}
+	
+	@Test
+	public void testSearchCursor()
+	{
+		DefaultLayer cursorLayer = curSpatialDatabaseServiceObject.getOrCreateDefaultLayer("cursor");
+		RTreeIndex cursorIndex = (RTreeIndex) cursorLayer.getIndex();
+
+		addGridNodes(cursorIndex, 500, 50);
+
+		WindowSearch window = new WindowSearch(5.0, 2.0, 10.0, 3.0);
+
+		int count = 0;
+		Iterator<SpatialDatabaseRecord> results = cursorIndex.search(window, -1);
+		while (results.hasNext())
+		{
+			assertNotNull(results.next());
+			count++;
+		}
+		assertEquals(12, count);
+		// results are handed out, not collected
+		assertEquals(0, window.getResults().size());
+
+		// stopping at the limit leaves the rest of the tree unvisited
+		int testedByFullSearch = window.tested;
+		window.tested = 0;
+		results = cursorIndex.search(window, 3);
+		count = 0;
+		while (results.hasNext())
+		{
+			results.next();
+			count++;
+		}
+		assertEquals(3, count);
+		assertTrue(window.tested < testedByFullSearch);
+	}
+	
+	@Test
+	public void testParallelSearch()
+	{
+		DefaultLayer parallelLayer = curSpatialDatabaseServiceObject.getOrCreateDefaultLayer("parallel");
+		RTreeIndex parallelIndex = (RTreeIndex) parallelLayer.getIndex();
+
+		addGridNodes(parallelIndex, 500, 50);
+
+		SearchAll sequential = new SearchAll();
+		parallelIndex.executeSearch(sequential);
+		assertEquals(500, sequential.getResults().size());
+
+		parallelIndex.setParallelSearch(4, true);
+		SearchAll ordered = new SearchAll();
+		parallelIndex.executeSearch(ordered);
+		assertEquals(500, ordered.getResults().size());
+		for (int i = 0; i < 500; i++)
+		{
+			assertEquals(sequential.getResults().get(i).getId(), ordered.getResults().get(i).getId());
+		}
+
+		parallelIndex.setParallelSearch(4, false);
+		SearchAll unordered = new SearchAll();
+		parallelIndex.executeSearch(unordered);
+		assertEquals(500, unordered.getResults().size());
+
+		// inside a transaction the search must see its uncommitted changes
+		Transaction curTrans = graphDb().beginTx();
+		try
+		{
+			Node geomTestNode = graphDb().createNode();
+			geomTestNode.setProperty("bbox", new double[] { 60.0, 60.5, 60.0, 60.5 });
+			parallelIndex.add(geomTestNode);
+			SearchAll uncommitted = new SearchAll();
+			parallelIndex.executeSearch(uncommitted);
+			assertEquals(501, uncommitted.getResults().size());
+		}
+		finally
+		{
+			curTrans.finish();
+		}
+
+		parallelIndex.setParallelSearch(0, true);
+	}
+	
+	@Test
+	public void testExecuteSearches()
+	{
+		DefaultLayer batchLayer = curSpatialDatabaseServiceObject.getOrCreateDefaultLayer("batch");
+		RTreeIndex batchIndex = (RTreeIndex) batchLayer.getIndex();
+
+		addGridNodes(batchIndex, 500, 50);
+
+		List<WindowSearch> batch = new ArrayList<WindowSearch>();
+		batch.add(new WindowSearch(5.0, 2.0, 10.0, 3.0));
+		batch.add(new WindowSearch(0.0, 0.0, 0.2, 0.2));
+		batch.add(new WindowSearch(100.0, 100.0, 101.0, 101.0));
+		batch.add(new WindowSearch(-1.0, -1.0, 60.0, 20.0));
+		batchIndex.executeSearches(batch);
+
+		assertEquals(12, batch.get(0).getResults().size());
+		assertEquals(1, batch.get(1).getResults().size());
+		assertEquals(0, batch.get(2).getResults().size());
+		assertEquals(500, batch.get(3).getResults().size());
+	}
+
+	@Test
+	public void testStatistics()
+	{
+		DefaultLayer statsLayer = curSpatialDatabaseServiceObject.getOrCreateDefaultLayer("stats");
+		RTreeIndex statsIndex = (RTreeIndex) statsLayer.getIndex();
+		assertEquals(0, statsIndex.getStatistics().getGeometryCount());
+		assertNull(statsIndex.getStatistics().getGeometryType());
+
+		Node removed = null;
+		Transaction curTrans = graphDb().beginTx();
+		try
+		{
+			for (int i = 0; i < 500; i++)
+			{
+				Node geomTestNode = createGridNode(i, 50);
+				geomTestNode.setProperty(Constants.PROP_TYPE, i < 300 ? Constants.GTYPE_POINT : Constants.GTYPE_POLYGON);
+				statsIndex.add(geomTestNode);
+				if (i == 0) removed = geomTestNode;
+			}
+			statsIndex.remove(removed.getId(), true);
+			curTrans.success();
+		}
+		finally
+		{
+			curTrans.finish();
+		}
+
+		// statistics are read from the metadata node, so a new index instance sees them
+		RTreeIndexStatistics stats = ((RTreeIndex) curSpatialDatabaseServiceObject.getLayer("stats").getIndex()).getStatistics();
+		assertEquals(499, stats.getGeometryCount());
+		assertEquals(299, stats.getGeometryTypeCount(Constants.GTYPE_POINT));
+		assertEquals(200, stats.getGeometryTypeCount(Constants.GTYPE_POLYGON));
+		assertEquals(Constants.GTYPE_POINT, (int) stats.getGeometryType());
+		assertTrue(stats.getTreeDepth() >= 2);
+		assertTrue(stats.getIndexNodeCount() > 5);
+		assertTrue(stats.getFillFactor() > 0.3 && stats.getFillFactor() <= 1.0);
+		assertEquals(49.5, stats.getExtent()[2]);
+		assertEquals(Constants.GTYPE_POINT, (int) statsLayer.getGeometryType());
+	}
+
+	@Test
+	public void testHistogram()
+	{
+		DefaultLayer histogramLayer = curSpatialDatabaseServiceObject.getOrCreateDefaultLayer("histogram");
+		RTreeIndex histogramIndex = (RTreeIndex) histogramLayer.getIndex();
+		assertNull(histogramIndex.getHistogram());
+
+		Transaction curTrans = graphDb().beginTx();
+		try
+		{
+			// a dense cluster of 400 points near the origin and 100 points spread over the rest of the layer
+			for (int i = 0; i < 500; i++)
+			{
+				double x = i < 400 ? (i % 20) * 0.5 : ((i - 400) % 10) * 100 + 50;
+				double y = i < 400 ? (i / 20) * 0.5 : ((i - 400) / 10) * 100 + 50;
+				Node geomTestNode = graphDb().createNode();
+				geomTestNode.setProperty("bbox", new double[] { x, x, y, y });
+				histogramIndex.add(geomTestNode);
+			}
+			curTrans.success();
+		}
+		finally
+		{
+			curTrans.finish();
+		}
+
+		RTreeIndexHistogram histogram = histogramIndex.getHistogram();
+		assertEquals(500, histogram.getGeometryCount());
+		assertEquals(500.0, histogram.estimateCount(histogramIndex.getLayerBoundingBox()), 0.001);
+		// the average density of the layer would estimate about 5 geometries here
+		double clusterCount = histogramIndex.estimateCount(new double[] { 0, 0, 100, 100 });
+		assertTrue("Expected the cluster to be estimated, got " + clusterCount, clusterCount > 200 && clusterCount < 500);
+
+		// window sizes follow the local density
+		Envelope dense = SpatialTopologyUtils.createEnvelopeForGeometryDensityEstimate(histogramLayer, new Coordinate(5, 5), 10);
+		Envelope sparse = SpatialTopologyUtils.createEnvelopeForGeometryDensityEstimate(histogramLayer, new Coordinate(850, 850), 10);
+		assertTrue("Expected a small window in the cluster, got " + dense, dense.getWidth() < 20);
+		assertTrue("Expected a large window outside the cluster, got " + sparse, sparse.getWidth() > 100);
+
+		// reading the histogram does not write it, only updateHistogram and bulk loads do
+		Node metadata = histogramLayer.getLayerNode().getSingleRelationship(SpatialRelationshipTypes.RTREE_METADATA, Direction.OUTGOING).getEndNode();
+		assertFalse(metadata.hasProperty(RTreeIndex.PROP_HISTOGRAM_CELLS));
+		histogramIndex.updateHistogram();
+		assertTrue(metadata.hasProperty(RTreeIndex.PROP_HISTOGRAM_CELLS));
+
+		// the stored histogram is only replaced when the index has changed enough
+		curTrans = graphDb().beginTx();
+		try
+		{
+			Node geomTestNode = graphDb().createNode();
+			geomTestNode.setProperty("bbox", new double[] { 1, 1, 1, 1 });
+			histogramIndex.add(geomTestNode);
+			curTrans.success();
+		}
+		finally
+		{
+			curTrans.finish();
+		}
+		assertEquals(500, histogramIndex.getHistogram().getGeometryCount());
+	}
+
+	@Test
+	public void testBoundingBoxMath()
+	{
+		double[] a = new double[] { 0, 0, 2, 1 };
+		double[] b = new double[] { 1, -1, 3, 0.5 };
+		double[] union = curRTreeIndexObj.boundingBox.createBoundingBox(a, b);
+		assertEquals(3.0, union[2]);
+		assertEquals(-1.0, union[1]);
+		// neither argument is modified
+		assertEquals(2.0, a[2]);
+		assertEquals(-1.0, b[1]);
+		assertEquals(2.0, GenericBoundingBox.getArea(a));
+		assertEquals(6.0, GenericBoundingBox.getUnionArea(a, b));
+		assertEquals(4.0, GenericBoundingBox.getAreaEnlargement(a, b));
+		assertTrue(GenericBoundingBox.covers(union, b));
+		assertFalse(GenericBoundingBox.covers(a, b));
+
+		// splitting a leaf of identical points must not pick the same entry as both seeds
+		DefaultLayer sameLayer = curSpatialDatabaseServiceObject.getOrCreateDefaultLayer("same");
+		RTreeIndex sameIndex = (RTreeIndex) sameLayer.getIndex();
+		Transaction curTrans = graphDb().beginTx();
+		try
+		{
+			for (int i = 0; i < 150; i++)
+			{
+				Node geomTestNode = graphDb().createNode();
+				geomTestNode.setProperty("bbox", new double[] { 1, 1, 1, 1 });
+				sameIndex.add(geomTestNode);
+			}
+			curTrans.success();
+		}
+		finally
+		{
+			curTrans.finish();
+		}
+		SearchAll search = new SearchAll();
+		search.setLayer(sameLayer);
+		sameIndex.executeSearch(search);
+		assertEquals(150, search.getResults().size());
+	}
+
+	@Test
+	public void testTimeDimension()
+	{
+		DefaultLayer trackLayer = curSpatialDatabaseServiceObject.getOrCreateDefaultLayer("tracks");
+		RTreeIndex trackIndex = (RTreeIndex) trackLayer.getIndex();
+		trackIndex.setDimensionProperties("time");
+		assertEquals(3, trackIndex.getDimensions());
+
+		Transaction curTrans = graphDb().beginTx();
+		try
+		{
+			// every position is visited ten times, at times 0-19, 20-39, ...
+			for (int i = 0; i < 200; i++)
+			{
+				Node geomTestNode = graphDb().createNode();
+				geomTestNode.setProperty("bbox", new double[] { i % 20, i % 20, 0, 0 });
+				geomTestNode.setProperty("time", (long) i);
+				trackIndex.add(geomTestNode);
+			}
+			curTrans.success();
+		}
+		finally
+		{
+			curTrans.finish();
+		}
+
+		// the dimensions are read back from the metadata node
+		RTreeIndex reloaded = (RTreeIndex) curSpatialDatabaseServiceObject.getLayer("tracks").getIndex();
+		assertEquals("time", reloaded.getDimensionProperties()[0]);
+		double[] extent = reloaded.getLayerBoundingBox();
+		assertEquals(6, extent.length);
+		assertEquals(199.0, extent[5]);
+
+		SearchIntersectBox search = new SearchIntersectBox(new double[] { 0, -1, 50 }, new double[] { 19, 1, 59 });
+		search.setLayer(trackLayer);
+		reloaded.executeSearch(search);
+		assertEquals(10, search.getResults().size());
+
+		try
+		{
+			trackIndex.setDimensionProperties("time", "elevation");
+			fail("Expected the dimensions of a non-empty index to be fixed");
+		}
+		catch (SpatialDatabaseException e)
+		{
+			// expected
+		}
+	}
+
+	@Test
+	public void testConcurrentWriters() throws Exception
+	{
+		DefaultLayer concurrentLayer = curSpatialDatabaseServiceObject.getOrCreateDefaultLayer("concurrent");
+		final RTreeIndex concurrentIndex = (RTreeIndex) concurrentLayer.getIndex();
+		concurrentIndex.setConcurrentWriters(true);
+
+		final int threadCount = 4;
+		final int addsPerThread = 300;
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < threadCount; t++)
+		{
+			final int offset = t * addsPerThread;
+			threads.add(new Thread()
+			{
+				public void run()
+				{
+					try
+					{
+						for (int i = offset; i < offset + addsPerThread; i++)
+						{
+							addInOwnTransaction(concurrentIndex, i);
+						}
+					}
+					catch (Throwable e)
+					{
+						failures.add(e);
+					}
+				}
+			});
+		}
+		for (Thread thread : threads) thread.start();
+		for (Thread thread : threads) thread.join();
+		concurrentIndex.setConcurrentWriters(false);
+		assertTrue(failures.toString(), failures.isEmpty());
+
+		int total = threadCount * addsPerThread;
+		assertEquals(total, concurrentIndex.count());
+		int[] indexNodeCount = new int[1];
+		assertEquals(total, assertValidSubtree(concurrentIndex, concurrentIndex.getIndexRoot(), indexNodeCount));
+		assertEquals(indexNodeCount[0], concurrentIndex.getStatistics().getIndexNodeCount());
+
+		SearchAll search = new SearchAll();
+		concurrentIndex.executeSearch(search);
+		assertEquals(total, search.getResults().size());
+
+		DefaultLayer hilbertLayer = curSpatialDatabaseServiceObject.getOrCreateDefaultLayer("hilbertConcurrent");
+		hilbertLayer.setIndexType(HilbertRTreeIndex.INDEX_TYPE_HILBERT);
+		try
+		{
+			((HilbertRTreeIndex) hilbertLayer.getIndex()).setConcurrentWriters(true);
+			fail("Expected the Hilbert R-tree to refuse concurrent writers");
+		}
+		catch (SpatialDatabaseException e)
+		{
+			// expected
+		}
+	}
+
+	@Test
+	public void testInsertBuffer()
+	{
+		DefaultLayer bufferedLayer = curSpatialDatabaseServiceObject.getOrCreateDefaultLayer("buffered");
+		RTreeIndex bufferedIndex = (RTreeIndex) bufferedLayer.getIndex();
+		bufferedIndex.setInsertBuffer(1000, 0);
+
+		Node removed = addGridNodes(bufferedIndex, 200, 20).get(0);
+
+		// a rolled back add never reaches the buffer
+		Transaction curTrans = graphDb().beginTx();
+		try
+		{
+			Node geomTestNode = graphDb().createNode();
+			geomTestNode.setProperty("bbox", new double[] { 0, 1, 0, 1 });
+			bufferedIndex.add(geomTestNode);
+			curTrans.failure();
+		}
+		finally
+		{
+			curTrans.finish();
+		}
+
+		// the geometries are only in the buffer, but searches find them
+		assertTrue(bufferedIndex.isEmpty());
+		assertEquals(200, bufferedIndex.getInsertBuffer().size());
+		assertEquals(200, bufferedIndex.count());
+		assertEquals(200, countBufferedMarkers(bufferedIndex));
+		WindowSearch window = new WindowSearch(5.0, 2.0, 10.0, 3.0);
+		bufferedIndex.executeSearch(window);
+		assertEquals(12, window.getResults().size());
+
+		// every instance of the layer index shares the buffer
+		RTreeIndex otherIndex = (RTreeIndex) curSpatialDatabaseServiceObject.getLayer("buffered").getIndex();
+		assertSame(bufferedIndex.getInsertBuffer(), otherIndex.getInsertBuffer());
+		assertEquals(200, otherIndex.count());
+		window = new WindowSearch(5.0, 2.0, 10.0, 3.0);
+		otherIndex.executeSearch(window);
+		assertEquals(12, window.getResults().size());
+
+		curTrans = graphDb().beginTx();
+		try
+		{
+			bufferedIndex.remove(removed.getId(), true);
+			curTrans.success();
+		}
+		finally
+		{
+			curTrans.finish();
+		}
+		assertEquals(199, bufferedIndex.count());
+
+		bufferedIndex.flushInsertBuffer();
+		assertEquals(0, bufferedIndex.getInsertBuffer().size());
+		assertEquals(0, countBufferedMarkers(bufferedIndex));
+		assertNull(bufferedIndex.getInsertBuffer().getFlushFailure());
+		assertFalse(bufferedIndex.isEmpty());
+		assertEquals(199, bufferedIndex.count());
+		window = new WindowSearch(5.0, 2.0, 10.0, 3.0);
+		bufferedIndex.executeSearch(window);
+		assertEquals(12, window.getResults().size());
+
+		// a full buffer is flushed in the background
+		bufferedIndex.setInsertBuffer(10, 0);
+		curTrans = graphDb().beginTx();
+		try
+		{
+			for (int i = 0; i < 10; i++)
+			{
+				Node geomTestNode = graphDb().createNode();
+				geomTestNode.setProperty("bbox", new double[] { 30 + i, 30.5 + i, 0, 0.5 });
+				bufferedIndex.add(geomTestNode);
+			}
+			curTrans.success();
+		}
+		finally
+		{
+			curTrans.finish();
+		}
+		bufferedIndex.setInsertBuffer(0, 0);
+		assertNull(bufferedIndex.getInsertBuffer());
+		assertEquals(209, bufferedIndex.count());
+		SearchAll all = new SearchAll();
+		bufferedIndex.executeSearch(all);
+		assertEquals(209, all.getResults().size());
+	}
+
+	@Test
+	public void testRemoveDuringFlush() throws Exception
+	{
+		DefaultLayer bufferedLayer = curSpatialDatabaseServiceObject.getOrCreateDefaultLayer("flushRace");
+		final RTreeIndex bufferedIndex = (RTreeIndex) bufferedLayer.getIndex();
+		bufferedIndex.setInsertBuffer(1000, 0);
+
+		Node removed = addGridNodes(bufferedIndex, 100, 10).get(0);
+
+		// the removal is committed while another thread flushes the geometry into the tree,
+		// the flush waits for the removing transaction, which has locked the geometry
+		final Exception[] flushFailure = new Exception[1];
+		Thread flushThread = new Thread()
+		{
+			public void run()
+			{
+				try
+				{
+					bufferedIndex.flushInsertBuffer();
+				}
+				catch (Exception e)
+				{
+					flushFailure[0] = e;
+				}
+			}
+		};
+		Transaction curTrans = graphDb().beginTx();
+		try
+		{
+			bufferedIndex.remove(removed.getId(), false);
+			flushThread.start();
+			while (flushThread.isAlive() && flushThread.getState() != Thread.State.WAITING
+					&& flushThread.getState() != Thread.State.TIMED_WAITING)
+			{
+				Thread.sleep(10);
+			}
+			curTrans.success();
+		}
+		finally
+		{
+			curTrans.finish();
+		}
+		flushThread.join();
+		assertNull(flushFailure[0]);
+
+		bufferedIndex.flushInsertBuffer();
+		assertEquals(0, bufferedIndex.getInsertBuffer().size());
+		assertEquals(99, bufferedIndex.count());
+		assertFalse(removed.hasRelationship(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING));
+		SearchAll all = new SearchAll();
+		bufferedIndex.executeSearch(all);
+		assertEquals(99, all.getResults().size());
+		bufferedIndex.setInsertBuffer(0, 0);
+	}
+
+	@Test
+	public void testInsertBufferRecovery()
+	{
+		DefaultLayer layer = curSpatialDatabaseServiceObject.getOrCreateDefaultLayer("bufferRecovery");
+		RTreeIndex index = (RTreeIndex) layer.getIndex();
+
+		Node indexed;
+		Transaction curTrans = graphDb().beginTx();
+		try
+		{
+			indexed = graphDb().createNode();
+			indexed.setProperty("bbox", new double[] { 0, 0.5, 0, 0.5 });
+			index.add(indexed);
+			curTrans.success();
+		}
+		finally
+		{
+			curTrans.finish();
+		}
+
+		// what a buffer leaves behind when the JVM stops before it is flushed, including a
+		// geometry that was flushed before its marker was deleted
+		curTrans = graphDb().beginTx();
+		try
+		{
+			Node metadata = index.getMetadataNode();
+			metadata.setProperty(RTreeIndex.PROP_INSERT_BUFFER_SIZE, 1000);
+			metadata.setProperty(RTreeIndex.PROP_INSERT_BUFFER_FLUSH_INTERVAL, 0L);
+			metadata.createRelationshipTo(indexed, SpatialRelationshipTypes.RTREE_BUFFERED);
+			for (int i = 1; i <= 50; i++)
+			{
+				Node geomTestNode = graphDb().createNode();
+				geomTestNode.setProperty("bbox", new double[] { i, i + 0.5, 0, 0.5 });
+				metadata.createRelationshipTo(geomTestNode, SpatialRelationshipTypes.RTREE_BUFFERED);
+			}
+			curTrans.success();
+		}
+		finally
+		{
+			curTrans.finish();
+		}
+
+		// the index opened again buffers the geometries that are not in the tree
+		RTreeIndex reopened = (RTreeIndex) curSpatialDatabaseServiceObject.getLayer("bufferRecovery").getIndex();
+		assertNotNull(reopened.getInsertBuffer());
+		reopened.flushInsertBuffer();
+		assertEquals(0, reopened.getInsertBuffer().size());
+		assertEquals(0, countBufferedMarkers(reopened));
+		assertEquals(51, reopened.count());
+		SearchAll all = new SearchAll();
+		reopened.executeSearch(all);
+		assertEquals(51, all.getResults().size());
+		reopened.setInsertBuffer(0, 0);
+	}
+
+	@Test
+	public void testMove()
+	{
+		DefaultLayer movingLayer = curSpatialDatabaseServiceObject.getOrCreateDefaultLayer("moving");
+		RTreeIndex movingIndex = (RTreeIndex) movingLayer.getIndex();
+
+		List<Node> geomNodes = addGridNodes(movingIndex, 500, 50);
+		int indexNodes = movingIndex.getStatistics().getIndexNodeCount();
+
+		Transaction curTrans = graphDb().beginTx();
+		try
+		{
+			// every entry moves a little, then one of them moves far away
+			for (Node geomNode : geomNodes)
+			{
+				double[] bbox = (double[]) geomNode.getProperty("bbox");
+				geomNode.setProperty("bbox", new double[] { bbox[0] + 0.2, bbox[1] + 0.2, bbox[2], bbox[3] });
+				movingIndex.move(geomNode);
+			}
+			geomNodes.get(0).setProperty("bbox", new double[] { 100, 100.5, 100, 100.5 });
+			movingIndex.move(geomNodes.get(0));
+			curTrans.success();
+		}
+		finally
+		{
+			curTrans.finish();
+		}
+
+		assertEquals(500, movingIndex.count());
+		int[] indexNodeCount = new int[1];
+		assertEquals(500, assertValidSubtree(movingIndex, movingIndex.getIndexRoot(), indexNodeCount));
+		assertEquals(indexNodeCount[0], movingIndex.getStatistics().getIndexNodeCount());
+		assertTrue(indexNodeCount[0] <= indexNodes + 1);
+
+		WindowSearch moved = new WindowSearch(99.0, 99.0, 101.0, 101.0);
+		movingIndex.executeSearch(moved);
+		assertEquals(1, moved.getResults().size());
+		WindowSearch origin = new WindowSearch(0.0, 0.0, 0.1, 0.1);
+		movingIndex.executeSearch(origin);
+		assertEquals(0, origin.getResults().size());
+		assertEquals(100.5, movingIndex.getLayerBoundingBox()[2]);
+		assertEquals(100.5, movingIndex.getLayerBoundingBox()[3]);
+	}
+
+	@Test
+	public void testRemoveAllByIds()
+	{
+		DefaultLayer expiringLayer = curSpatialDatabaseServiceObject.getOrCreateDefaultLayer("expiring");
+		RTreeIndex expiringIndex = (RTreeIndex) expiringLayer.getIndex();
+
+		List<Node> geomNodes = addGridNodes(expiringIndex, 1000, 50);
+		List<Long> expired = new ArrayList<Long>();
+		for (int i = 0; i < 1000; i++)
+		{
+			// expire the first 900 and every other one of the rest
+			if (i < 900 || i % 2 == 0) expired.add(geomNodes.get(i).getId());
+		}
+
+		CountingListener monitor = new CountingListener();
+		expiringIndex.removeAll(expired, true, monitor);
+		assertEquals(expired.size(), monitor.worked);
+		assertTrue(monitor.done);
+
+		assertEquals(50, expiringIndex.count());
+		int[] indexNodeCount = new int[1];
+		assertEquals(50, assertValidSubtree(expiringIndex, expiringIndex.getIndexRoot(), indexNodeCount));
+		RTreeIndexStatistics stats = expiringIndex.getStatistics();
+		assertEquals(indexNodeCount[0], stats.getIndexNodeCount());
+		assertEquals(1, stats.getTreeDepth());
+		assertEquals(18.0, expiringIndex.getLayerBoundingBox()[1]);
+
+		SearchAll search = new SearchAll();
+		expiringIndex.executeSearch(search);
+		assertEquals(50, search.getResults().size());
+	}
+
+	@Test
+	public void testRebuild()
+	{
+		DefaultLayer churnLayer = curSpatialDatabaseServiceObject.getOrCreateDefaultLayer("churn");
+		RTreeIndex churnIndex = (RTreeIndex) churnLayer.getIndex();
+
+		// one at a time, so the leaves are split instead of packed
+		addGridNodes(churnIndex, 1000, 50);
+		Node oldRoot = churnIndex.getIndexRoot();
+		int indexNodesBefore = churnIndex.getStatistics().getIndexNodeCount();
+
+		churnIndex.rebuild(new NullListener());
+
+		assertFalse(oldRoot.getId() == churnIndex.getIndexRoot().getId());
+		assertEquals(1000, churnIndex.count());
+		int[] indexNodeCount = new int[1];
+		assertEquals(1000, assertValidSubtree(churnIndex, churnIndex.getIndexRoot(), indexNodeCount));
+		RTreeIndexStatistics stats = churnIndex.getStatistics();
+		assertEquals(indexNodeCount[0], stats.getIndexNodeCount());
+		assertTrue(stats.getIndexNodeCount() < indexNodesBefore);
+		assertEquals(2, stats.getTreeDepth());
+
+		WindowSearch window = new WindowSearch(5.0, 2.0, 10.0, 3.0);
+		churnIndex.executeSearch(window);
+		assertEquals(12, window.getResults().size());
+	}
+
+	@Test
+	public void testRemoveAndMoveDuringRebuild()
+	{
+		DefaultLayer churnLayer = curSpatialDatabaseServiceObject.getOrCreateDefaultLayer("rebuildChanges");
+		final RTreeIndex churnIndex = (RTreeIndex) churnLayer.getIndex();
+		final List<Node> geomNodes = addGridNodes(churnIndex, 1000, 50);
+
+		// the leaves of the new tree are written when all 1000 geometries were read and packed
+		churnIndex.rebuild(new CountingListener()
+		{
+			public void worked(int workedSinceLastNotification)
+			{
+				super.worked(workedSinceLastNotification);
+				if (getWorked() != 2000) return;
+
+				Transaction tx = graphDb().beginTx();
+				try
+				{
+					churnIndex.remove(geomNodes.get(0).getId(), false);
+					geomNodes.get(1).setProperty("bbox", new double[] { 100.0, 100.5, 100.0, 100.5 });
+					churnIndex.move(geomNodes.get(1));
+					tx.success();
+				}
+				finally
+				{
+					tx.finish();
+				}
+			}
+		});
+
+		assertEquals(999, churnIndex.count());
+		int[] indexNodeCount = new int[1];
+		assertEquals(999, assertValidSubtree(churnIndex, churnIndex.getIndexRoot(), indexNodeCount));
+		assertFalse(churnIndex.getMetadataNode().hasProperty(RTreeIndex.PROP_REBUILD_CHANGED_IDS));
+
+		WindowSearch removed = new WindowSearch(0.0, 0.0, 0.5, 0.5);
+		churnIndex.executeSearch(removed);
+		assertEquals(0, removed.getResults().size());
+		WindowSearch moved = new WindowSearch(99.0, 99.0, 101.0, 101.0);
+		churnIndex.executeSearch(moved);
+		assertEquals(1, moved.getResults().size());
+		assertEquals(geomNodes.get(1), moved.getResults().get(0).getGeomNode());
+	}
+
+	@Test
+	public void testDiagnostics()
+	{
+		DefaultLayer diagnosticsLayer = curSpatialDatabaseServiceObject.getOrCreateDefaultLayer("diagnostics");
+		RTreeIndex diagnosticsIndex = (RTreeIndex) diagnosticsLayer.getIndex();
+
+		Transaction curTrans = graphDb().beginTx();
+		try
+		{
+			for (int i = 0; i < 500; i++)
+			{
+				Node geomTestNode = graphDb().createNode();
+				geomTestNode.setProperty("bbox", new double[] { i % 25, i % 25 + 0.5, i / 25, i / 25 + 0.5 });
+				diagnosticsIndex.add(geomTestNode);
+			}
+			curTrans.success();
+		}
+		finally
+		{
+			curTrans.finish();
+		}
+
+		RTreeIndexDiagnostics diagnostics = diagnosticsIndex.getDiagnostics(20);
+		RTreeIndexStatistics stats = diagnosticsIndex.getStatistics();
+		assertEquals(stats.getTreeDepth(), diagnostics.getTreeHeight());
+		assertEquals(stats.getIndexNodeCount(), diagnostics.getIndexNodeCount());
+		assertEquals(1, diagnostics.getLevel(0).getNodeCount());
+		assertEquals(0.0, diagnostics.getLevel(0).getOverlapRatio(), 0.0);
+
+		RTreeIndexDiagnostics.Level leaves = diagnostics.getLevel(diagnostics.getTreeHeight() - 1);
+		assertEquals(500, leaves.getEntryCount());
+		int histogramTotal = 0;
+		for (int count : leaves.getFillHistogram())
+		{
+			histogramTotal += count;
+		}
+		assertEquals(leaves.getNodeCount(), histogramTotal);
+		assertTrue(leaves.getDeadSpaceRatio() >= 0 && leaves.getDeadSpaceRatio() < 1);
+
+		assertEquals(20, diagnostics.getSampleQueries());
+		assertTrue(diagnostics.getAverageNodesVisited() >= 1);
+		assertTrue(diagnostics.getAverageNodesVisited() < stats.getIndexNodeCount());
+		assertEquals(diagnostics.getTreeHeight(), ((List<?>) diagnostics.toJSON().get("levels")).size());
+	}
+
+	@Test
+	public void testCoveredSubtrees()
+	{
+		DefaultLayer coveredLayer = curSpatialDatabaseServiceObject.getOrCreateDefaultLayer("covered");
+		RTreeIndex coveredIndex = (RTreeIndex) coveredLayer.getIndex();
+
+		addGridNodes(coveredIndex, 500, 50);
+
+		// a window covering the root takes the whole tree without testing anything
+		CoveringWindowSearch all = new CoveringWindowSearch(-1.0, -1.0, 60.0, 20.0);
+		coveredIndex.executeSearch(all);
+		assertEquals(500, all.getResults().size());
+		assertEquals(500, all.covered);
+		assertEquals(0, all.tested);
+
+		all = new CoveringWindowSearch(-1.0, -1.0, 60.0, 20.0);
+		int count = 0;
+		Iterator<SpatialDatabaseRecord> results = coveredIndex.search(all, -1);
+		while (results.hasNext())
+		{
+			results.next();
+			count++;
+		}
+		assertEquals(500, count);
+		assertEquals(0, all.tested);
+
+		// in a batch, only the search covering the node skips its subtree
+		List<CoveringWindowSearch> batch = new ArrayList<CoveringWindowSearch>();
+		batch.add(new CoveringWindowSearch(-1.0, -1.0, 60.0, 20.0));
+		batch.add(new CoveringWindowSearch(5.0, 2.0, 10.0, 3.0));
+		coveredIndex.executeSearches(batch);
+		assertEquals(500, batch.get(0).covered);
+		assertEquals(12, batch.get(1).getResults().size());
+		assertTrue(batch.get(1).tested > 0);
+
+		// packed leaves accept single geometries the window covers
+		coveredIndex.setPackedLeafBBoxes(true);
+		CoveringWindowSearch window = new CoveringWindowSearch(4.9, 1.9, 10.6, 3.6);
+		coveredIndex.executeSearch(window);
+		assertEquals(12, window.getResults().size());
+		assertEquals(12, window.covered);
+		assertEquals(0, window.tested);
+	}
+
+	/**
+	 * Add count test nodes to the index in one transaction, see createGridNode.
+	 * 
+	 * @return the nodes added
+	 */
+	private List<Node> addGridNodes(RTreeIndex index, int count, int columns)
+	{
+		return addGridNodes(index, 0, count, columns);
+	}
+
+	/**
+	 * Add the test nodes from (inclusive) to (exclusive) to the index in one transaction,
+	 * which is nested in the current transaction if there is one.
+	 * 
+	 * @return the nodes added
+	 */
+	private List<Node> addGridNodes(RTreeIndex index, int from, int to, int columns)
+	{
+		List<Node> geomNodes = new ArrayList<Node>();
+		Transaction tx = graphDb().beginTx();
+		try
+		{
+			for (int i = from; i < to; i++)
+			{
+				Node geomTestNode = createGridNode(i, columns);
+				index.add(geomTestNode);
+				geomNodes.add(geomTestNode);
+			}
+			tx.success();
+		}
+		finally
+		{
+			tx.finish();
+		}
+		return geomNodes;
+	}
+
+	/**
+	 * @return a new test node with a half unit "bbox" in cell i of a grid with the given
+	 *         number of columns, with one unit between the cells
+	 */
+	private Node createGridNode(int i, int columns)
+	{
+		Node geomTestNode = graphDb().createNode();
+		geomTestNode.setProperty("bbox", new double[] { i % columns, i % columns + 0.5, i / columns, i / columns + 0.5 });
+		return geomTestNode;
+	}
+
+	private void addInOwnTransaction(RTreeIndex index, int i)
+	{
+		while (true)
+		{
+			Transaction tx = graphDb().beginTx();
+			try
+			{
+				index.add(createGridNode(i, 40));
+				tx.success();
+				return;
+			}
+			catch (DeadlockDetectedException e)
+			{
+				tx.failure();
+			}
+			finally
+			{
+				tx.finish();
+			}
+		}
+	}
+
+	/**
+	 * Check that every index node covers its children and is not overfull.
+	 * 
+	 * @return the number of geometries below the index node
+	 */
+	private int assertValidSubtree(RTreeIndex index, Node indexNode, int[] indexNodeCount)
+	{
+		indexNodeCount[0]++;
+		assertFalse(indexNode.hasProperty(RTreeIndex.PROP_PENDING_CHILD_IDS));
+		double[] bbox = (double[]) indexNode.getProperty(Constants.PROP_BBOX);
+		int children = 0;
+		int geometries = 0;
+		for (Relationship rel : indexNode.getRelationships(SpatialRelationshipTypes.RTREE_CHILD, Direction.OUTGOING))
+		{
+			Node child = rel.getEndNode();
+			assertTrue(GenericBoundingBox.covers(bbox, (double[]) child.getProperty(Constants.PROP_BBOX)));
+			geometries += assertValidSubtree(index, child, indexNodeCount);
+			children++;
+		}
+		for (Relationship rel : indexNode.getRelationships(SpatialRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING))
+		{
+			assertTrue(GenericBoundingBox.covers(bbox, index.getGeometryNodeBoundingBox(rel.getEndNode())));
+			geometries++;
+			children++;
+		}
+		assertTrue(children <= 100);
+		return geometries;
+	}
+
+	/**
+	 * @return the number of geometries the metadata node marks as buffered
+	 */
+	private int countBufferedMarkers(RTreeIndex index)
+	{
+		int count = 0;
+		for (Relationship rel : index.getMetadataNode().getRelationships(SpatialRelationshipTypes.RTREE_BUFFERED, Direction.OUTGOING))
+		{
+			count++;
+		}
+		return count;
+	}
+
+	private static class CountingListener implements Listener
+	{
+		public void begin(int unitsOfWork)
+		{
+		}
+
+		public void worked(int workedSinceLastNotification)
+		{
+			worked += workedSinceLastNotification;
+		}
+
+		public void done()
+		{
+			done = true;
+		}
+
+		int getWorked()
+		{
+			return worked;
+		}
+
+		private int worked = 0;
+		private boolean done = false;
+	}
+
+	/**
+	 * Finds test nodes whose "bbox" property (xmin, xmax, ymin, ymax)
+	 * intersects the window, and counts the geometries it tests.
+	 */
+	private static class WindowSearch extends SearchAll
+	{
+		WindowSearch(double xmin, double ymin, double xmax, double ymax)
+		{
+			this.window = new double[] { xmin, ymin, xmax, ymax };
+		}
+
+		public boolean needsToVisit(double[] bbox)
+		{
+			return bbox[0] <= window[2] && bbox[2] >= window[0] && bbox[1] <= window[3] && bbox[3] >= window[1];
+		}
+
+		public void onIndexReference(Node geomNode)
+		{
+			tested++;
+			double[] bbox = (double[]) geomNode.getProperty("bbox");
+			if (bbox[0] <= window[2] && bbox[1] >= window[0] && bbox[2] <= window[3] && bbox[3] >= window[1]) add(geomNode);
+		}
+
+		protected double[] window;
+		protected int tested = 0;
+	}
+
+	/**
+	 * A WindowSearch that covers index nodes inside the window, and counts
+	 * the geometries it accepts untested.
+	 */
+	private static class CoveringWindowSearch extends WindowSearch
+	{
+		CoveringWindowSearch(double xmin, double ymin, double xmax, double ymax)
+		{
+			super(xmin, ymin, xmax, ymax);
+		}
+
+		public boolean coversIndexNode(double[] bbox)
+		{
+			return window[0] <= bbox[0] && bbox[2] <= window[2] && window[1] <= bbox[1] && bbox[3] <= window[3];
+		}
+
+		public void onCoveredIndexReference(Node geomNode)
+		{
+			covered++;
+			super.onCoveredIndexReference(geomNode);
+		}
+
+		private int covered = 0;
+	}
+	
 }
@@ -19,6 +19,7 @@
  */
 package org.neo4j.gis.spatial;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
@@ -86,6 +87,10 @@ public class SpatialIndexPerformanceProxy implements SpatialIndexReader {
         System.out.println("# exec time(executeSearch(" + search + ")): " + (stop - start) + "ms");
     }
 
+    public Iterator<SpatialDatabaseRecord> search(Search search, int limit) {
+        return spatialIndex.search(search, limit);
+    }
+
     public Iterable<Node> getAllGeometryNodes() {
 	    return spatialIndex.getAllGeometryNodes();
     }
@@ -116,6 +116,31 @@ public class TestSimplePointLayer extends Neo4jTestCase {
 		assertEquals(456, results.size());
 	}
 
+	@Test
+	public void testNearestPoints() {
+		SpatialDatabaseService db = new SpatialDatabaseService(graphDb());
+		SimplePointLayer layer = db.createSimplePointLayer("neo-nearest", "lon", "lat");
+		for (Coordinate coordinate : makeDensePointData()) {
+			layer.add(coordinate);
+		}
+
+		double[] bbox = layer.getIndex().getLayerBoundingBox();
+		Coordinate centre = new Coordinate((bbox[0] + bbox[2]) / 2, (bbox[1] + bbox[3]) / 2);
+		List<SpatialDatabaseRecord> nearest = layer.findNearestPointsTo(centre, 50);
+		assertEquals(50, nearest.size());
+		checkPointOrder(nearest);
+
+		// the best-first search must find the same distances as an exhaustive window search
+		List<SpatialDatabaseRecord> window = layer.findClosestPointsTo(centre, 10.0);
+		for (int i = 0; i < nearest.size(); i++) {
+			assertEquals((Double) window.get(i).getUserData(), (Double) nearest.get(i).getUserData(), 0.001);
+		}
+
+		List<SpatialDatabaseRecord> planar = ((RTreeIndex) layer.getIndex()).findNearest(new Coordinate(13.1, 55.5), 1);
+		assertEquals(1, planar.size());
+		assertEquals(0.0, (Double) planar.get(0).getUserData(), 0.000001);
+	}
+
 	private void saveLayerAsImage(Layer layer, int width, int height) {
 		ShapefileExporter shpExporter = new ShapefileExporter(graphDb());
 		shpExporter.setExportDir("target/export/SimplePointTests");